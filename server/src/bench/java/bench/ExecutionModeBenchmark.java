@@ -0,0 +1,97 @@
+package bench;
+
+import propolis.server.HttpComponents;
+import propolis.server.HttpIOStream;
+import propolis.server.Templates;
+import propolis.server.TcpServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the TcpServer execution modes under many concurrent, mostly blocked, HTTP/1.1 connections.
+ *
+ * Every request is served by Templates.handlerTemplate, with a handler which blocks for a fixed time, standing in for
+ * a call to a database or another service. Each client opens its own connection, so the number of connections
+ * in flight is the number of clients.
+ *
+ * Usage: ExecutionModeBenchmark [clients] [handler latency in milliseconds]
+ */
+public class ExecutionModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long latencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 20;
+
+        System.out.printf("%d clients, %d ms per request.%n", clients, latencyMillis);
+        System.out.printf("%-18s %12s %14s %14s%n", "mode", "elapsed (ms)", "requests/sec", "peak threads");
+
+        for (TcpServer.ExecutionMode mode : TcpServer.ExecutionMode.values()) {
+            run(mode, clients, latencyMillis); // Warm up.
+            Result result = run(mode, clients, latencyMillis);
+            System.out.printf("%-18s %12d %14.0f %14d%n",
+                    mode, result.elapsedMillis, clients * 1000.0 / result.elapsedMillis, result.peakThreads);
+        }
+    }
+
+    private static Result run(TcpServer.ExecutionMode mode, int clients, long latencyMillis) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        TcpServer server = new TcpServer(new ServerSocket(0, clients), client ->
+                Templates.handlerTemplate(client, (request, response, body) -> {
+                    try {
+                        Thread.sleep(latencyMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                }), mode);
+        int port = server.waitForPort();
+        threads.resetPeakThreadCount();
+
+        long start = System.nanoTime();
+        try (ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Integer>> responses = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                responses.add(clientThreads.submit(() -> request(port)));
+            }
+            for (Future<Integer> response : responses) {
+                if (response.get() != 200) {
+                    throw new IllegalStateException("Unexpected status " + response.get());
+                }
+            }
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int peakThreads = threads.getPeakThreadCount();
+
+        server.stop();
+        server.waitForStop();
+        return new Result(elapsedMillis, peakThreads);
+    }
+
+    private static int request(int port) throws IOException {
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", port))) {
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/"));
+            return client.readHttpResponse().status;
+        }
+    }
+
+    private static final class Result {
+
+        final long elapsedMillis;
+        final int peakThreads;
+
+        Result(long elapsedMillis, int peakThreads) {
+            this.elapsedMillis = elapsedMillis;
+            this.peakThreads = peakThreads;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package propolis.server;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles the buffers behind frame payloads, so that reading and writing frames at a high rate does not
+ * allocate a new array for each one.
+ *
+ * Buffers are pooled in power of two size classes, from 64 bytes up to the maximum frame length. Larger requests
+ * are allocated, and dropped on release, as normal.
+ *
+ * With leak detection on, the pool remembers where each outstanding buffer was acquired, so that a test can
+ * fail on any buffer left unreleased.
+ */
+public class BufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 6;
+    private static final int MAX_SIZE = Frames.SETTINGS_MAX_FRAME_LENGTH;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SIZE_SHIFT + 1;
+
+    // The most free buffers kept in each size class. Anything more is left to the garbage collector.
+    private static final int MAX_FREE_PER_CLASS = 256;
+
+    private static final BufferPool heap = new BufferPool(false);
+    private static final BufferPool direct = new BufferPool(true);
+
+    private final boolean isDirect;
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Map<PooledBuffer, Throwable> tracked = new ConcurrentHashMap<>();
+    private volatile boolean leakDetection;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(boolean isDirect) {
+        this.isDirect = isDirect;
+        this.free = new Queue[SIZE_CLASSES];
+        this.freeCount = new AtomicInteger[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * The pool used by blocking connections, and for frames built by the application.
+     */
+    public static BufferPool heap() {
+        return heap;
+    }
+
+    /**
+     * The pool used by NioServer connections, whose channels can write direct buffers without staging them.
+     */
+    public static BufferPool direct() {
+        return direct;
+    }
+
+    /**
+     * @return A buffer with a reference count of one, whose content is length bytes, initially undefined.
+     */
+    public PooledBuffer acquire(int length) {
+        ByteBuffer buffer;
+        if (length <= MAX_SIZE) {
+            int sizeClass = sizeClass(length);
+            buffer = free[sizeClass].poll();
+            if (buffer != null) {
+                freeCount[sizeClass].decrementAndGet();
+            } else {
+                buffer = allocate(1 << (MIN_SIZE_SHIFT + sizeClass));
+            }
+        } else {
+            buffer = allocate(length);
+        }
+        buffer.clear().limit(length);
+
+        PooledBuffer pooled = new PooledBuffer(this, buffer);
+        outstanding.incrementAndGet();
+        if (leakDetection) {
+            tracked.put(pooled, new Throwable("Buffer of " + length + " bytes acquired here."));
+        }
+        return pooled;
+    }
+
+    void recycle(PooledBuffer pooled, ByteBuffer buffer) {
+        outstanding.decrementAndGet();
+        if (leakDetection) {
+            tracked.remove(pooled);
+        }
+
+        int capacity = buffer.capacity();
+        if (capacity > MAX_SIZE || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int sizeClass = sizeClass(capacity);
+        if (freeCount[sizeClass].incrementAndGet() <= MAX_FREE_PER_CLASS) {
+            free[sizeClass].add(buffer);
+        } else {
+            freeCount[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Remember where buffers are acquired, for checkLeaks. Costs a stack trace per buffer, so is meant for tests.
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        if (!leakDetection) {
+            tracked.clear();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException If any buffer acquired since leak detection was turned on is unreleased.
+     * The exception's cause shows where the buffer was acquired.
+     */
+    public void checkLeaks() {
+        for (Map.Entry<PooledBuffer, Throwable> leak : tracked.entrySet()) {
+            throw new IllegalStateException(String.format("%d buffer(s) leaked, including %s", tracked.size(), leak.getKey()), leak.getValue());
+        }
+    }
+
+    /**
+     * @return The number of buffers acquired and not yet released.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public boolean isDirect() {
+        return isDirect;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClass(int length) {
+        if (length <= 1 << MIN_SIZE_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SIZE_SHIFT;
+    }
+}
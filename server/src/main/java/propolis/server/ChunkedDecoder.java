@@ -0,0 +1,181 @@
+package propolis.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An incremental decoder for a body with the chunked transfer coding. RFC 7230 Section 4.1.
+ *
+ * The framing is checked a byte at a time, and the data copied in bulk. The body may arrive in any number of pieces,
+ * and decoding stops at its end, leaving whatever follows in the input.
+ * Chunk extensions are skipped. Trailers are kept, to be read once the body is complete.
+ */
+public class ChunkedDecoder {
+
+    // Enough for any size that fits in a long.
+    private static final int MAX_SIZE_DIGITS = 15;
+    private static final int MAX_EXTENSION_LENGTH = 4096;
+
+    private enum State {
+        SIZE, EXTENSION, SIZE_LF, DATA, DATA_CR, DATA_LF, TRAILER, TRAILER_LF, DONE
+    }
+
+    private State state = State.SIZE;
+    private long size;
+    private int sizeDigits;
+    private int extensionLength;
+    private long remaining;
+    private byte[] line = new byte[64];
+    private int lineLength;
+    private int trailersLength;
+    private final Map<String, String> trailers = new HashMap<>();
+
+    /**
+     * Decode as much of the body as the input holds, and there is room for.
+     *
+     * @return The number of bytes of data decoded, which is zero if the input held only framing, or -1 once the
+     * body is complete.
+     * @throws RequestParser.BadRequestException If the framing is malformed.
+     */
+    public int decode(ByteBuffer input, byte[] bytes, int offset, int length) throws RequestParser.BadRequestException {
+        if (state == State.DONE) {
+            return -1;
+        }
+        int decoded = 0;
+        while (state != State.DONE && decoded < length && input.hasRemaining()) {
+            if (state == State.DATA) {
+                int count = (int) Math.min(remaining, Math.min(input.remaining(), length - decoded));
+                input.get(bytes, offset + decoded, count);
+                decoded += count;
+                remaining -= count;
+                if (remaining == 0) {
+                    state = State.DATA_CR;
+                }
+                continue;
+            }
+
+            int c = input.get() & 0xff;
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(c, 16);
+                    if (digit >= 0) {
+                        if (sizeDigits++ == MAX_SIZE_DIGITS) {
+                            throw new RequestParser.BadRequestException("Chunk size too large.");
+                        }
+                        size = 16 * size + digit;
+                    } else if (sizeDigits == 0) {
+                        throw new RequestParser.BadRequestException("Invalid chunk size.");
+                    } else if (c == ';' || c == ' ' || c == '\t') {
+                        extensionLength = 0;
+                        state = State.EXTENSION;
+                    } else {
+                        endSizeLine(c);
+                    }
+                    break;
+                case EXTENSION:
+                    if (c == '\r' || c == '\n') {
+                        endSizeLine(c);
+                    } else if (++extensionLength > MAX_EXTENSION_LENGTH) {
+                        throw new RequestParser.BadRequestException("Chunk extension too long.");
+                    }
+                    break;
+                case SIZE_LF:
+                    endSizeLine(c);
+                    break;
+                case DATA_CR:
+                    if (c == '\r') {
+                        state = State.DATA_LF;
+                    } else {
+                        expectLF(c);
+                        state = State.SIZE;
+                    }
+                    break;
+                case DATA_LF:
+                    expectLF(c);
+                    state = State.SIZE;
+                    break;
+                case TRAILER:
+                    if (c == '\r') {
+                        state = State.TRAILER_LF;
+                    } else if (c == '\n') {
+                        endTrailerLine();
+                    } else {
+                        appendToLine(c);
+                    }
+                    break;
+                case TRAILER_LF:
+                    expectLF(c);
+                    endTrailerLine();
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected state! " + state);
+            }
+        }
+        return decoded == 0 && state == State.DONE ? -1 : decoded;
+    }
+
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * @return The trailers, complete once the body is.
+     */
+    public Map<String, String> getTrailers() {
+        return trailers;
+    }
+
+    /**
+     * Accept CRLF, or a bare LF, as the end of the size line. RFC 7230 Section 3.5.
+     */
+    private void endSizeLine(int c) throws RequestParser.BadRequestException {
+        if (c == '\r' && state != State.SIZE_LF) {
+            state = State.SIZE_LF;
+            return;
+        }
+        expectLF(c);
+        if (size == 0) {
+            lineLength = 0;
+            state = State.TRAILER;
+        } else {
+            remaining = size;
+            state = State.DATA;
+        }
+        size = 0;
+        sizeDigits = 0;
+    }
+
+    private void appendToLine(int c) throws RequestParser.BadRequestException {
+        if (++trailersLength > RequestParser.MAX_HEAD_LENGTH) {
+            throw new RequestParser.BadRequestException("Trailers exceed " + RequestParser.MAX_HEAD_LENGTH + " bytes.");
+        }
+        if (lineLength == line.length) {
+            line = Arrays.copyOf(line, 2 * line.length);
+        }
+        line[lineLength++] = (byte) c;
+    }
+
+    private void endTrailerLine() throws RequestParser.BadRequestException {
+        if (lineLength == 0) {
+            state = State.DONE;
+            return;
+        }
+        String field = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+        int split = field.indexOf(':');
+        if (split <= 0 || Character.isWhitespace(field.charAt(0)) || Character.isWhitespace(field.charAt(split - 1))) {
+            throw new RequestParser.BadRequestException("Invalid trailer.");
+        }
+        trailers.merge(field.substring(0, split), field.substring(split + 1).trim(), (first, second) -> first + ", " + second);
+        lineLength = 0;
+        state = State.TRAILER;
+    }
+
+    private static void expectLF(int c) throws RequestParser.BadRequestException {
+        if (c != '\n') {
+            throw new RequestParser.BadRequestException("Expected LF in chunk framing.");
+        }
+    }
+}
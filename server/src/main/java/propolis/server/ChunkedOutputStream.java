@@ -0,0 +1,128 @@
+package propolis.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Writes a message body with the chunked transfer coding, so that its end can be marked without closing the
+ * connection. RFC 7230 Section 4.1.
+ *
+ * Small writes are gathered into chunks of up to the buffer size, and a write at least that large is sent as a
+ * chunk of its own, so chunks are as large as the writer allows. Flushing sends whatever is gathered as a chunk.
+ * Closing ends the body, with any trailers, and leaves the underlying stream open for the next message.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final Map<String, String> trailers;
+    private final byte[] buffer;
+    private final byte[] sizeLine = new byte[16 + CRLF.length];
+    private int count;
+    private boolean closed;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this(out, null, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param trailers Fields to send after the body, read when the stream is closed, so they may be added while
+     *                 the body is written. May be null.
+     */
+    public ChunkedOutputStream(OutputStream out, Map<String, String> trailers, int chunkSize) {
+        this.out = out;
+        this.trailers = trailers;
+        this.buffer = new byte[chunkSize];
+        System.arraycopy(CRLF, 0, sizeLine, 16, CRLF.length);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (count == buffer.length) {
+            writeBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        checkOpen();
+        if (length >= buffer.length) {
+            writeBuffer();
+            writeChunk(bytes, offset, length);
+        } else {
+            if (length > buffer.length - count) {
+                writeBuffer();
+            }
+            System.arraycopy(bytes, offset, buffer, count, length);
+            count += length;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        writeBuffer();
+        out.flush();
+    }
+
+    /**
+     * Write the last chunk and trailers, but leave the underlying stream open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        writeBuffer();
+        closed = true;
+        out.write('0');
+        out.write(CRLF);
+        if (trailers != null) {
+            for (Map.Entry<String, String> trailer : trailers.entrySet()) {
+                writeLatin1(trailer.getKey());
+                out.write(':');
+                out.write(' ');
+                writeLatin1(trailer.getValue());
+                out.write(CRLF);
+            }
+        }
+        out.write(CRLF);
+    }
+
+    private void writeBuffer() throws IOException {
+        if (count > 0) {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+        int start = 16;
+        for (int size = length; size != 0 || start == 16; size >>>= 4) {
+            sizeLine[--start] = HEX[size & 0xf];
+        }
+        out.write(sizeLine, start, sizeLine.length - start);
+        out.write(bytes, offset, length);
+        out.write(CRLF);
+    }
+
+    private void writeLatin1(String string) throws IOException {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            out.write(c <= 0xff ? c : '?');
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Chunked body already closed!");
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package propolis.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector and the single thread which services it.
+ * Channels registered with a loop are only ever read, written and closed from that loop's thread,
+ * so the state attached to them needs no further synchronisation.
+ */
+public class EventLoop implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(EventLoop.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // Only touched on the loop.
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    // Shared by every channel on this loop, so that idle connections do not each hold a read buffer.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile Thread thread;
+    private volatile boolean terminating;
+
+    /**
+     * Selection keys registered with an EventLoop carry one of these, to be notified of readiness.
+     */
+    public interface Attachment {
+        void onReady(SelectionKey key) throws IOException;
+
+        void close();
+    }
+
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on this loop's thread.
+     * This is the only safe way for other threads to touch the channels owned by this loop.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Run a task on this loop's thread, no sooner than the given delay from now.
+     * Timers are not cancelled; a task which may no longer be wanted should check for itself.
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        Timer timer = new Timer(System.nanoTime() + unit.toNanos(delay), task);
+        if (inEventLoop()) {
+            timers.add(timer);
+        } else {
+            execute(() -> timers.add(timer));
+        }
+    }
+
+    /**
+     * Must be called on this loop's thread.
+     */
+    public SelectionKey register(SelectableChannel channel, int interestOps, Attachment attachment) throws ClosedChannelException {
+        return channel.register(selector, interestOps, attachment);
+    }
+
+    /**
+     * The number of open connections owned by this loop, as a measure of its load.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    void connectionOpened() {
+        connectionCount.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    public void stop() {
+        terminating = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!terminating) {
+                Timer nextTimer = timers.peek();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow(); // Tasks queued by this loop for itself must not wait for I/O.
+                } else if (nextTimer == null) {
+                    selector.select();
+                } else {
+                    long waitMillis = TimeUnit.NANOSECONDS.toMillis(nextTimer.deadline - System.nanoTime());
+                    if (waitMillis > 0) {
+                        selector.select(waitMillis);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                runTasks();
+                runTimers();
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    Attachment attachment = (Attachment) key.attachment();
+                    try {
+                        attachment.onReady(key);
+                    } catch (IOException | CancelledKeyException e) {
+                        log.debug("Closing channel after failure. " + e.getMessage());
+                        attachment.close();
+                    } catch (RuntimeException e) {
+                        log.error("Unhandled failure! Closing channel.", e);
+                        attachment.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Selector failure!", e);
+        } finally {
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                ((Attachment) key.attachment()).close();
+            }
+            Utils.closeQuietly(selector);
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                log.error("Unhandled failure in event loop timer!", e);
+            }
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Unhandled failure in event loop task!", e);
+            }
+        }
+    }
+}
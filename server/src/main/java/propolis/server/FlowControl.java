@@ -0,0 +1,231 @@
+package propolis.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Flow control for a session, on the connection and on each of its streams. RFC 7540 Sections 5.2 and 6.9.
+ *
+ * Sending, DATA may only be as large as both the connection's and the stream's windows allow, so a worker writing a
+ * response body waits for the peer's WINDOW_UPDATE when either runs out. The send windows are shared between
+ * workers and the session, so are guarded by this object's lock.
+ *
+ * Receiving, data is credited back once it has been released, which is when the handler has read it, or at once if
+ * nothing will. A window is topped up once half of it is neither open nor held in a body awaiting the handler, in
+ * one WINDOW_UPDATE rather than one per DATA frame, so a handler which stops reading stops the peer sending.
+ * The windows grow with the bandwidth-delay product, measured as the data received while a PING is out: if that
+ * fills most of the window, the window is too small to keep the connection busy, so is doubled.
+ * The receive side only runs on the session, so needs no lock.
+ */
+final class FlowControl {
+
+    static final int DEFAULT_WINDOW = 65535;
+    static final int MAX_WINDOW = Integer.MAX_VALUE;
+
+    // The most the receive windows grow to, per stream and for the connection.
+    static final int MAX_RECEIVE_WINDOW = 16 * 1024 * 1024;
+
+    private static final byte[] BDP_PING = {'p', 'r', 'o', 'p', '-', 'b', 'd', 'p'};
+
+    private final Consumer<Frames.HttpFrame> frameSender;
+
+    private int connectionSendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private boolean closed;
+
+    private int receiveWindowTarget = DEFAULT_WINDOW;
+    private int connectionReceiveWindow = DEFAULT_WINDOW;
+    // Received on the connection and not yet released.
+    private int connectionHeld;
+    private boolean bdpPingOutstanding;
+    private long bdpBytes;
+
+    /**
+     * @param frameSender Sends the WINDOW_UPDATE and PING frames which flow control needs.
+     */
+    FlowControl(Consumer<Frames.HttpFrame> frameSender) {
+        this.frameSender = frameSender;
+    }
+
+    /**
+     * Give a newly opened stream its initial windows.
+     */
+    synchronized void openStream(Stream stream) {
+        stream.sendWindow = initialSendWindow;
+        stream.receiveWindow = DEFAULT_WINDOW; // As advertised, since SETTINGS_INITIAL_WINDOW_SIZE is never sent.
+    }
+
+    /**
+     * Wait until the stream may send some data, then take up to the length wanted from its windows.
+     *
+     * @return The number of bytes which may be sent, at least one.
+     * @throws IOException If the stream or the session closes while waiting.
+     */
+    synchronized int acquire(Stream stream, int wanted) throws IOException {
+        while (!closed && stream.getState() != Stream.State.CLOSED
+                && (connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the flow control window!", e);
+            }
+        }
+        if (closed || stream.getState() == Stream.State.CLOSED) {
+            throw new IOException("Stream closed while waiting for the flow control window.");
+        }
+        int granted = Math.min(wanted, Math.min(connectionSendWindow, stream.sendWindow));
+        connectionSendWindow -= granted;
+        stream.sendWindow -= granted;
+        return granted;
+    }
+
+    /**
+     * Apply a WINDOW_UPDATE from the peer.
+     *
+     * @param stream The stream updated, or null for the connection.
+     * @return False if the window would exceed the largest allowed, which is a FLOW_CONTROL_ERROR.
+     */
+    synchronized boolean onWindowUpdate(Stream stream, int increment) {
+        int window = stream == null ? connectionSendWindow : stream.sendWindow;
+        if (window > MAX_WINDOW - increment) {
+            return false;
+        }
+        if (stream == null) {
+            connectionSendWindow += increment;
+        } else {
+            stream.sendWindow += increment;
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Apply a new SETTINGS_INITIAL_WINDOW_SIZE from the peer, adjusting every open stream's window by the change.
+     * RFC 7540 Section 6.9.2.
+     *
+     * @return False if any window would exceed the largest allowed, which is a FLOW_CONTROL_ERROR.
+     */
+    synchronized boolean setInitialSendWindow(int initialWindow, StreamTable streams) {
+        if (initialWindow < 0) {
+            return false;
+        }
+        int delta = initialWindow - initialSendWindow;
+        boolean[] overflowed = new boolean[1];
+        streams.forEach(stream -> {
+            long window = (long) stream.sendWindow + delta;
+            if (window > MAX_WINDOW) {
+                overflowed[0] = true;
+            } else {
+                stream.sendWindow = (int) window;
+            }
+        });
+        initialSendWindow = initialWindow;
+        notifyAll();
+        return !overflowed[0];
+    }
+
+    /**
+     * Wake any worker waiting on a stream which has just closed.
+     */
+    synchronized void streamClosed() {
+        notifyAll();
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Account for a DATA frame against the connection's window, its whole length counting, padding and all.
+     * It is held against the window until released.
+     *
+     * @return False if the peer sent more than the window allows, which is a FLOW_CONTROL_ERROR.
+     */
+    boolean receiveOnConnection(int length) {
+        if (length > connectionReceiveWindow) {
+            return false;
+        }
+        connectionReceiveWindow -= length;
+        connectionHeld += length;
+        if (receiveWindowTarget < MAX_RECEIVE_WINDOW) {
+            if (!bdpPingOutstanding) {
+                bdpPingOutstanding = true;
+                bdpBytes = 0;
+                frameSender.accept(new Frames.PingFrame(false, BDP_PING.clone()).asHttpFrame());
+            }
+            bdpBytes += length;
+        }
+        return true;
+    }
+
+    /**
+     * Account for a DATA frame against its stream's window. It is held against the window until released.
+     *
+     * @return False if the peer sent more than the window allows, which is a FLOW_CONTROL_ERROR.
+     */
+    boolean receiveOnStream(Stream stream, int length) {
+        if (length > stream.receiveWindow) {
+            return false;
+        }
+        stream.receiveWindow -= length;
+        stream.receiveHeld += length;
+        return true;
+    }
+
+    /**
+     * Release data received on the connection, such as once the handler has read it, or if it was for a stream
+     * which has closed.
+     */
+    void releaseOnConnection(int length) {
+        connectionHeld -= length;
+        int credit = receiveWindowTarget - connectionReceiveWindow - connectionHeld;
+        if (credit > 0 && connectionReceiveWindow + connectionHeld <= receiveWindowTarget / 2) {
+            sendWindowUpdate(0, credit);
+            connectionReceiveWindow += credit;
+        }
+    }
+
+    /**
+     * Release data received on a stream. The stream's window is only topped up while more data may follow.
+     */
+    void releaseOnStream(int streamId, Stream stream, int length, boolean more) {
+        stream.receiveHeld -= length;
+        int credit = receiveWindowTarget - stream.receiveWindow - stream.receiveHeld;
+        if (more && credit > 0 && stream.receiveWindow + stream.receiveHeld <= receiveWindowTarget / 2) {
+            sendWindowUpdate(streamId, credit);
+            stream.receiveWindow += credit;
+        }
+    }
+
+    /**
+     * Take a PING acknowledgement as the end of a bandwidth-delay product sample, if it is for the ping sent to
+     * measure one, and grow the receive windows if the sample filled most of them.
+     *
+     * @return True if the ping was flow control's own.
+     */
+    boolean onPingAck(byte[] data) {
+        if (!bdpPingOutstanding || !Arrays.equals(data, BDP_PING)) {
+            return false;
+        }
+        bdpPingOutstanding = false;
+        if (bdpBytes >= 2L * receiveWindowTarget / 3) {
+            receiveWindowTarget = (int) Math.min(MAX_RECEIVE_WINDOW, 2 * bdpBytes);
+            int credit = receiveWindowTarget - connectionReceiveWindow - connectionHeld;
+            if (credit > 0) {
+                sendWindowUpdate(0, credit);
+                connectionReceiveWindow += credit;
+            }
+        }
+        return true;
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) {
+        Frames.WindowUpdateFrame windowUpdateFrame = new Frames.WindowUpdateFrame();
+        windowUpdateFrame.streamId = streamId;
+        windowUpdateFrame.canTransmit = increment;
+        frameSender.accept(windowUpdateFrame.asHttpFrame());
+    }
+}
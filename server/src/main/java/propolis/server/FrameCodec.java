@@ -0,0 +1,183 @@
+package propolis.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Converts between HttpFrames and their wire representation, as laid out in RFC7540 Section 4.1.
+ *
+ *    +-----------------------------------------------+
+ *    |                 Length (24)                   |
+ *    +---------------+---------------+---------------+
+ *    |   Type (8)    |   Flags (8)   |
+ *    +-+-------------+---------------+-------------------------------+
+ *    |R|                 Stream Identifier (31)                      |
+ *    +=+=============================================================+
+ *    |                   Frame Payload (0...)                      ...
+ *    +---------------------------------------------------------------+
+ *
+ * Decoding is incremental, so that input may arrive in arbitrary pieces, as it does from a non-blocking channel.
+ * Any partial frame is retained by the codec until the rest of it arrives.
+ *
+ * Decoded payloads are acquired from a BufferPool, and belong to the caller. Encoding leaves the frame to the
+ * caller too, to release once written.
+ */
+public class FrameCodec {
+
+    private final BufferPool pool;
+    private byte[] pending = new byte[Frames.HEADER_SIZE];
+    private int pendingLength;
+
+    public FrameCodec() {
+        this(BufferPool.heap());
+    }
+
+    public FrameCodec(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public static ByteBuffer encode(Frames.HttpFrame frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Frames.HEADER_SIZE + frame.length());
+        encode(frame, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Append the frame to a buffer, so that several frames may be written together.
+     *
+     * @param buffer Must have at least HEADER_SIZE + payload length bytes remaining.
+     */
+    public static void encode(Frames.HttpFrame frame, ByteBuffer buffer) throws IOException {
+        encodeHeader(frame, buffer);
+        buffer.put(frame.payload.nioBuffer());
+    }
+
+    /**
+     * Append only the frame's header to a buffer, leaving the payload to be written from where it is.
+     */
+    public static void encodeHeader(Frames.HttpFrame frame, ByteBuffer buffer) throws IOException {
+        int payloadLength = frame.length();
+        if (payloadLength > Frames.SETTINGS_MAX_FRAME_LENGTH) {
+            throw new IOException("Length exceeds maximum length. Has a SETTINGS_MAX_FRAME_SIZE setting been sent and not parsed?");
+        }
+        writeHeader(buffer, payloadLength, frame.type, frame.flags, frame.streamId);
+    }
+
+    /**
+     * Encode a frame as its header followed by its payload, for a gathering write.
+     * The payload is a view rather than a copy, so the frame must not be released until written.
+     */
+    public static ByteBuffer[] encodeGathered(Frames.HttpFrame frame) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+        encodeHeader(frame, header);
+        header.flip();
+        return new ByteBuffer[]{header, frame.payload.nioBuffer()};
+    }
+
+    public static void writeHeader(ByteBuffer buffer, int length, int type, int flags, int streamId) {
+        buffer.put((byte) (length >>> 16))
+                .put((byte) (length >>> 8))
+                .put((byte) length)
+                .put((byte) type)
+                .put((byte) flags)
+                .putInt(streamId & 0x7fff_ffff);
+    }
+
+    /**
+     * Decode the next frame from the input, consuming only the bytes belonging to that frame.
+     *
+     * @param input Bytes read from the peer. Bytes of an incomplete frame are consumed and held by this codec.
+     * @return The next complete frame, or null if more input is required.
+     * @throws IOException If the frame exceeds the maximum frame length.
+     */
+    public Frames.HttpFrame decode(ByteBuffer input) throws IOException {
+        if (pendingLength == 0) {
+            Frames.HttpFrame frame = decodeComplete(input, pool);
+            if (frame != null) {
+                return frame;
+            }
+        }
+
+        while (input.hasRemaining()) {
+            int required = pendingLength < Frames.HEADER_SIZE
+                    ? Frames.HEADER_SIZE
+                    : Frames.HEADER_SIZE + payloadLength(ByteBuffer.wrap(pending), 0);
+            if (pending.length < required) {
+                pending = Arrays.copyOf(pending, required);
+            }
+
+            int count = Math.min(required - pendingLength, input.remaining());
+            input.get(pending, pendingLength, count);
+            pendingLength += count;
+
+            if (pendingLength >= Frames.HEADER_SIZE
+                    && pendingLength == Frames.HEADER_SIZE + payloadLength(ByteBuffer.wrap(pending), 0)) {
+                return takePending();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decode the next frame from the input, only if the whole of it is present.
+     * This suits a reader which keeps its own buffer, and can read more into it to complete the frame.
+     *
+     * @param input Bytes read from the peer.
+     * @return The next frame, or null, in which case nothing is consumed.
+     * @throws IOException If the frame exceeds the maximum frame length.
+     */
+    public static Frames.HttpFrame decodeComplete(ByteBuffer input) throws IOException {
+        return decodeComplete(input, BufferPool.heap());
+    }
+
+    /**
+     * As decodeComplete, with the payload acquired from the given pool.
+     */
+    public static Frames.HttpFrame decodeComplete(ByteBuffer input, BufferPool pool) throws IOException {
+        if (input.remaining() < Frames.HEADER_SIZE) {
+            return null;
+        }
+        int position = input.position();
+        int length = payloadLength(input, position);
+        if (input.remaining() < Frames.HEADER_SIZE + length) {
+            return null;
+        }
+
+        int type = input.get(position + 3) & 0xff;
+        int flags = input.get(position + 4) & 0xff;
+        int streamId = input.getInt(position + 5) & 0x7fff_ffff;
+        input.position(position + Frames.HEADER_SIZE);
+        PooledBuffer payload = pool.acquire(length);
+        ByteBuffer source = input.slice();
+        source.limit(length);
+        payload.nioBuffer().put(source);
+        input.position(position + Frames.HEADER_SIZE + length);
+        return new Frames.HttpFrame(streamId, type, flags, payload);
+    }
+
+    private Frames.HttpFrame takePending() {
+        ByteBuffer header = ByteBuffer.wrap(pending, 0, Frames.HEADER_SIZE);
+        int type = header.get(3) & 0xff;
+        int flags = header.get(4) & 0xff;
+        int streamId = header.getInt(5) & 0x7fff_ffff;
+        PooledBuffer payload = pool.acquire(pendingLength - Frames.HEADER_SIZE);
+        payload.nioBuffer().put(pending, Frames.HEADER_SIZE, pendingLength - Frames.HEADER_SIZE);
+        pendingLength = 0;
+        if (pending.length > Frames.HEADER_SIZE) {
+            pending = new byte[Frames.HEADER_SIZE]; // Don't hold on to large payloads.
+        }
+        return new Frames.HttpFrame(streamId, type, flags, payload);
+    }
+
+    private static int payloadLength(ByteBuffer buffer, int offset) throws IOException {
+        int length = (buffer.get(offset) & 0xff) << 16
+                | (buffer.get(offset + 1) & 0xff) << 8
+                | (buffer.get(offset + 2) & 0xff);
+        if (length > Frames.SETTINGS_MAX_FRAME_LENGTH) {
+            throw new IOException(String.format("Payload of size %d exceeded the maximum length of %d.", length, Frames.SETTINGS_MAX_FRAME_LENGTH));
+        }
+        return length;
+    }
+}
@@ -9,21 +9,38 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * Parses HttpFrames into their typed forms. The HttpFrame still belongs to the caller, who must release it.
+ * Header blocks are decoded with one context, so a factory parses the frames of one connection, in order.
+ */
 public class FrameFactory {
 
+    private final Hpack decodingContext;
+
+    public FrameFactory() {
+        this(new Hpack());
+    }
+
+    /**
+     * @param decodingContext The connection's HPACK decoding context. RFC 7541 Section 2.2.
+     */
+    public FrameFactory(Hpack decodingContext) {
+        this.decodingContext = decodingContext;
+    }
+
     public Frames.DataFrame createDataFrame(Frames.HttpFrame httpFrame) {
         Frames.DataFrame dataFrame = new Frames.DataFrame();
         dataFrame.streamId = httpFrame.streamId;
         dataFrame.flagEndStream = ((httpFrame.flags & 0x1) == 1);
-        dataFrame.flagPadded = ((httpFrame.flags & 0x8) == 1);
+        dataFrame.flagPadded = (httpFrame.flags & 0x8) != 0;
 
         if (dataFrame.flagPadded) {
-            ByteBuffer payload = ByteBuffer.wrap(httpFrame.payload);
+            ByteBuffer payload = httpFrame.payload.nioBuffer();
             dataFrame.padLength = Byte.toUnsignedInt(payload.get());
-            dataFrame.data = new byte[httpFrame.payload.length - dataFrame.padLength - 1];
+            dataFrame.data = new byte[httpFrame.length() - dataFrame.padLength - 1];
             payload.get(dataFrame.data);
         } else {
-            dataFrame.data = httpFrame.payload;
+            dataFrame.data = httpFrame.payloadBytes();
         }
 
         return dataFrame;
@@ -36,14 +53,14 @@ public class FrameFactory {
         headersFrame.flagPadded = (httpFrame.flags & 0x8) != 0;
         headersFrame.flagPriority = (httpFrame.flags & 0x20) != 0;
 
-        ByteArrayInputStream bais = new ByteArrayInputStream(httpFrame.payload);
+        ByteArrayInputStream bais = new ByteArrayInputStream(httpFrame.payloadBytes());
         int paddingLength = 0;
         if (headersFrame.flagPadded) {
             paddingLength = bais.read();
         }
         if (headersFrame.flagPriority) {
             byte b = (byte) bais.read();
-            headersFrame.exclusive = (b & 127) != 0;
+            headersFrame.exclusive = (b & 0x80) != 0;
             headersFrame.streamDependency =
                     (b & 0b0111_1111) << 24
                             | (bais.read() << 16)
@@ -51,51 +68,93 @@ public class FrameFactory {
                             | (bais.read());
             headersFrame.weight = bais.read();
         }
-        Hpack hpack = new Hpack();
         byte[] headersFramePayload = new byte[bais.available() - paddingLength];
         try {
             bais.read(headersFramePayload);
-            headersFrame.headers = hpack.decodeHeaderList(headersFramePayload);
+            headersFrame.headers = decodingContext.decodeHeaderList(headersFramePayload);
             return headersFrame;
         } catch (IOException e) {
             throw new RuntimeException("Unhandled failure!");
         }
     }
 
+    /**
+     * The part of a HEADERS or CONTINUATION frame's payload which belongs to the header block, without any padding
+     * or priority fields, so that the block can be decoded once all of its fragments have arrived.
+     * RFC 7540 Section 4.3.
+     */
+    public byte[] headerBlockFragment(Frames.HttpFrame httpFrame) {
+        byte[] payload = httpFrame.payloadBytes();
+        if (httpFrame.type != Frames.Type.HEADERS.ordinal()) {
+            return payload;
+        }
+        int start = 0;
+        int paddingLength = 0;
+        if ((httpFrame.flags & 0x8) != 0) {
+            paddingLength = payload.length > 0 ? Byte.toUnsignedInt(payload[0]) : 0;
+            start++;
+        }
+        if ((httpFrame.flags & 0x20) != 0) {
+            start += 5;
+        }
+        if (start + paddingLength > payload.length) {
+            throw new IllegalArgumentException("Padding exceeds the frame payload!");
+        }
+        return Arrays.copyOfRange(payload, start, payload.length - paddingLength);
+    }
+
     public Frames.PriorityFrame createPriorityFrame(Frames.HttpFrame httpFrame) {
+        return readPriority(httpFrame.streamId, httpFrame.payload.nioBuffer());
+    }
+
+    /**
+     * The priority fields of a HEADERS frame, which follow the pad length if there is one. RFC 7540 Section 6.2.
+     *
+     * @return The priority, as if sent in a PRIORITY frame, or null if the frame has none.
+     */
+    public Frames.PriorityFrame headersPriority(Frames.HttpFrame httpFrame) {
+        if ((httpFrame.flags & 0x20) == 0) {
+            return null;
+        }
+        ByteBuffer payload = httpFrame.payload.nioBuffer();
+        if ((httpFrame.flags & 0x8) != 0 && payload.hasRemaining()) {
+            payload.get();
+        }
+        if (payload.remaining() < 5) {
+            return null; // Too short for its flags, which the header block's decoding reports.
+        }
+        return readPriority(httpFrame.streamId, payload);
+    }
+
+    private static Frames.PriorityFrame readPriority(int streamId, ByteBuffer payload) {
         Frames.PriorityFrame priorityFrame = new Frames.PriorityFrame();
-        priorityFrame.streamId = httpFrame.streamId;
-        priorityFrame.exclusive = (httpFrame.payload[0] & 0x8000_0000) != 0;
-        priorityFrame.streamDependency = (0x7f & httpFrame.payload[0])
-                | httpFrame.payload[1]
-                | httpFrame.payload[2]
-                | httpFrame.payload[3];
-
-        priorityFrame.weight = httpFrame.payload[4];
+        priorityFrame.streamId = streamId;
+        int dependency = payload.getInt();
+        priorityFrame.exclusive = dependency < 0;
+        priorityFrame.streamDependency = dependency & 0x7fffffff;
+        priorityFrame.weight = Byte.toUnsignedInt(payload.get());
         return priorityFrame;
     }
 
     public Frames.ResetFrame createResetStreamFrame(Frames.HttpFrame httpFrame) {
         Frames.ResetFrame resetFrame = new Frames.ResetFrame();
-        int ordinal = (httpFrame.payload[0] << 24)
-                | (httpFrame.payload[1] << 16)
-                | (httpFrame.payload[2] << 8)
-                | httpFrame.payload[3];
+        ByteBuffer payload = httpFrame.payload.nioBuffer();
+        int ordinal = (payload.get(0) << 24)
+                | (payload.get(1) << 16)
+                | (payload.get(2) << 8)
+                | payload.get(3);
         resetFrame.error = Frames.Error.values()[ordinal];
         return resetFrame;
     }
 
     public Frames.SettingsFrame createSettingsFrame(Frames.HttpFrame httpFrame) {
         Map<Frames.SettingsFrame.Setting, Integer> settings = new HashMap<>();
-        byte[] payload = httpFrame.payload;
-        for (int i = 0; i < payload.length; i += 6) {
-            int settingIdentifier = payload[i]
-                    & payload[i + 1] << 1;
-            int settingValue = payload[i + 2] << 3
-                    & payload[i + 3] << 2
-                    & payload[i + 4] << 1
-                    & payload[i + 5];
-            settings.put(Frames.SettingsFrame.Setting.values()[settingIdentifier], settingValue);
+        ByteBuffer payload = httpFrame.payload.nioBuffer();
+        for (int i = 0; i + 6 <= payload.limit(); i += 6) {
+            Frames.SettingsFrame.Setting setting = Frames.SettingsFrame.Setting.forIdentifier(payload.getShort(i) & 0xffff);
+            if (setting != null) {
+                settings.put(setting, payload.getInt(i + 2));
+            }
         }
 
         return new Frames.SettingsFrame(
@@ -110,18 +169,17 @@ public class FrameFactory {
         pushPromiseFrame.flagPadded = (httpFrame.flags & 0x8) != 0;
         pushPromiseFrame.flagEndHeaders = (httpFrame.flags & 0x4) != 0;
 
-        ByteBuffer byteBuffer = ByteBuffer.wrap(httpFrame.payload);
+        ByteBuffer byteBuffer = httpFrame.payload.nioBuffer();
         if (pushPromiseFrame.flagPadded) {
             pushPromiseFrame.padLength = byteBuffer.get();
         }
 
         pushPromiseFrame.promisedStreamId = 0x7fffffff & byteBuffer.getInt();
-        int headerBlockFragmentLength = httpFrame.payload.length - byteBuffer.position() - pushPromiseFrame.padLength;
+        int headerBlockFragmentLength = httpFrame.length() - byteBuffer.position() - pushPromiseFrame.padLength;
         byte[] headerBlockFragment = new byte[headerBlockFragmentLength];
         byteBuffer.get(headerBlockFragment);
         try {
-            // TODO: Use a Hpack decoding context scoped to the stream.
-            pushPromiseFrame.headers = new Hpack().decodeHeaderList(headerBlockFragment);
+            pushPromiseFrame.headers = decodingContext.decodeHeaderList(headerBlockFragment);
         } catch (IOException e) {
             throw new RuntimeException("Unhandled failuer!", e);
         }
@@ -132,16 +190,16 @@ public class FrameFactory {
     public Frames.PingFrame createPingFrame(Frames.HttpFrame httpFrame) {
         return new Frames.PingFrame(
                 (httpFrame.flags & 0x1) == 1,
-                httpFrame.payload
+                httpFrame.payloadBytes()
         );
     }
 
     public Frames.GoAwayFrame createGoAwayFrame(Frames.HttpFrame httpFrame) {
         Frames.GoAwayFrame goAwayFrame = new Frames.GoAwayFrame();
-        ByteBuffer byteBuffer = ByteBuffer.wrap(httpFrame.payload);
+        ByteBuffer byteBuffer = httpFrame.payload.nioBuffer();
         goAwayFrame.lastStreamId = byteBuffer.getInt() & 0x7fffffff;
         goAwayFrame.error = Frames.Error.values()[byteBuffer.getInt()];
-        goAwayFrame.data = new byte[httpFrame.payload.length - 8];
+        goAwayFrame.data = new byte[httpFrame.length() - 8];
         byteBuffer.get(goAwayFrame.data);
         return goAwayFrame;
     }
@@ -149,15 +207,14 @@ public class FrameFactory {
     public Frames.WindowUpdateFrame createWindowUpdateFrame(Frames.HttpFrame httpFrame) {
         Frames.WindowUpdateFrame windowUpdateFrame = new Frames.WindowUpdateFrame();
         windowUpdateFrame.streamId = httpFrame.streamId;
-        windowUpdateFrame.canTransmit = ByteBuffer.wrap(httpFrame.payload).getInt();
+        windowUpdateFrame.canTransmit = httpFrame.payload.nioBuffer().getInt();
         return windowUpdateFrame;
     }
 
     public Frames.ContinuationFrame createContinuationFrame(Frames.HttpFrame httpFrame) {
         Frames.ContinuationFrame continuationFrame = new Frames.ContinuationFrame();
         try {
-            // TODO: Reuse the decoding context.
-            continuationFrame.headers = new Hpack().decodeHeaderList(httpFrame.payload);
+            continuationFrame.headers = decodingContext.decodeHeaderList(httpFrame.payloadBytes());
         } catch (IOException e) {
             throw new RuntimeException("Unhandled failure!", e);
         }
@@ -14,7 +14,7 @@ import java.util.Map;
 public abstract class Frames {
 
     private static final Logger LOG = LoggerFactory.getLogger(Frames.class);
-    public static final int HEADER_SIZE = 9 * 8;
+    public static final int HEADER_SIZE = 9;
     public static final int SETTINGS_MAX_FRAME_LENGTH = 16384;
 
     public enum Error {
@@ -31,6 +31,9 @@ public abstract class Frames {
 
     public static final Type[] types = Type.values();
 
+    // A frame type beyond those of RFC 7540, which Type does not cover. RFC 9218 Section 7.1.
+    public static final int PRIORITY_UPDATE = 0x10;
+
     public interface Frame {
         HttpFrame asHttpFrame();
     }
@@ -39,7 +42,7 @@ public abstract class Frames {
 
         public int streamId;
         public int padLength;
-        public byte[] data;
+        public byte[] data = new byte[0];
 
         public boolean flagEndStream;
         public boolean flagPadded;
@@ -78,21 +81,34 @@ public abstract class Frames {
 
         @Override
         public HttpFrame asHttpFrame() {
+            return asHttpFrame(new Hpack());
+        }
+
+        /**
+         * @param hpack The connection's encoding context, which the header block is encoded with, and which must
+         *              encode every block in the order they are sent.
+         */
+        public HttpFrame asHttpFrame(Hpack hpack) {
+            return asHttpFrame(hpack.encodeHeaderList(headers));
+        }
+
+        /**
+         * @param headerBlockFragment The headers, already encoded.
+         */
+        public HttpFrame asHttpFrame(byte[] headerBlockFragment) {
             int flags = (flagEndStream? 0x1 : 0)
                     | (flagEndHeaders? 0x4 : 0)
                     | (flagPadded? 0x8 : 0)
                     | (flagPriority? 0x20 : 0);
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            Hpack hpackEncoder = new Hpack();
-            byte[] headerBlockFragment = hpackEncoder.encodeHeaderList(headers);
 
             if (flagPadded) {
                 baos.write(padLength);
             }
 
             if (flagPriority) {
-                baos.write((exclusive? 127 : 0) | streamDependency >>> 24);
+                baos.write((exclusive? 0x80 : 0) | streamDependency >>> 24);
                 baos.write(streamDependency >>> 16);
                 baos.write(streamDependency >>> 8);
                 baos.write(streamDependency);
@@ -120,11 +136,11 @@ public abstract class Frames {
         @Override
         public HttpFrame asHttpFrame() {
             int flags = 0;
-            return new HttpFrame(streamId, 0x2, flags, ByteBuffer.allocate(5)
+            PooledBuffer payload = acquire(5);
+            payload.nioBuffer()
                     .putInt((exclusive? (1 << 31) : 0) | streamDependency)
-                    .put((byte) weight)
-                    .array()
-            );
+                    .put((byte) weight);
+            return new HttpFrame(streamId, 0x2, flags, payload);
         }
     }
 
@@ -136,7 +152,9 @@ public abstract class Frames {
         @Override
         public HttpFrame asHttpFrame() {
             int flags = 0;
-            return new HttpFrame(streamId, 0x3, flags, ByteBuffer.allocate(4).putInt(error.ordinal()).array());
+            PooledBuffer payload = acquire(4);
+            payload.nioBuffer().putInt(error.ordinal());
+            return new HttpFrame(streamId, 0x3, flags, payload);
         }
     }
 
@@ -148,12 +166,41 @@ public abstract class Frames {
 
         public enum Setting {
 
-            SETTINGS_HEADER_TABLE_SIZE,
-            SETTINGS_ENABLE_PUSH,
-            SETTINGS_MAX_CONCURRENT_STREAMS,
-            SETTINGS_INITIAL_WINDOW_SIZE,
-            SETTINGS_MAX_FRAME_SIZE,
-            SETTINGS_MAX_HEADER_LIST_SIZE;
+            SETTINGS_HEADER_TABLE_SIZE(0x1),
+            SETTINGS_ENABLE_PUSH(0x2),
+            SETTINGS_MAX_CONCURRENT_STREAMS(0x3),
+            SETTINGS_INITIAL_WINDOW_SIZE(0x4),
+            SETTINGS_MAX_FRAME_SIZE(0x5),
+            SETTINGS_MAX_HEADER_LIST_SIZE(0x6),
+            // Sent as 1 by a peer which does not use the priorities of RFC 7540. RFC 9218 Section 2.1.
+            SETTINGS_NO_RFC7540_PRIORITIES(0x9);
+
+            private static final Setting[] SETTINGS = values();
+
+            private final int identifier;
+
+            Setting(int identifier) {
+                this.identifier = identifier;
+            }
+
+            /**
+             * @return The identifier on the wire. RFC 7540 Section 6.5.2.
+             */
+            public int identifier() {
+                return identifier;
+            }
+
+            /**
+             * @return The setting with the identifier, or null if unknown, since unknown settings must be ignored.
+             */
+            public static Setting forIdentifier(int identifier) {
+                for (Setting setting : SETTINGS) {
+                    if (setting.identifier == identifier) {
+                        return setting;
+                    }
+                }
+                return null;
+            }
         }
 
         public SettingsFrame() {
@@ -167,20 +214,17 @@ public abstract class Frames {
 
         @Override
         public HttpFrame asHttpFrame() {
-            ByteBuffer buffer = ByteBuffer.allocate(6 * settings.size());
+            PooledBuffer payload = acquire(6 * settings.size());
+            ByteBuffer buffer = payload.nioBuffer();
             for (Map.Entry<Frames.SettingsFrame.Setting, Integer> entry : settings.entrySet()) {
-                Integer settingIdentifier = entry.getKey().ordinal();
-                Integer value = entry.getValue();
-
-                buffer.put((byte) (0x2 & settingIdentifier));
-                buffer.put((byte) (0x1 & settingIdentifier));
-                buffer.putInt(value);
+                buffer.putShort((short) entry.getKey().identifier());
+                buffer.putInt(entry.getValue());
             }
             return new Frames.HttpFrame(
                     0,
                     Frames.Type.SETTINGS,
                     ack? 1 : 0,
-                    buffer.array()
+                    payload
             );
         }
     }
@@ -204,16 +248,19 @@ public abstract class Frames {
             int payloadLength = (flagPadded? padLength : 0)
                     + 4 + headerBlockFragment.length + padLength;
 
-            ByteBuffer payloadBuffer = ByteBuffer.allocate(payloadLength);
+            PooledBuffer payload = acquire(payloadLength);
+            ByteBuffer payloadBuffer = payload.nioBuffer();
 
             if (flagPadded) {
                 payloadBuffer.put((byte) padLength);
             }
 
-            byte[] payload = payloadBuffer
+            payloadBuffer
                     .putInt(promisedStreamId)
-                    .put(headerBlockFragment)
-                    .array();
+                    .put(headerBlockFragment);
+            while (payloadBuffer.hasRemaining()) {
+                payloadBuffer.put((byte) 0); // Padding. Pooled buffers are not zeroed.
+            }
 
             return new HttpFrame(streamId, 0x5, flags, payload);
         }
@@ -273,11 +320,11 @@ public abstract class Frames {
         @Override
         public HttpFrame asHttpFrame() {
             int flags = 0;
-            byte[] payload = ByteBuffer.allocate(8 + data.length)
+            PooledBuffer payload = acquire(8 + data.length);
+            payload.nioBuffer()
                     .putInt(0x80000000 | lastStreamId)
                     .putInt(error.ordinal())
-                    .put(data)
-                    .array();
+                    .put(data);
             return new HttpFrame(0, 0x7, flags, payload);
         }
     }
@@ -290,7 +337,8 @@ public abstract class Frames {
         @Override
         public HttpFrame asHttpFrame() {
             int flags = 0;
-            byte[] payload = ByteBuffer.allocate(4).putInt(canTransmit).array();
+            PooledBuffer payload = acquire(4);
+            payload.nioBuffer().putInt(canTransmit);
             return new HttpFrame(streamId, 0x8, flags, payload);
         }
     }
@@ -301,33 +349,72 @@ public abstract class Frames {
         public LinkedHashMap<String, String> headers;
         public boolean flagEndHeaders;
 
-        // TODO: Reuse the context.
-
         @Override
         public HttpFrame asHttpFrame() {
+            return asHttpFrame(new Hpack());
+        }
+
+        /**
+         * @param hpack The connection's encoding context, as for HeadersFrame.
+         */
+        public HttpFrame asHttpFrame(Hpack hpack) {
             int flags = flagEndHeaders? 0x4 : 0;
-            byte[] payload = new Hpack().encodeHeaderList(headers);
+            byte[] payload = hpack.encodeHeaderList(headers);
             return new HttpFrame(streamId, 0x9, flags, payload);
         }
     }
 
+    /**
+     * A frame as it is read and written. Its payload is reference counted: whoever holds the frame releases it
+     * once done, whether by writing it, or after handling it.
+     */
     public static class HttpFrame {
 
         public int streamId;
         public int type;
         public int flags;
-        public byte[] payload;
+        public final PooledBuffer payload;
 
         public HttpFrame(int streamId, Type type, int flags, byte[] payload) {
             this(streamId, type.ordinal(), flags, payload);
         }
 
+        public HttpFrame(int streamId, Type type, int flags, PooledBuffer payload) {
+            this(streamId, type.ordinal(), flags, payload);
+        }
+
         public HttpFrame(int streamId, int type, int flags, byte[] payload) {
+            this(streamId, type, flags, PooledBuffer.wrap(payload));
+        }
+
+        public HttpFrame(int streamId, int type, int flags, PooledBuffer payload) {
             this.streamId = streamId;
             this.type = type;
             this.flags = flags;
             this.payload = payload;
         }
+
+        public int length() {
+            return payload.length();
+        }
+
+        /**
+         * @return A copy of the payload.
+         */
+        public byte[] payloadBytes() {
+            return payload.toArray();
+        }
+
+        public void release() {
+            payload.release();
+        }
+    }
+
+    /**
+     * A payload of the given length from the heap pool, for asHttpFrame to fill.
+     */
+    private static PooledBuffer acquire(int length) {
+        return BufferPool.heap().acquire(length);
     }
 
     /**
@@ -6,9 +6,11 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 
 import static propolis.server.HttpComponents.Request;
@@ -30,4 +32,93 @@ public class Handlers {
                 HttpComponents.Response response,
                 InputStream inputStream);
     }
+
+    /**
+     * Serve the regular files under a directory, by request target.
+     * Content-Length is always set, and the body is a FileBody, which Templates sends with sendfile where it can.
+     */
+    public static Http11Handler staticFiles(Path root) {
+        Path base = root.toAbsolutePath().normalize();
+        return (request, response, inputStream) -> {
+            Path file = resolve(base, request.target);
+            long length;
+            try {
+                if (file == null || !Files.isRegularFile(file)) {
+                    throw new IOException("No such file.");
+                }
+                length = Files.size(file);
+            } catch (IOException e) {
+                log.debug(String.format("Not found: %s (%s)", request.target, e.getMessage()));
+                response.setStatus(404);
+                response.headers.put("Content-Length", "0");
+                return null;
+            }
+            response.headers.put("Content-Length", Long.toString(length));
+            return new FileBody(file, length);
+        };
+    }
+
+    /**
+     * @return The file named by the target, or null if it is malformed or would escape the base directory.
+     */
+    private static Path resolve(Path base, String target) {
+        String path;
+        try {
+            path = new URI(target).getPath();
+        } catch (Exception e) {
+            return null;
+        }
+        if (path == null || !path.startsWith("/")) {
+            return null;
+        }
+        Path file = base.resolve(path.substring(1)).normalize();
+        return file.startsWith(base) ? file : null;
+    }
+
+    /**
+     * A response body read from a file.
+     * Written to a channel, the file is transferred by the kernel, without passing through the heap.
+     */
+    public static class FileBody implements ResponseBodyCallback {
+
+        public final Path path;
+        public final long length;
+
+        public FileBody(Path path, long length) {
+            this.path = path;
+            this.length = length;
+        }
+
+        /**
+         * Copy the length advertised, however the file has changed since, so as not to overrun the response.
+         */
+        @Override
+        public void handleResponseBody(OutputStream outputStream) throws IOException {
+            try (InputStream file = Files.newInputStream(path)) {
+                byte[] buffer = new byte[8192];
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new IOException(String.format("%s was truncated while being sent.", path));
+                    }
+                    outputStream.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+
+        public void transferTo(WritableByteChannel target) throws IOException {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                long position = 0;
+                while (position < length) {
+                    long transferred = file.transferTo(position, length - position, target);
+                    if (transferred <= 0) {
+                        throw new IOException(String.format("%s was truncated while being sent.", path));
+                    }
+                    position += transferred;
+                }
+            }
+        }
+    }
 }
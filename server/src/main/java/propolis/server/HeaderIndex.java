@@ -1,10 +1,15 @@
 package propolis.server;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
+/**
+ * The static and dynamic tables of an HPACK context, which indexes are into. RFC 7541 Section 2.3.
+ */
 public class HeaderIndex {
 
     /**
@@ -77,7 +82,58 @@ public class HeaderIndex {
 
     public static final int STATIC_TABLE_SIZE = 61;
 
-    private final List<HeaderEntry> dynamicTable = new ArrayList<>();
+    // The index of each name's first entry in the static table. Those with the same name follow it.
+    private static final Map<String, Integer> staticNames = new HashMap<>();
+
+    static {
+        for (int i = staticTable.size(); i > 0; i--) {
+            staticNames.put(staticTable.get(i - 1).name, i);
+        }
+    }
+
+    // The default maximum size of the dynamic table, the initial SETTINGS_HEADER_TABLE_SIZE. RFC 7540 Section 6.5.2.
+    public static final int DEFAULT_DYNAMIC_SIZE = 4096;
+
+    // Counted with each entry's size, for its references. RFC 7541 Section 4.1.
+    public static final int ENTRY_OVERHEAD = 32;
+
+    // The ring's capacity to begin with, which doubles as needed.
+    private static final int INITIAL_CAPACITY = 16;
+
+    /*
+     * The dynamic table is a ring of the entries, in the order they were added, with the size of each. An entry's
+     * position is the number added before it, and its slot is its position modulo the capacity, a power of two.
+     * Entries are added after the newest and evicted from the oldest, so both take constant time. Since every entry
+     * takes at least ENTRY_OVERHEAD, the ring never needs more than twice the maximum size over that.
+     * RFC 7541 Section 2.3.2.
+     *
+     * Entries are found by two hash tables of chains, one by name and value, one by name alone, with as many buckets
+     * as the ring has slots. A bucket has the position of its newest entry, and each slot the position of the next
+     * older in its chains. A chain ends at a position before the oldest, so evicting an entry leaves its chains be.
+     */
+    private HeaderEntry[] ring = new HeaderEntry[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private int[] fieldHashes = new int[INITIAL_CAPACITY];
+    private long[] fieldBuckets = emptyBuckets(INITIAL_CAPACITY);
+    private long[] nameBuckets = emptyBuckets(INITIAL_CAPACITY);
+    private long[] nextFields = new long[INITIAL_CAPACITY];
+    private long[] nextNames = new long[INITIAL_CAPACITY];
+    // The positions of the next entry to be added, and of the oldest in the table.
+    private long added;
+    private long oldest;
+    private int dynamicSize;
+    private int maximumDynamicSize;
+
+    public HeaderIndex() {
+        this(DEFAULT_DYNAMIC_SIZE);
+    }
+
+    /**
+     * @param maximumDynamicSize The size the dynamic table starts with, as agreed before any header block.
+     */
+    public HeaderIndex(int maximumDynamicSize) {
+        this.maximumDynamicSize = maximumDynamicSize;
+    }
 
     public HeaderEntry get(int index) {
         if (index == 0) {
@@ -86,20 +142,153 @@ public class HeaderIndex {
 
         if (index <= STATIC_TABLE_SIZE) {
             return staticTable.get(index - 1);
-        } else if (index <= STATIC_TABLE_SIZE + dynamicTable.size()) {
-            HeaderEntry entry = dynamicTable.get(index - STATIC_TABLE_SIZE - 1);
-
-            if (entry == null) {
-                throw new RuntimeException("Unhandled failure!");
-            }
-            return entry;
+        } else if (index <= STATIC_TABLE_SIZE + getDynamicCount()) {
+            return dynamicEntry(index - STATIC_TABLE_SIZE);
         } else {
             throw new RuntimeException("Unhandled failure!");
         }
     }
 
+    /**
+     * @param i From 1, the newest entry, to the number of entries.
+     */
+    private HeaderEntry dynamicEntry(int i) {
+        return ring[slot(added - i)];
+    }
+
+    private int slot(long position) {
+        return (int) position & (ring.length - 1);
+    }
+
+    /**
+     * @return The number of entries in the dynamic table.
+     */
+    public int getDynamicCount() {
+        return (int) (added - oldest);
+    }
+
+    /**
+     * @return The index of the entry at the position, which counts from the newest.
+     */
+    private int dynamicIndex(long position) {
+        return STATIC_TABLE_SIZE + (int) (added - position);
+    }
+
+    /**
+     * Change the maximum size of the dynamic table, evicting the oldest entries until it fits. RFC 7541 Section 4.3.
+     * The ring shrinks with it, so that a table made smaller frees its memory.
+     */
     public void updateMaximumDynamicSize(int maxSize) {
-        throw new UnsupportedOperationException();
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Negative table size " + maxSize + "!");
+        }
+        maximumDynamicSize = maxSize;
+        evict(0);
+        int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, maxSize / ENTRY_OVERHEAD)) << 1);
+        if (capacity < ring.length) {
+            resize(capacity);
+        }
+    }
+
+    /**
+     * Move the entries to a ring of another capacity, at least the number of entries, in the same positions, and
+     * hash them again into as many buckets.
+     */
+    private void resize(int capacity) {
+        HeaderEntry[] previousRing = ring;
+        int[] previousSizes = sizes;
+        ring = new HeaderEntry[capacity];
+        sizes = new int[capacity];
+        fieldHashes = new int[capacity];
+        fieldBuckets = emptyBuckets(capacity);
+        nameBuckets = emptyBuckets(capacity);
+        nextFields = new long[capacity];
+        nextNames = new long[capacity];
+        for (long position = oldest; position < added; position++) {
+            int previousSlot = (int) position & (previousRing.length - 1);
+            link(position, previousRing[previousSlot], previousSizes[previousSlot]);
+        }
+    }
+
+    private static long[] emptyBuckets(int capacity) {
+        long[] buckets = new long[capacity];
+        Arrays.fill(buckets, -1);
+        return buckets;
+    }
+
+    /**
+     * Put an entry in its slot, at the head of its chains.
+     */
+    private void link(long position, HeaderEntry entry, int size) {
+        int slot = slot(position);
+        int fieldHash = fieldHash(entry.name, entry.value);
+        ring[slot] = entry;
+        sizes[slot] = size;
+        fieldHashes[slot] = fieldHash;
+        int fieldBucket = bucket(fieldHash);
+        nextFields[slot] = fieldBuckets[fieldBucket];
+        fieldBuckets[fieldBucket] = position;
+        int nameBucket = bucket(entry.name.hashCode());
+        nextNames[slot] = nameBuckets[nameBucket];
+        nameBuckets[nameBucket] = position;
+    }
+
+    private static int fieldHash(String name, String value) {
+        return 31 * name.hashCode() + Objects.hashCode(value);
+    }
+
+    private int bucket(int hash) {
+        return (hash ^ (hash >>> 16)) & (ring.length - 1);
+    }
+
+    public int getMaximumDynamicSize() {
+        return maximumDynamicSize;
+    }
+
+    /**
+     * @return The size of the dynamic table's entries, as RFC 7541 Section 4.1 counts them.
+     */
+    public int getDynamicSize() {
+        return dynamicSize;
+    }
+
+    /**
+     * The size of an entry: the octets of its name and value, plus the overhead. RFC 7541 Section 4.1.
+     */
+    public static int size(HeaderEntry entry) {
+        return octets(entry.name) + octets(entry.value) + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * The length of a string in UTF-8, without encoding it.
+     */
+    private static int octets(String string) {
+        if (string == null) {
+            return 0;
+        }
+        int octets = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                octets++;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                octets += 2; // A surrogate pair is four octets.
+            } else {
+                octets += 3;
+            }
+        }
+        return octets;
+    }
+
+    /**
+     * Evict the oldest entries until there is room for an entry of the given size, or none are left.
+     */
+    private void evict(int room) {
+        while (added != oldest && dynamicSize + room > maximumDynamicSize) {
+            int slot = slot(oldest++);
+            dynamicSize -= sizes[slot];
+            ring[slot] = null;
+        }
     }
 
     public static final class HeaderEntry {
@@ -125,70 +314,109 @@ public class HeaderIndex {
         public boolean equals(Object obj) {
             if (!(obj instanceof HeaderEntry)) return false;
             HeaderEntry that = (HeaderEntry) obj;
-
-            boolean nameCondition = (this.name == null && that.name == null) ||
-                    (this.name != null && this.name.equals(that.name));
-
-            if (!nameCondition) return false;
-
-            boolean valueCondition = (this.value == null && that.value == null) ||
-                    (this.value != null && this.value.equals(that.value));
-
-            return valueCondition;
+            return Objects.equals(this.name, that.name) && Objects.equals(this.value, that.value);
         }
 
         @Override
         public int hashCode() {
-            return name.hashCode() + value.hashCode();
+            // The static table's entries without a value have none.
+            return Objects.hashCode(name) + Objects.hashCode(value);
         }
     }
 
-    public Integer getIndex(String name, String value) {
+    /**
+     * Find an entry with the name and value, in the static table first, then the newest in the dynamic table.
+     * Takes constant time, on average, and allocates nothing.
+     *
+     * @return Its index, or 0, which is no entry's, if none matches.
+     */
+    public int getIndex(String name, String value) {
 
         if (name == null) {
             throw new NullPointerException("Missing header name!");
         }
 
-        HeaderEntry headerEntry = new HeaderEntry(name, value);
-        int staticEntryIndex = staticTable.indexOf(headerEntry);
-        if (staticEntryIndex >= 0) {
-            return staticEntryIndex + 1;
+        int staticIndex = getStaticIndex(name, value);
+        if (staticIndex != 0) {
+            return staticIndex;
         }
 
-        int dynamicEntryIndex = dynamicTable.indexOf(headerEntry);
-        if (dynamicEntryIndex >= 0) {
-            return STATIC_TABLE_SIZE + dynamicEntryIndex + 1;
+        int fieldHash = fieldHash(name, value);
+        for (long position = fieldBuckets[bucket(fieldHash)]; position >= oldest; position = nextFields[slot(position)]) {
+            int slot = slot(position);
+            if (fieldHashes[slot] == fieldHash && name.equals(ring[slot].name) && Objects.equals(value, ring[slot].value)) {
+                return dynamicIndex(position);
+            }
         }
 
-        return null;
+        return 0;
     }
 
-    public Integer getIndex(String name) {
+    /**
+     * Find an entry with the name, as getIndex(name, value) does.
+     *
+     * @return Its index, or 0 if none has the name.
+     */
+    public int getIndex(String name) {
         if (name == null) {
             throw new NullPointerException("Missing header name!");
         }
 
-        for (int i = 0; i < staticTable.size(); i++) {
-            if (name.equals(staticTable.get(i).name)) {
-                return 1 + i;
+        int staticIndex = getStaticIndex(name);
+        if (staticIndex != 0) {
+            return staticIndex;
+        }
+
+        for (long position = nameBuckets[bucket(name.hashCode())]; position >= oldest; position = nextNames[slot(position)]) {
+            if (name.equals(ring[slot(position)].name)) {
+                return dynamicIndex(position);
             }
         }
 
-        for (int i = 0; i < dynamicTable.size(); i++) {
-            if (name.equals(dynamicTable.get(i).name)) {
-                return STATIC_TABLE_SIZE + 1 + i;
+        return 0;
+    }
+
+    /**
+     * The index of an entry in the static table alone, which is the same in every context, or 0 if none matches.
+     * No name has more than a few entries, which follow the first.
+     */
+    public static int getStaticIndex(String name, String value) {
+        Integer first = staticNames.get(name);
+        if (first == null) {
+            return 0;
+        }
+        for (int index = first; index <= STATIC_TABLE_SIZE && name.equals(staticTable.get(index - 1).name); index++) {
+            if (Objects.equals(value, staticTable.get(index - 1).value)) {
+                return index;
             }
         }
+        return 0;
+    }
 
-        return null;
+    public static int getStaticIndex(String name) {
+        Integer first = staticNames.get(name);
+        return first == null ? 0 : first;
     }
 
+    /**
+     * Add an entry to the dynamic table, evicting as many of the oldest as it needs room for.
+     * An entry larger than the table empties it, and is not added. RFC 7541 Section 4.4.
+     */
     public void store(HeaderEntry entry) {
         if (entry.name == null) {
             throw new NullPointerException("Missing header name!");
         }
 
-        dynamicTable.add(0, entry);
+        int size = size(entry);
+        evict(size);
+        if (dynamicSize + size > maximumDynamicSize) {
+            return;
+        }
+        if (getDynamicCount() == ring.length) {
+            resize(2 * ring.length);
+        }
+        link(added++, entry, size);
+        dynamicSize += size;
     }
 
     public void store(String name, String value) {
@@ -8,11 +8,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
+ * An HPACK context, for either encoding or decoding a connection's header blocks. RFC 7541.
+ * The dynamic table carries over from one header block to the next, so the blocks must be decoded in the order they
+ * were encoded, and by one context per connection and direction. RFC 7541 Section 2.2.
+ *
  * TODO: Separate encoding from decoding.
  */
 public class Hpack {
@@ -21,15 +27,30 @@ public class Hpack {
 
     public static final byte LITERAL_NEVER_INDEXED = (byte) 0x10;
 
-    private HeaderIndex headerIndex = new HeaderIndex();
+    private final HeaderIndex headerIndex;
     private boolean huffmanEncoding;
+    // The most the peer allows the dynamic table to hold, as set by SETTINGS_HEADER_TABLE_SIZE.
+    private int maximumTableSize;
+    // The smallest size the encoder's table has had since the last header block, or -1 if it has not changed.
+    private int smallestTableSize = -1;
+    // Reused for Huffman decoding, and as long as the longest string decoded.
+    private byte[] huffmanDecoded = new byte[0];
 
     public Hpack() {
         this(false);
     }
 
     public Hpack(boolean huffmanEncoding) {
+        this(huffmanEncoding, HeaderIndex.DEFAULT_DYNAMIC_SIZE);
+    }
+
+    /**
+     * @param tableSize The maximum size of the dynamic table, as agreed before the first header block.
+     */
+    public Hpack(boolean huffmanEncoding, int tableSize) {
         this.setHuffmanEncoding(huffmanEncoding);
+        this.headerIndex = new HeaderIndex(tableSize);
+        this.maximumTableSize = tableSize;
     }
 
     /**
@@ -45,8 +66,9 @@ public class Hpack {
         // TODO: Find out if the spec supports multibyte prefixes.
         if (prefixBits > 8) throw new UnsupportedOperationException("Multibyte prefixes are not supported.");
 
-        if (n < (1 << prefixBits)) {
+        if (n < (1 << prefixBits) - 1) {
             // Since remainder will fit in the prefix bits, simply return the relevant byte.
+            // A prefix of all ones is reserved, to say that more bytes follow.
             return new byte[] {
                     ByteBuffer
                             .allocate(4)
@@ -61,7 +83,7 @@ public class Hpack {
         // Count the continuation bytes.
         // This is the number of 7 bit non-terminating blocks after subtracting the prefix..
         int continuationBytes=0;
-        while (remainder >> (7 * continuationBytes) > 128) {
+        while (remainder >> (7 * (continuationBytes + 1)) > 0) {
             continuationBytes++;
         }
 
@@ -94,24 +116,62 @@ public class Hpack {
      * @return The decoded number.
      */
     public long decode(ByteArrayInputStream bis, int prefixBits) {
-        // TODO: Check the following on page 12 of the spec is correct w.r.t the exclusive comparison: if I < 2^N - 1, return I
+        try {
+            return decodeInteger(bis.read(), bis, prefixBits);
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled failure!", e);
+        }
+    }
 
-        int value = bis.read() & ((1 << prefixBits) - 1); // What comes before the prefix is not being trusted.
-        if (value >= (1 << prefixBits) - 1) {
+    /**
+     * Decode a number whose first byte has already been read. RFC 7541 Section 5.1.
+     *
+     * @param first The first byte, whose bits before the prefix are ignored.
+     * @throws IOException If the number is truncated, or too large for an int.
+     */
+    private static int decodeInteger(int first, InputStream input, int prefixBits) throws IOException {
+        if (first < 0) {
+            throw new IOException("Truncated integer!");
+        }
+        long value = first & ((1 << prefixBits) - 1); // What comes before the prefix is not being trusted.
+        if (value == (1 << prefixBits) - 1) {
             int i = 0;
 
             // Subsequent bytes are a 7-bit encoding, plus a continuation flag.
             // Terminate the loop when the flag becomes unset.
             int b;
             do {
-                b = bis.read();
-                int increment = (b & 127) << (7 * i);
-                value += increment;
+                b = input.read();
+                if (b < 0 || i > 4) {
+                    throw new IOException(b < 0 ? "Truncated integer!" : "Integer overflow!");
+                }
+                value += (long) (b & 127) << (7 * i);
                 i++; // Next time, multiply the increment by another 128.
             } while ((b & 128) == 128); // Check for the continuation flag.
         }
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Integer overflow!");
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Write a number after the pattern in the bits before its prefix, such as the flags of a representation.
+     */
+    private void writeInteger(ByteArrayOutputStream output, int pattern, long n, int prefixBits) {
+        byte[] encoding = encode(n, prefixBits);
+        encoding[0] |= pattern;
+        output.write(encoding, 0, encoding.length);
+    }
 
-        return value;
+    /**
+     * Write a string, with its length, Huffman encoded if so configured. RFC 7541 Section 5.2.
+     */
+    private void writeString(ByteArrayOutputStream output, String string) {
+        byte[] bytes = huffmanEncoding ? huffmanEncodedLiteral(string) : string.getBytes(StandardCharsets.ISO_8859_1);
+        writeInteger(output, huffmanEncoding ? 0b1000_0000 : 0, bytes.length, 7);
+        output.write(bytes, 0, bytes.length);
     }
 
     public long decode(byte[] encoding, int prefixBits) {
@@ -120,15 +180,15 @@ public class Hpack {
 
     private byte[] huffmanEncodedLiteral(String literal) {
         try {
-            return HuffmanEncoder.encode(literal.getBytes(Charset.defaultCharset()));
+            return HuffmanEncoder.encode(literal.getBytes(StandardCharsets.ISO_8859_1));
         } catch (IOException e) {
             throw new RuntimeException("Unhandled failure!", e);
         }
     }
 
     public byte[] encodeLiteralHeaderFieldWithoutIndexing(String name, String value) {
-        Integer nameIndex = headerIndex.getIndex(name);
-        byte[] valueBytes = value.getBytes(Charset.defaultCharset());
+        int nameIndex = headerIndex.getIndex(name);
+        byte[] valueBytes = value.getBytes(StandardCharsets.ISO_8859_1);
 
         if (huffmanEncoding) {
             valueBytes = huffmanEncodedLiteral(value);
@@ -136,7 +196,7 @@ public class Hpack {
 
         return ByteBuffer
                 .allocate(2 + valueBytes.length)
-                .put((byte) nameIndex.intValue())
+                .put((byte) nameIndex)
                 .put((byte) valueBytes.length)
                 .put(valueBytes)
                 .array();
@@ -150,8 +210,8 @@ public class Hpack {
             nameBytes = huffmanEncodedLiteral(name);
             valueBytes = huffmanEncodedLiteral(value);
         } else {
-            nameBytes = name.getBytes(Charset.defaultCharset());
-            valueBytes = value.getBytes(Charset.defaultCharset());
+            nameBytes = name.getBytes(StandardCharsets.ISO_8859_1);
+            valueBytes = value.getBytes(StandardCharsets.ISO_8859_1);
         }
 
         return ByteBuffer
@@ -165,57 +225,62 @@ public class Hpack {
     }
 
     public byte[] encodeHeader(String name, String value) {
-        // TODO: Check the name and value lengths will fit in 7 bits.
-
-        Integer index;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int index;
 
-        if ((index = headerIndex.getIndex(name, value)) != null) {
+        if ((index = headerIndex.getIndex(name, value)) != 0) {
             // Return the name and value index.
-            return new byte[] { (byte) (128 | index) };
-        } else if ((index = headerIndex.getIndex(name)) != null) {
+            writeInteger(output, 0b1000_0000, index, 7);
+        } else if ((index = headerIndex.getIndex(name)) != 0) {
             // Return the name index, and the value encoding.
-            byte[] valueBytes;
-            if (huffmanEncoding) {
-                valueBytes = huffmanEncodedLiteral(value);
-            } else {
-                valueBytes = value.getBytes(Charset.defaultCharset());
-            }
-
+            writeInteger(output, 0b0100_0000, index, 6);
+            writeString(output, value);
             headerIndex.store(name, value);
-
-            return ByteBuffer
-                    .allocate(2 + valueBytes.length)
-                    .put((byte) (64 | index))
-                    .put((byte) ((huffmanEncoding ? 128 : 0) | valueBytes.length))
-                    .put(valueBytes)
-                    .array();
         } else {
             // Return the name encoding, and the value encoding.
-            byte[] nameBytes;
-            byte[] valueBytes;
-            if (huffmanEncoding) {
-                nameBytes = huffmanEncodedLiteral(name);
-                valueBytes = huffmanEncodedLiteral(value);
-            } else {
-                nameBytes = name.getBytes(Charset.defaultCharset());
-                valueBytes = value.getBytes(Charset.defaultCharset());
-            }
-
+            output.write(0b0100_0000); // Literal indexed.
+            writeString(output, name);
+            writeString(output, value);
             headerIndex.store(name, value);
+        }
+        return output.toByteArray();
+    }
 
-            return ByteBuffer
-                    .allocate(3 + nameBytes.length + valueBytes.length)
-                    .put((byte) 64) // Literal indexed.
-                    .put((byte) ((huffmanEncoding ? 128 : 0) | nameBytes.length))
-                    .put(nameBytes)
-                    .put((byte) ((huffmanEncoding ? 128 : 0) | valueBytes.length))
-                    .put(valueBytes)
-                    .array();
+    /**
+     * Encode a header field without using or changing the dynamic table, referring only to the static table. Unlike
+     * the others, such a representation may be decoded in any order relative to other header blocks.
+     * RFC 7541 Section 6.2.2.
+     */
+    public byte[] encodeHeaderWithoutIndexing(String name, String value) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int index;
+
+        if ((index = HeaderIndex.getStaticIndex(name, value)) != 0) {
+            writeInteger(output, 0b1000_0000, index, 7);
+        } else if ((index = HeaderIndex.getStaticIndex(name)) != 0) {
+            writeInteger(output, 0, index, 4);
+            writeString(output, value);
+        } else {
+            output.write(0);
+            writeString(output, name);
+            writeString(output, value);
         }
+        return output.toByteArray();
     }
 
+    /**
+     * Encode a header block, which starts by signalling any change to the size of the dynamic table since the last.
+     * RFC 7541 Section 4.2.
+     */
     public byte[] encodeHeaderList(LinkedHashMap<String, String> headerList) {
         try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            if (smallestTableSize >= 0) {
+                if (smallestTableSize < headerIndex.getMaximumDynamicSize()) {
+                    writeInteger(baos, 0b0010_0000, smallestTableSize, 5);
+                }
+                writeInteger(baos, 0b0010_0000, headerIndex.getMaximumDynamicSize(), 5);
+                smallestTableSize = -1;
+            }
             for (Map.Entry<String, String> entry : headerList.entrySet()) {
                  byte[] encodedHeader = encodeHeader(entry.getKey(), entry.getValue());
                 baos.write(encodedHeader);
@@ -226,6 +291,63 @@ public class Hpack {
         }
     }
 
+    /**
+     * Encode a header block with encodeHeaderWithoutIndexing, so that it may be sent out of order with the others,
+     * such as trailers, which wait behind their stream's DATA.
+     */
+    public byte[] encodeHeaderListWithoutIndexing(Map<String, String> headerList) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> entry : headerList.entrySet()) {
+            byte[] encodedHeader = encodeHeaderWithoutIndexing(entry.getKey(), entry.getValue());
+            baos.write(encodedHeader, 0, encodedHeader.length);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * The most bytes encodeHeaderList could take to encode the headers, without Huffman encoding, which may be
+     * checked before encoding changes the dynamic table.
+     */
+    public static int maxEncodedLength(Map<String, String> headerList) {
+        // A table size update, twice, then for each field: the representation, with an index of up to 4 bytes,
+        // and two strings, each with a length of up to 5 bytes and no more than 3 bytes per char.
+        int length = 12;
+        for (Map.Entry<String, String> entry : headerList.entrySet()) {
+            length += 15 + 3 * (entry.getKey().length() + entry.getValue().length());
+        }
+        return length;
+    }
+
+    /**
+     * Set the most the dynamic table may hold, from SETTINGS_HEADER_TABLE_SIZE. RFC 7540 Section 6.5.2.
+     * An encoder's table is resized at once, and the change signalled at the start of the next header block.
+     * A decoder's table is resized by the peer's encoder, which may choose any size up to this.
+     */
+    public void setMaximumTableSize(int maximumTableSize) {
+        this.maximumTableSize = maximumTableSize;
+    }
+
+    /**
+     * @return The size of the dynamic table's entries. RFC 7541 Section 4.1.
+     */
+    public int getTableSize() {
+        return headerIndex.getDynamicSize();
+    }
+
+    /**
+     * Resize an encoder's dynamic table, up to the maximum table size. RFC 7541 Section 4.2.
+     */
+    public void resizeTable(int size) {
+        if (size > maximumTableSize) {
+            throw new IllegalArgumentException("Table size " + size + " exceeds the maximum " + maximumTableSize + "!");
+        }
+        if (size == headerIndex.getMaximumDynamicSize()) {
+            return;
+        }
+        headerIndex.updateMaximumDynamicSize(size);
+        smallestTableSize = smallestTableSize < 0 ? size : Math.min(smallestTableSize, size);
+    }
+
     public HeaderIndex.HeaderEntry decodeHeader(InputStream input) throws IOException {
 
         int b = input.read();
@@ -235,7 +357,7 @@ public class Hpack {
              * [HPACK] 6.1.  Indexed Header Field Representation
              */
 
-            int index = 0b0111_1111 & b;
+            int index = decodeInteger(b, input, 7);
             return headerIndex.get(index);
 
         } else if ((b & 0b0100_0000) != 0) { // Second bit.
@@ -243,7 +365,7 @@ public class Hpack {
              * 6.2.1.  Literal Header Field with Incremental Indexing
              */
 
-            int index = 0b0011_1111 & b;
+            int index = decodeInteger(b, input, 6);
             String headerName;
             if (index == 0) {
                 headerName = decodeLiteral(input);
@@ -260,7 +382,10 @@ public class Hpack {
             /*
              * 6.3.  Dynamic Table Size Update.
              */
-            int maxSize = 0b0001_1111 & b;
+            int maxSize = decodeInteger(b, input, 5);
+            if (maxSize > maximumTableSize) {
+                throw new IOException("Table size " + maxSize + " exceeds the maximum " + maximumTableSize + "!");
+            }
             headerIndex.updateMaximumDynamicSize(maxSize);
             return null;
 
@@ -272,7 +397,7 @@ public class Hpack {
              * "Intermediaries MUST use the same representation for encoding this header field."
              */
 
-            int index = 0b0000_1111 & b;
+            int index = decodeInteger(b, input, 4);
             if (index == 0) {
                 return new HeaderIndex.HeaderEntry(
                         decodeLiteral(input),
@@ -288,7 +413,7 @@ public class Hpack {
              * [HPACK] 6.2.2.  Literal Header Field without Indexing
              */
 
-            int index = 0b0000_1111 & b;
+            int index = decodeInteger(b, input, 4);
             if (index == 0) {
                 return new HeaderIndex.HeaderEntry(
                         decodeLiteral(input),
@@ -317,23 +442,48 @@ public class Hpack {
     private String decodeLiteral(InputStream input) throws IOException {
         int b = input.read();
         boolean huffmanEncoded = (0b1000_0000 & b) != 0;
-        int length = 0b0111_1111 & b;
+        int length = decodeInteger(b, input, 7);
+        if (length > input.available()) {
+            throw new IOException("Truncated string!");
+        }
         byte[] value = new byte[length];
         input.read(value);
-        byte[] bytes = huffmanEncoded ? HuffmanEncoder.decode(value) : value;
-        return new String(bytes);
+        if (!huffmanEncoded) {
+            return new String(value, StandardCharsets.ISO_8859_1);
+        }
+        int maxLength = HuffmanEncoder.maxDecodedLength(length);
+        if (huffmanDecoded.length < maxLength) {
+            huffmanDecoded = new byte[maxLength];
+        }
+        return new String(huffmanDecoded, 0, HuffmanEncoder.decode(value, 0, length, huffmanDecoded), StandardCharsets.ISO_8859_1);
     }
 
+    /**
+     * Decode a header block into a map, in which a repeated name keeps only its last value.
+     */
     public LinkedHashMap<String, String> decodeHeaderList(byte[] encodedHeaders) throws IOException {
-        ByteArrayInputStream input = new ByteArrayInputStream(encodedHeaders);
         LinkedHashMap<String, String> headers = new LinkedHashMap<>();
-        while (input.available() > 0) {
-            HeaderIndex.HeaderEntry header = decodeHeader(input);
+        for (HeaderIndex.HeaderEntry header : decodeHeaderFields(encodedHeaders)) {
             headers.put(header.name, header.value);
         }
         return headers;
     }
 
+    /**
+     * Decode a header block into its fields, in order, repeated names and all. RFC 7541 Section 3.2.
+     */
+    public List<HeaderIndex.HeaderEntry> decodeHeaderFields(byte[] encodedHeaders) throws IOException {
+        ByteArrayInputStream input = new ByteArrayInputStream(encodedHeaders);
+        List<HeaderIndex.HeaderEntry> fields = new ArrayList<>();
+        while (input.available() > 0) {
+            HeaderIndex.HeaderEntry header = decodeHeader(input);
+            if (header != null) { // Not a table size update.
+                fields.add(header);
+            }
+        }
+        return fields;
+    }
+
     /**
      * Flag used when encoding, to decide whether to apply Huffman encoding to literals.
      * NB: This is not used when decoding.
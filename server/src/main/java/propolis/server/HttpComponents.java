@@ -13,10 +13,25 @@ public class HttpComponents {
 
     static {
         // TODO: Read from a properties file.
+        HttpComponents.statusReason.put(100, "Continue");
+        HttpComponents.statusReason.put(101, "Switching Protocols");
         HttpComponents.statusReason.put(200, "OK");
-        HttpComponents.statusReason.put(400, "Bad readRequest");
+        HttpComponents.statusReason.put(201, "Created");
+        HttpComponents.statusReason.put(204, "No Content");
+        HttpComponents.statusReason.put(206, "Partial Content");
+        HttpComponents.statusReason.put(301, "Moved Permanently");
+        HttpComponents.statusReason.put(302, "Found");
+        HttpComponents.statusReason.put(304, "Not Modified");
+        HttpComponents.statusReason.put(400, "Bad Request");
+        HttpComponents.statusReason.put(403, "Forbidden");
         HttpComponents.statusReason.put(404, "Not Found");
+        HttpComponents.statusReason.put(405, "Method Not Allowed");
+        HttpComponents.statusReason.put(413, "Payload Too Large");
         HttpComponents.statusReason.put(421, "Misdirected Request");
+        HttpComponents.statusReason.put(500, "Internal Server Error");
+        HttpComponents.statusReason.put(501, "Not Implemented");
+        HttpComponents.statusReason.put(503, "Service Unavailable");
+        HttpComponents.statusReason.put(505, "HTTP Version Not Supported");
     }
 
     public static abstract class Message {
@@ -25,6 +40,8 @@ public class HttpComponents {
 
         public final String version;
         public final Map<String, String> headers;
+        // Fields after a chunked body. Those of a response may be added while its body is written.
+        public final Map<String, String> trailers = new HashMap<>();
 
         public Message() {
             this(HTTP_11, new HashMap<>());
@@ -38,6 +55,38 @@ public class HttpComponents {
             this.version = version;
             this.headers = headers;
         }
+
+        /**
+         * @return The value of the named header, whatever its case, or null if absent.
+         */
+        public String header(String name) {
+            String value = headers.get(name);
+            if (value != null) {
+                return value;
+            }
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return True if the named header is a comma separated list including the token, whatever its case.
+         */
+        public boolean headerContains(String name, String token) {
+            String value = header(name);
+            if (value == null) {
+                return false;
+            }
+            for (String element : value.split(",")) {
+                if (token.equalsIgnoreCase(element.trim())) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     public static final class Request extends Message {
@@ -71,8 +120,8 @@ public class HttpComponents {
 
     public static final class Response extends Message {
 
-        public final int status;
-        public final String reason;
+        public int status;
+        public String reason;
 
         public Response(int status, String reason) {
             super();
@@ -96,6 +145,14 @@ public class HttpComponents {
             return new Response(200, "OK");
         }
 
+        /**
+         * For handlers to replace the status they were given, with its standard reason phrase.
+         */
+        public void setStatus(int status) {
+            this.status = status;
+            this.reason = HttpComponents.statusReason.get(status);
+        }
+
         public String toString() {
             return String.format("%d: %s", status, reason);
         }
@@ -4,16 +4,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import propolis.server.Frames.HttpFrame;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -22,22 +32,60 @@ import java.util.Map;
 public class HttpIOStream implements Closeable {
 
     private static Logger log = LoggerFactory.getLogger(HttpIOStream.class);
-    private static final int HEADER_SIZE = 9 * 8;
+
+    // Room for several maximum sized frames, so that a single read or write can carry many.
+    private static final int FRAME_BUFFER_SIZE = 4 * (Frames.HEADER_SIZE + Frames.SETTINGS_MAX_FRAME_LENGTH);
+
+    // Payloads larger than this are written from where they are, rather than copied into the output buffer.
+    private static final int COPY_THRESHOLD = 1024;
+
+    // Buffers per gathering write. Well below the usual IOV_MAX of 1024.
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
+    private static final int INPUT_BUFFER_SIZE = 8192;
+
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n" +
+            "Connection: Upgrade\r\n" +
+            "Upgrade: h2c\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
 
     private final Socket socket;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private BufferedInput bufferedInput;
     public final HttpInputStream input = new HttpInputStream();
     public final HttpOutputStream output = new HttpOutputStream();
 
     public HttpIOStream(String url) throws IOException {
-        this(new URL(url));
+        this(toURL(url));
     }
 
     public HttpIOStream(URL uri) throws IOException {
-        socket = new Socket(uri.getHost(), uri.getPort() > 0? uri.getPort() : 80);
+        this(new Socket(uri.getHost(), uri.getPort() > 0? uri.getPort() : 80));
+    }
+
+    private static URL toURL(String url) throws MalformedURLException {
+        try {
+            return new URI(url).toURL();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
     }
 
     public HttpIOStream(Socket socket) {
         this.socket = socket;
+        this.inputStream = null;
+        this.outputStream = null;
+    }
+
+    /**
+     * For connections which are not backed by a blocking socket, such as those served by NioServer.
+     */
+    public HttpIOStream(InputStream inputStream, OutputStream outputStream) {
+        this.socket = null;
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
     }
 
     public Socket getRawSocket() {
@@ -56,10 +104,36 @@ public class HttpIOStream implements Closeable {
         return input.readFrame();
     }
 
+    /**
+     * Write a frame, and release it.
+     */
     public void writeFrame(HttpFrame frame) throws IOException {
         output.write(frame);
     }
 
+    /**
+     * Add a frame to the output buffer without writing it, unless the buffer is full.
+     * Buffered frames are written together by flush, or by the next writeFrame.
+     * Either way, the frame now belongs to this stream, which releases it once written.
+     */
+    public void bufferFrame(HttpFrame frame) throws IOException {
+        output.buffer(frame);
+    }
+
+    /**
+     * Write any buffered frames in a single write.
+     */
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * @return The number of bytes buffered and not yet written.
+     */
+    public int getBufferedBytes() {
+        return output.bufferedBytes;
+    }
+
     public void writeHttpRequest(HttpComponents.Request request) {
         output.writeHttpRequest(request);
     }
@@ -68,6 +142,40 @@ public class HttpIOStream implements Closeable {
         return input.readHttpRequest();
     }
 
+    /**
+     * The body of the request just read, delimited by its Content-Length or chunked coding, so that the end of the
+     * body is the end of the stream, and whatever follows is left for the next request.
+     * The body is read from the connection as the stream is, and closing the stream skips whatever is unread.
+     * A client waiting for 100 Continue is sent it now. RFC 7231 Section 5.1.1.
+     */
+    public InputStream requestBody(HttpComponents.Request request) throws IOException {
+        String transferEncoding = request.header("Transfer-Encoding");
+        String contentLength = request.header("Content-Length");
+        if (transferEncoding == null && contentLength == null) {
+            return InputStream.nullInputStream();
+        }
+        if (HttpComponents.Message.HTTP_11.equals(request.version) && request.headerContains("Expect", "100-continue")) {
+            out().write(CONTINUE);
+            out().flush();
+        }
+        if (transferEncoding != null) {
+            if (!"chunked".equalsIgnoreCase(transferEncoding.trim())) {
+                throw new IOException("Unsupported Transfer-Encoding: " + transferEncoding);
+            }
+            return new ChunkedInputStream(in(), request);
+        }
+        long length;
+        try {
+            length = contentLength == null ? 0 : Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + contentLength);
+        }
+        if (length < 0) {
+            throw new IOException("Invalid Content-Length: " + contentLength);
+        }
+        return new ContentLengthInputStream(in(), length);
+    }
+
     public HttpComponents.Response readHttpResonse() throws IOException {
         return input.readHttpResponse();
     }
@@ -93,103 +201,374 @@ public class HttpIOStream implements Closeable {
      * @throws IOException - if an I/O error occurs when closing this HttpIOStream.
      */
     public void close() throws IOException {
-        socket.close();
+        output.discard();
+        if (socket != null) {
+            socket.close();
+        } else {
+            outputStream.close();
+        }
     }
 
-    private class HttpInputStream {
+    /**
+     * Everything read from the connection passes through one buffer, so that bytes read ahead while parsing one
+     * message, such as a request body or the next pipelined request, are there for whatever reads next.
+     */
+    private BufferedInput in() throws IOException {
+        if (bufferedInput == null) {
+            bufferedInput = new BufferedInput(socket != null ? socket.getInputStream() : inputStream);
+        }
+        return bufferedInput;
+    }
 
-        BufferedReader reader;
+    /**
+     * The connection's input, positioned after whatever has been parsed so far, such as a request head.
+     */
+    public InputStream getInputStream() throws IOException {
+        return in();
+    }
 
-        public BufferedReader getReader() {
-            if (reader == null) {
-                try {
-                    reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                } catch (IOException e) {
-                    throw new RuntimeException();
+    private OutputStream out() throws IOException {
+        return socket != null ? socket.getOutputStream() : outputStream;
+    }
+
+    /**
+     * The socket's channel, for gathering writes. Only sockets created from channels have one.
+     */
+    private GatheringByteChannel channel() {
+        return socket != null ? socket.getChannel() : null;
+    }
+
+    /**
+     * An input buffer which the request parser reads in place.
+     */
+    private static class BufferedInput extends InputStream {
+
+        private final InputStream in;
+        final ByteBuffer buffer = ByteBuffer.allocate(INPUT_BUFFER_SIZE).flip();
+
+        BufferedInput(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Read more into the buffer, keeping whatever is unread.
+         *
+         * @return The number of bytes read, or -1 at the end of the input.
+         */
+        int fill() throws IOException {
+            buffer.compact();
+            try {
+                int count = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (count > 0) {
+                    buffer.position(buffer.position() + count);
+                }
+                return count;
+            } finally {
+                buffer.flip();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining() && fill() < 0) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                if (length >= buffer.capacity()) {
+                    return in.read(bytes, offset, length); // Nothing gained by copying through the buffer.
+                }
+                if (fill() < 0) {
+                    return -1;
                 }
             }
-            return reader;
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (!buffer.hasRemaining()) {
+                return in.skip(n);
+            }
+            int count = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining() + in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads no further than the end of a message body. Closing it skips whatever of the body is unread.
+     */
+    private static class ContentLengthInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        ContentLengthInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed part way through a body.");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = in.read(bytes, offset, (int) Math.min(length, remaining));
+            if (count < 0) {
+                throw new EOFException("Connection closed part way through a body.");
+            }
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
         }
 
         /**
-         * Read the request preface.
-         *
-         * @return request preface.
-         * @throws IOException
+         * Leaves the connection open, positioned after the body.
          */
-        public String readPreface() throws IOException {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            for (int i = 0; i < HttpComponents.PREFACE.length; i++) {
-                if (HttpComponents.PREFACE[i] == ((byte) '\n')) {
-                    String prefaceLine = reader.readLine();
-                    if (prefaceLine == null) {
-                        throw new IOException("Null preface line. Connection closed?");
-                    }
-                    return prefaceLine;
+        @Override
+        public void close() throws IOException {
+            while (remaining > 0) {
+                if (skip(remaining) == 0 && read() < 0) {
+                    return;
                 }
             }
-            throw new IOException("Failed to read preface!");
         }
+    }
 
-        public HttpFrame readFrame() throws IOException {
-            byte[] header = new byte[HEADER_SIZE];
-            socket.getInputStream().read(header);
-            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.BIG_ENDIAN);
-            final int length = buffer.getInt();
+    /**
+     * Decodes a chunked body from the input buffer in place. Once the body is complete, its trailers are added to the
+     * request's. Closing it skips whatever of the body is unread.
+     */
+    private static class ChunkedInputStream extends InputStream {
+
+        private final BufferedInput in;
+        private final HttpComponents.Message message;
+        private final ChunkedDecoder decoder = new ChunkedDecoder();
+
+        ChunkedInputStream(BufferedInput in, HttpComponents.Message message) {
+            this.in = in;
+            this.message = message;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (!decoder.isDone()) {
+                if (!in.buffer.hasRemaining() && in.fill() < 0) {
+                    throw new EOFException("Connection closed part way through a body.");
+                }
+                int count = decoder.decode(in.buffer, bytes, offset, length);
+                if (decoder.isDone()) {
+                    message.trailers.putAll(decoder.getTrailers());
+                }
+                if (count != 0) {
+                    return count;
+                }
+            }
+            return -1;
+        }
 
-            byte[] typeReservedAndFlags = new byte[5];
-            buffer.get(typeReservedAndFlags);
-            int streamId = buffer.getInt();
+        /**
+         * Leaves the connection open, positioned after the body.
+         */
+        @Override
+        public void close() throws IOException {
+            byte[] discard = new byte[INPUT_BUFFER_SIZE];
+            while (read(discard, 0, discard.length) >= 0) {
+            }
+        }
+    }
 
-            int type = typeReservedAndFlags[0] << 16
-                    | typeReservedAndFlags[1] << 8
-                    | typeReservedAndFlags[2];
+    private class HttpInputStream {
 
-            int flags = typeReservedAndFlags[4];
+        // The longest start line or header line accepted.
+        private static final int MAX_LINE_LENGTH = 8192;
+
+        ByteBuffer frameInput;
+        RequestParser requestParser;
+
+        /**
+         * Read the connection preface, exactly, so that any frames sent with it are left to be read.
+         *
+         * @return The first line of the preface.
+         * @throws IOException If the connection closes first, or the preface is wrong.
+         */
+        public String readPreface() throws IOException {
+            byte[] preface = new byte[HttpComponents.PREFACE.length];
+            int read = 0;
+            while (read < preface.length) {
+                int count = in().read(preface, read, preface.length - read);
+                if (count < 0) {
+                    throw new IOException("Null preface line. Connection closed?");
+                }
+                read += count;
+            }
+            if (!Arrays.equals(HttpComponents.PREFACE, preface)) {
+                throw new IOException("Failed to read preface!");
+            }
+            return "PRI * HTTP/2.0";
+        }
 
-            log.info(String.format("Received frame with length: %d, type: %s, flags: %d", length, Frames.Type.values()[type], flags));
+        /**
+         * Read a line terminated by LF, or CRLF, neither of which is returned.
+         * Header bytes are ISO-8859-1, so each is one character.
+         *
+         * @return The line, or null if the input ends before any of it.
+         */
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int b;
+            while ((b = in().read()) != '\n') {
+                if (b < 0) {
+                    if (line.size() == 0) {
+                        return null;
+                    }
+                    throw new EOFException("Connection closed part way through a line.");
+                }
+                if (line.size() == MAX_LINE_LENGTH) {
+                    throw new IOException("Line exceeds " + MAX_LINE_LENGTH + " bytes.");
+                }
+                line.write(b);
+            }
+            int length = line.size();
+            byte[] bytes = line.toByteArray();
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        }
 
-            if (length > Frames.SETTINGS_MAX_FRAME_LENGTH) {
-                throw new RuntimeException(String.format("Payload of size %d exceeded the maximum length of %d.", length, Frames.SETTINGS_MAX_FRAME_LENGTH));
+        /**
+         * Frames are read in bulk, into a buffer reused for the life of the connection, and then returned one at
+         * a time. A frame which straddles two reads stays in the buffer until the rest of it has been read.
+         */
+        public HttpFrame readFrame() throws IOException {
+            if (frameInput == null) {
+                frameInput = ByteBuffer.allocate(FRAME_BUFFER_SIZE);
+                frameInput.flip(); // Empty, and ready to be read from.
             }
 
-            // Should we delay reading the payload?
-            byte[] payload = new byte[length];
-            if (length > 0) {
-                int bytesRead = socket.getInputStream().read(payload);
+            HttpFrame frame;
+            while ((frame = FrameCodec.decodeComplete(frameInput)) == null) {
+                frameInput.compact();
+                int bytesRead = in().read(frameInput.array(), frameInput.position(), frameInput.remaining());
                 if (bytesRead < 0) {
-                    throw new RuntimeException("Failed to read anything from the input stream!");
-                } else if (bytesRead != length) {
-                    throw new RuntimeException(String.format("Failed to consume the entire payload! Expected %d, actual %d.", length, bytesRead));
+                    throw new EOFException(frameInput.position() > 0
+                            ? "Connection closed by peer, part way through a frame."
+                            : "Connection closed by peer.");
                 }
-            } else {
-                log.info("Empty payload. Continuing...");
+                frameInput.position(frameInput.position() + bytesRead);
+                frameInput.flip();
             }
-            return new Frames.HttpFrame(streamId, type, flags, payload);
+
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Received frame with length: %d, type: %d, flags: %d", frame.length(), frame.type, frame.flags));
+            }
+            return frame;
         }
 
+        /**
+         * Parse the request head straight from the input buffer, leaving the body unread.
+         *
+         * @throws RequestParser.BadRequestException If the head is malformed.
+         * @throws EOFException If the connection closes first.
+         */
         public HttpComponents.Request readHttpRequest() throws IOException {
-            // RFC 7230 Section 3 - Message Format
-            MessageParser messageParser = new MessageParser();
-            String[] startLineComponents = messageParser.requestLineComponents();
-
-            return new HttpComponents.Request(
-                    startLineComponents[0],
-                    startLineComponents[1],
-                    startLineComponents[2],
-                    messageParser.headers()
-            );
+            if (requestParser == null) {
+                requestParser = new RequestParser();
+            } else {
+                requestParser.reset();
+            }
+            BufferedInput input = in();
+            while (!requestParser.parse(input.buffer)) {
+                if (input.fill() < 0) {
+                    throw new EOFException(requestParser.hasStarted()
+                            ? "Connection closed part way through a request."
+                            : "Connection closed before the start of a message.");
+                }
+            }
+            return requestParser.request();
         }
 
         public HttpComponents.Response readHttpResponse() throws IOException {
             // RFC 7230 Section 3 - Message Format
             MessageParser messageParser = new MessageParser();
-            String[] startLineComponents = messageParser.statusLineComponents();
+            String statusLine = messageParser.startLine();
+            int versionEnd = statusLine.indexOf(' ');
+            if (versionEnd < 0) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            int statusEnd = statusLine.indexOf(' ', versionEnd + 1);
+            if (statusEnd < 0) {
+                statusEnd = statusLine.length(); // Tolerate a missing reason phrase.
+            }
+            int status;
+            try {
+                status = Integer.parseInt(statusLine.substring(versionEnd + 1, statusEnd));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
 
             return new HttpComponents.Response(
-                    startLineComponents[0],
-                    Integer.parseInt(startLineComponents[1]),
-                    startLineComponents[2],
+                    statusLine.substring(0, versionEnd),
+                    status,
+                    statusEnd < statusLine.length() ? statusLine.substring(statusEnd + 1) : "",
                     messageParser.headers()
             );
         }
@@ -197,22 +576,18 @@ public class HttpIOStream implements Closeable {
         private class MessageParser {
 
             String startLine() throws IOException {
-                return getReader().readLine();
-            }
-
-            String[] requestLineComponents() throws IOException {
-                return startLine().split("\\s+"); // FIXME: Validation; efficiency.
-            }
-
-            String[] statusLineComponents() throws IOException {
-                return startLine().split("\\s+");
+                String startLine = readLine();
+                if (startLine == null) {
+                    throw new EOFException("Connection closed before the start of a message.");
+                }
+                return startLine;
             }
 
             Map<String, String> headers() throws IOException {
                 Map<String, String> headers = new HashMap<>();
                 String headerLine;
 
-                while ((headerLine = getReader().readLine()).trim().length() > 0) {
+                while ((headerLine = readLine()) != null && headerLine.trim().length() > 0) {
                     // read until delimiter
                     // read remaining, discarding whitespace
                     log.debug("Header: " + headerLine);
@@ -231,32 +606,122 @@ public class HttpIOStream implements Closeable {
 
     private class HttpOutputStream {
 
+        // Headers and small payloads are copied here. Allocated on first use.
+        private ByteBuffer frameOutput;
+        // The part of frameOutput not yet added to gathered.
+        private int segmentStart;
+        // Everything to be written by the next flush, in order: slices of frameOutput, and large payloads in place.
+        private final List<ByteBuffer> gathered = new ArrayList<>();
+        // Frames whose payloads are in gathered, to be released once written.
+        private final List<HttpFrame> held = new ArrayList<>();
+        private int bufferedBytes;
+        private ResponseEncoder responseEncoder;
+
         public void write(HttpFrame frame) throws IOException {
-            int maxLength = 16_384;
-            int payloadLength = frame.payload.length;
-            log.info(String.format("Writing frame with length: %X", payloadLength));
-            if (payloadLength > maxLength) {
-                throw new IOException("Length exceeds maximum length. Has a SETTINGS_MAX_FRAME_SIZE setting been sent and not parsed?");
+            buffer(frame);
+            flush();
+        }
+
+        public void buffer(HttpFrame frame) throws IOException {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Writing frame with length: %X", frame.length()));
+            }
+            if (frameOutput == null) {
+                frameOutput = ByteBuffer.allocate(FRAME_BUFFER_SIZE);
+            }
+            int length = frame.length();
+            boolean copy = length <= COPY_THRESHOLD;
+            int copied = Frames.HEADER_SIZE + (copy ? length : 0);
+            if (frameOutput.remaining() < copied || gathered.size() + 2 > MAX_GATHERED_BUFFERS) {
+                flush();
+            }
+
+            if (copy) {
+                try {
+                    FrameCodec.encode(frame, frameOutput);
+                } finally {
+                    frame.release();
+                }
+            } else {
+                try {
+                    FrameCodec.encodeHeader(frame, frameOutput);
+                } catch (IOException e) {
+                    frame.release();
+                    throw e;
+                }
+                endSegment();
+                gathered.add(frame.payload.nioBuffer());
+                held.add(frame);
             }
-            byte[] typeReservedAndFlags = new byte[5];
-            typeReservedAndFlags[0] = (byte) ((0xFF0000 & frame.type) >> 16);
-            typeReservedAndFlags[1] = (byte) ((0x00FF00 & frame.type) >> 8);
-            typeReservedAndFlags[2] = (byte) (0x0000FF & frame.type);
+            bufferedBytes += Frames.HEADER_SIZE + length;
+        }
 
-            typeReservedAndFlags[4] = (byte) frame.flags;
+        /**
+         * Write everything buffered. Where the socket has a channel this is a single gathering write;
+         * otherwise each contiguous piece is written to the socket's stream in turn.
+         */
+        public void flush() throws IOException {
+            if (bufferedBytes == 0) {
+                return;
+            }
+            endSegment();
+            ByteBuffer[] buffers = gathered.toArray(new ByteBuffer[0]);
+            try {
+                GatheringByteChannel channel = channel();
+                if (channel != null) {
+                    long remaining = bufferedBytes;
+                    while (remaining > 0) {
+                        remaining -= channel.write(buffers);
+                    }
+                } else {
+                    OutputStream out = out();
+                    for (ByteBuffer buffer : buffers) {
+                        if (buffer.hasArray()) {
+                            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                        } else {
+                            byte[] bytes = new byte[buffer.remaining()];
+                            buffer.get(bytes);
+                            out.write(bytes);
+                        }
+                    }
+                    out.flush();
+                }
+            } finally {
+                discard();
+            }
+        }
 
-            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
-            buffer.putInt(payloadLength)
-                    .put(typeReservedAndFlags)
-                    .putInt(frame.streamId)
-                    .put(frame.payload);
+        /**
+         * Release anything buffered without writing it.
+         */
+        public void discard() {
+            for (HttpFrame frame : held) {
+                frame.release();
+            }
+            held.clear();
+            gathered.clear();
+            if (frameOutput != null) {
+                frameOutput.clear();
+            }
+            segmentStart = 0;
+            bufferedBytes = 0;
+        }
 
-            socket.getOutputStream().write(buffer.array(), 0, buffer.limit());
+        private void endSegment() {
+            if (frameOutput.position() > segmentStart) {
+                ByteBuffer segment = frameOutput.duplicate();
+                segment.flip().position(segmentStart);
+                gathered.add(segment.slice());
+                segmentStart = frameOutput.position();
+            }
         }
 
         public void writeHttpResponse(HttpComponents.Response response) {
+            if (responseEncoder == null) {
+                responseEncoder = new ResponseEncoder();
+            }
             try {
-                socket.getOutputStream().write(new ResponseBuilder().asBytes(response));
+                out().write(responseEncoder.encode(response), 0, responseEncoder.length());
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -264,14 +729,14 @@ public class HttpIOStream implements Closeable {
 
         public void writeHttpRequest(HttpComponents.Request request) {
             try {
-                socket.getOutputStream().write(new RequestBuilder().asBytes(request));
+                out().write(new RequestBuilder().asBytes(request));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
 
         public void writePreface() throws IOException {
-            socket.getOutputStream().write(HttpComponents.PREFACE);
+            out().write(HttpComponents.PREFACE);
         }
 
         abstract class MessageBuilder<M extends HttpComponents.Message> {
@@ -328,18 +793,5 @@ public class HttpIOStream implements Closeable {
                 return crlf();
             }
         }
-
-        public class ResponseBuilder extends MessageBuilder<HttpComponents.Response> {
-
-            MessageBuilder<HttpComponents.Response> startLine(HttpComponents.Response response) {
-                internalBuilder
-                        .append(response.version)
-                        .append(' ')
-                        .append(response.status)
-                        .append(' ')
-                        .append(response.reason != null ? response.reason : HttpComponents.statusReason.get(response.status));
-                return crlf();
-            }
-        }
     }
 }
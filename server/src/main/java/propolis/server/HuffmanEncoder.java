@@ -4,14 +4,35 @@ package propolis.server;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * The Huffman code of HPACK. RFC 7541 Appendix B.
+ *
+ * Decoding is by a finite state machine, which takes four bits at a time. Its states are the internal nodes of the
+ * code's tree, the root first, and for each state and four bits there is a transition, precomputed in one flat table:
+ * the state it leads to, and the symbol it completes, if any. No code is shorter than five bits, so four bits
+ * complete one symbol at most. A transition also says whether the bits since the last symbol are valid padding,
+ * which is fewer than eight bits, and all ones, a prefix of EOS. RFC 7541 Section 5.2.
+ */
 public class HuffmanEncoder {
 
     private static final Map<Byte, EntryValue> mapping = new HashMap<>();
-    private static Map<Integer, Byte> decodingTable = new HashMap<>();
-    private static BinaryTreeValue decodingTree;
+
+    // The end of string symbol, which only pads, and which a string must not contain. RFC 7541 Section 5.2.
+    private static final int EOS = 256;
+    private static final int EOS_CODE = 0x3fffffff;
+    private static final int EOS_LENGTH = 30;
+
+    // A transition is the next state, in the low byte, then the symbol it completes, then these flags.
+    private static final int EMITS = 1 << 16;
+    private static final int ACCEPTS = 1 << 17;
+    private static final int FAILS = 1 << 18;
+
+    // Indexed by the state, times 16, plus the next four bits.
+    private static final int[] transitions = new int[256 * 16];
 
     private static class EntryValue {
 
@@ -29,52 +50,55 @@ public class HuffmanEncoder {
         }
     }
 
-    public static class BinaryTreeValue {
-
-        public BinaryTreeValue left;
-        public BinaryTreeValue right;
-        public EntryValue entry;
-
-        public boolean isLeaf() {
-            return entry != null;
-        }
-
-    }
-
     public static byte[] decode(byte[] data) throws IOException {
+        byte[] output = new byte[maxDecodedLength(data.length)];
+        int length = decode(data, 0, data.length, output);
+        return Arrays.copyOf(output, length);
+    }
 
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            byte hold = 0x00;
-            int byteCursor = 0;
-            int bitCursor = 0;
-            boolean terminator = false;
-
-            while (byteCursor < data.length || bitCursor > 0) { // Ensure that the bitCursor isn't in the middle of an iteration.
-                BinaryTreeValue value = decodingTree;
-
-                while (!value.isLeaf()) {
-                    if (bitCursor % 8 == 0) {
-                        bitCursor = 0;
-                        if (byteCursor < data.length) {
-                            hold = data[byteCursor++];
-                        } else {
-                            // TODO: Assert that the padding contains solely 1s.
-                            terminator = true;
-                            break;
-                        }
-                    }
-                    boolean bitIsZero = (hold & ((1 << (7 - bitCursor++)))) == 0;
-                    value = bitIsZero ? value.left : value.right;
-                }
+    /**
+     * @return The most bytes that so many bytes of Huffman code may decode to, since no code is under five bits.
+     */
+    public static int maxDecodedLength(int encodedLength) {
+        return (int) (encodedLength * 8L / 5);
+    }
 
-                if (!terminator) {
-                    baos.write(decodingTable.get(value.entry.representation));
-                }
+    /**
+     * Decode a Huffman encoded string into the output, from its start.
+     *
+     * @param output At least maxDecodedLength(length) bytes.
+     * @return The number of bytes decoded.
+     * @throws IOException If the string contains EOS, or its padding is invalid.
+     */
+    public static int decode(byte[] data, int offset, int length, byte[] output) throws IOException {
+        if (output.length < maxDecodedLength(length)) {
+            throw new IllegalArgumentException("Output of " + output.length + " bytes may be too small!");
+        }
+        int decoded = 0;
+        int transition = ACCEPTS; // From the root, where the string may end.
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            transition = transitions[(transition & 0xff) << 4 | b >>> 4];
+            if ((transition & (EMITS | FAILS)) != 0) {
+                decoded = emit(transition, output, decoded);
             }
+            transition = transitions[(transition & 0xff) << 4 | b & 0xf];
+            if ((transition & (EMITS | FAILS)) != 0) {
+                decoded = emit(transition, output, decoded);
+            }
+        }
+        if ((transition & ACCEPTS) == 0) {
+            throw new IOException("Invalid Huffman padding!");
+        }
+        return decoded;
+    }
 
-            baos.flush();
-            return baos.toByteArray();
+    private static int emit(int transition, byte[] output, int decoded) throws IOException {
+        if ((transition & FAILS) != 0) {
+            throw new IOException("Huffman encoded string contains EOS!");
         }
+        output[decoded] = (byte) (transition >>> 8);
+        return decoded + 1;
     }
 
     public static byte[] encode(byte[] bytes) throws IOException {
@@ -372,34 +396,61 @@ public class HuffmanEncoder {
         mapping.put((byte) 254, new EntryValue(0x7fffff0, 27));
         mapping.put((byte) 255, new EntryValue(0x3ffffee, 26));
 
-        // Setup the decoding information.
-        for (int i = 0; i < 256; i++) {
-            EntryValue entryValue = mapping.get((byte) i);
-            decodingTable.put(entryValue.representation, (byte) i);
+        // Build the code's tree, with EOS. Node 0 is the root, and parents come before their children.
+        int nodes = 2 * (EOS + 1) - 1;
+        int[] zeros = new int[nodes];
+        int[] ones = new int[nodes];
+        int[] symbols = new int[nodes];
+        Arrays.fill(symbols, -1);
+        int count = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            EntryValue entryValue = symbol == EOS ? new EntryValue(EOS_CODE, EOS_LENGTH) : mapping.get((byte) symbol);
+            int node = 0;
+            for (int j = entryValue.bitLength - 1; j >= 0; j--) {
+                int[] children = ((entryValue.representation >>> j) & 1) == 0 ? zeros : ones;
+                if (children[node] == 0) {
+                    children[node] = count++;
+                }
+                node = children[node];
+            }
+            symbols[node] = symbol;
         }
 
-        // Setup a tree for decoding.
-        decodingTree = new BinaryTreeValue();
-        for (int i = 0; i < 256; i++) {
-            EntryValue entryValue = mapping.get((byte) i);
-            BinaryTreeValue node = decodingTree;
-            for (int j=entryValue.bitLength - 1; j>=0; j--) {
-                if (((entryValue.representation >> j) & 1) == 0) {
-                    if (node.left == null) {
-                        node.left = new BinaryTreeValue();
-                    }
+        // Number the internal nodes as states, and find those reached by valid padding, from the root.
+        int[] states = new int[nodes];
+        int[] depths = new int[nodes];
+        boolean[] padding = new boolean[nodes];
+        padding[0] = true;
+        int stateCount = 0;
+        for (int node = 0; node < nodes; node++) {
+            if (symbols[node] >= 0) {
+                continue;
+            }
+            states[node] = stateCount++;
+            depths[zeros[node]] = depths[ones[node]] = depths[node] + 1;
+            padding[ones[node]] = padding[node] && depths[node] < 7;
+        }
 
-                    node = node.left;
-                } else {
-                    if (node.right == null) {
-                        node.right = new BinaryTreeValue();
+        for (int node = 0; node < nodes; node++) {
+            if (symbols[node] >= 0) {
+                continue;
+            }
+            for (int bits = 0; bits < 16; bits++) {
+                int next = node;
+                int transition = 0;
+                for (int j = 3; j >= 0; j--) {
+                    next = ((bits >>> j) & 1) == 0 ? zeros[next] : ones[next];
+                    if (symbols[next] == EOS) {
+                        transition = FAILS;
+                        next = 0;
+                        break;
+                    } else if (symbols[next] >= 0) {
+                        transition = EMITS | symbols[next] << 8;
+                        next = 0;
                     }
-
-                    node = node.right;
                 }
-
+                transitions[states[node] << 4 | bits] = transition | states[next] | (padding[next] ? ACCEPTS : 0);
             }
-            node.entry = entryValue;
         }
     }
 }
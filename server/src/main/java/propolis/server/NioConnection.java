@@ -0,0 +1,374 @@
+package propolis.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking client connection, owned by a single EventLoop.
+ *
+ * Input is pushed to the connection's Handler as it becomes readable.
+ * Output is queued, and written as the channel becomes writable, so that a slow reader never blocks the loop.
+ */
+public class NioConnection implements EventLoop.Attachment {
+
+    private static final Logger log = LoggerFactory.getLogger(NioConnection.class);
+
+    // Buffers per gathering write. Well below the usual IOV_MAX of 1024.
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
+    // Bytes queued beyond which writes to the OutputStream view wait, off the loop, for the connection to catch up.
+    static final int HIGH_WATER_MARK = 256 * 1024;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    // Each element is written contiguously, so that writes from different threads never interleave.
+    private final Queue<Write> outbound = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // Held by writers waiting for the queue to drain.
+    private final Object drained = new Object();
+    private volatile int drainWaiters;
+
+    private SelectionKey key;
+    private Handler handler;
+    private volatile boolean closeAfterWrite;
+    private boolean inputEnded;
+    private volatile boolean closed;
+
+    @FunctionalInterface
+    public interface Handler {
+
+        /**
+         * Called on the connection's event loop with whatever has been read.
+         * The buffer is reused once this returns, so any bytes needed later must be copied.
+         */
+        void onRead(NioConnection connection, ByteBuffer input) throws IOException;
+
+        /**
+         * Called on the connection's event loop once it has written everything queued, having been unable to,
+         * so that a handler which holds back output while the connection is backed up may queue more.
+         */
+        default void onWritable(NioConnection connection) {
+        }
+
+        /**
+         * Called on the connection's event loop once the peer has shut down its output, after which nothing more is
+         * read. The connection stays open for what is still to be written, so by default closes once that has been.
+         * A handler still producing output should instead close it once done.
+         */
+        default void onEndOfInput(NioConnection connection) {
+            connection.closeAfterWrite();
+        }
+
+        default void onClose(NioConnection connection) {
+        }
+    }
+
+    public NioConnection(SocketChannel channel, EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+        loop.connectionOpened();
+    }
+
+    /**
+     * Must be called on the owning loop, before any handler is set.
+     */
+    void register() throws IOException {
+        channel.configureBlocking(false);
+        key = loop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public EventLoop getEventLoop() {
+        return loop;
+    }
+
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Queue the remaining bytes of the buffers for writing, in order and together. May be called from any thread.
+     * Queued buffers are written with gathering writes, so need not be copied into one another first,
+     * but must not be modified afterwards.
+     */
+    public void write(ByteBuffer... buffers) {
+        write(buffers, null);
+    }
+
+    /**
+     * As write, calling back once the buffers have been written, or dropped because the connection closed.
+     * This lets the owner of the buffers, such as a pooled frame, know when they can be released.
+     * The callback runs on the event loop, or on the calling thread if already closed.
+     */
+    public void write(ByteBuffer[] buffers, Runnable onWritten) {
+        if (closed) {
+            if (onWritten != null) {
+                onWritten.run();
+            }
+            return;
+        }
+        Write write = new Write(buffers, onWritten);
+        queuedBytes.addAndGet(write.length);
+        outbound.add(write);
+        if (closed) {
+            drop(); // Raced with close, which may have missed this write.
+            return;
+        }
+        if (loop.inEventLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Stop or resume reading, such as while the handler is behind with what has been read. Must be called on the
+     * owning loop.
+     */
+    public void setReading(boolean reading) {
+        if (closed || inputEnded) {
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * @return True if anything queued is still to be written, as when the peer is reading slower than it is sent.
+     */
+    public boolean hasPendingWrites() {
+        return !outbound.isEmpty();
+    }
+
+    /**
+     * An OutputStream view of this connection. Every write is copied and queued, so callers should buffer.
+     * Off the loop, writes wait while more than the high-water mark is queued, until the connection has written
+     * half of it, so that a large body, such as a file, is not queued all at once for a slow reader.
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len > 0) {
+                    awaitDrained();
+                    NioConnection.this.write(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+                }
+            }
+        };
+    }
+
+    private void awaitDrained() throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed.");
+        }
+        if (queuedBytes.get() <= HIGH_WATER_MARK || loop.inEventLoop()) {
+            return;
+        }
+        synchronized (drained) {
+            drainWaiters++;
+            try {
+                while (!closed && queuedBytes.get() > HIGH_WATER_MARK / 2) {
+                    drained.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the connection to drain!");
+            } finally {
+                drainWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Wake any writers waiting for the queue to drain, once it has, or the connection has closed.
+     */
+    private void signalDrained() {
+        if (drainWaiters > 0 && (closed || queuedBytes.get() <= HIGH_WATER_MARK / 2)) {
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Close the connection once everything queued so far has been written.
+     */
+    public void closeAfterWrite() {
+        closeAfterWrite = true;
+        write(ByteBuffer.allocate(0));
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isValid() && key.isWritable()) {
+            flush();
+            if (!closed && outbound.isEmpty()) {
+                handler.onWritable(this);
+            }
+        }
+
+        if (key.isValid() && key.isReadable()) {
+            ByteBuffer readBuffer = loop.getReadBuffer();
+            readBuffer.clear();
+            int bytesRead = channel.read(readBuffer);
+            if (bytesRead < 0) {
+                // Half-closed, perhaps having sent a request it still expects an answer to.
+                inputEnded = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                handler.onEndOfInput(this);
+                return;
+            }
+            readBuffer.flip();
+            handler.onRead(this, readBuffer);
+        }
+    }
+
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            while (!outbound.isEmpty()) {
+                int count = gather();
+                long requested = 0;
+                for (int i = 0; i < count; i++) {
+                    requested += gathered[i].remaining();
+                }
+                boolean full = channel.write(gathered, 0, count) < requested;
+                Arrays.fill(gathered, 0, count, null);
+
+                Write write;
+                while ((write = outbound.peek()) != null && !write.hasRemaining()) {
+                    outbound.poll();
+                    queuedBytes.addAndGet(-write.length);
+                    write.done();
+                }
+                signalDrained();
+                if (full) {
+                    // The socket buffer is full. Resume when the peer has caught up.
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (closeAfterWrite) {
+                close();
+            }
+        } catch (IOException e) {
+            log.debug("Write failure. Closing connection. " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Collect buffers from the head of the queue for a single write. Only the loop removes from the queue,
+     * so those collected stay at its head.
+     */
+    private int gather() {
+        int count = 0;
+        for (Write write : outbound) {
+            for (ByteBuffer buffer : write.buffers) {
+                if (count == MAX_GATHERED_BUFFERS) {
+                    return count;
+                }
+                gathered[count++] = buffer;
+            }
+        }
+        return count;
+    }
+
+    private void drop() {
+        Write write;
+        while ((write = outbound.poll()) != null) {
+            queuedBytes.addAndGet(-write.length);
+            write.done();
+        }
+        signalDrained();
+    }
+
+    private static class Write {
+
+        final ByteBuffer[] buffers;
+        final Runnable onWritten;
+        final long length;
+
+        Write(ByteBuffer[] buffers, Runnable onWritten) {
+            this.buffers = buffers;
+            this.onWritten = onWritten;
+            long length = 0;
+            for (ByteBuffer buffer : buffers) {
+                length += buffer.remaining();
+            }
+            this.length = length;
+        }
+
+        boolean hasRemaining() {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void done() {
+            if (onWritten != null) {
+                onWritten.run();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        drop();
+        Utils.closeQuietly(channel);
+        loop.connectionClosed();
+        if (handler != null) {
+            handler.onClose(this);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.format("Connection from %s", channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "Connection (closed)";
+        }
+    }
+}
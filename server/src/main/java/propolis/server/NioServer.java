@@ -0,0 +1,209 @@
+package propolis.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Daemon wrapper around ServerSocketChannel.
+ *
+ * Unlike TcpServer, which dedicates a thread to each connection, connections are multiplexed over event loops.
+ * An idle connection therefore costs a registered channel rather than a thread.
+ *
+ * There is one loop per core by default. The first loop also accepts, handing each new connection to the least
+ * loaded loop, which then owns it for its lifetime: all of a connection's reads, writes and protocol state
+ * (such as its Session) stay on that loop's thread.
+ */
+public class NioServer {
+
+    private static final Logger log = LoggerFactory.getLogger(NioServer.class);
+
+    // Status flags & co-ordination mutex.
+    private final Object mutex = new Object();
+    private volatile boolean started;
+    private volatile boolean terminating;
+    private volatile boolean terminated;
+
+    private final ServerSocketChannel serverSocketChannel;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService server;
+    private int nextEventLoop;
+    private volatile NioServable connectionHandler;
+
+    public NioServer(ServerSocketChannel serverSocketChannel, NioServable connectionHandler) throws IOException {
+        this(serverSocketChannel, connectionHandler, Runtime.getRuntime().availableProcessors());
+    }
+
+    public NioServer(ServerSocketChannel serverSocketChannel, NioServable connectionHandler, int eventLoopCount) throws IOException {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("At least one event loop is required, not " + eventLoopCount);
+        }
+        this.serverSocketChannel = serverSocketChannel;
+        this.connectionHandler = connectionHandler;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+        this.server = Executors.newFixedThreadPool(eventLoopCount);
+
+        serverSocketChannel.configureBlocking(false);
+        EventLoop acceptingLoop = eventLoops[0];
+        acceptingLoop.execute(() -> {
+            try {
+                acceptingLoop.register(serverSocketChannel, SelectionKey.OP_ACCEPT, new Acceptor());
+            } catch (IOException e) {
+                throw new RuntimeException("Unhandled failure!", e);
+            }
+            synchronized (mutex) {
+                started = true;
+                mutex.notifyAll();
+            }
+        });
+        for (EventLoop eventLoop : eventLoops) {
+            server.submit(eventLoop);
+        }
+    }
+
+    public void stop() {
+        log.info("Stopping server " + this);
+        terminating = true;
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
+        }
+        server.shutdown();
+        try {
+            server.awaitTermination(3, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            log.error("Graceful shutdown prevented! Attempting forced shutdown. " + e.getMessage());
+            server.shutdownNow();
+        }
+
+        synchronized (mutex) {
+            terminated = true;
+            mutex.notifyAll();
+        }
+    }
+
+    public int waitForPort() throws InterruptedException {
+        waitForStart();
+        return serverSocketChannel.socket().getLocalPort();
+    }
+
+    public void waitForStart() throws InterruptedException {
+        synchronized (mutex) {
+            if (!started) {
+                mutex.wait(300);
+            }
+        }
+    }
+
+    public void waitForStop() throws InterruptedException {
+        synchronized (mutex) {
+            if (!terminated) {
+                mutex.wait(30);
+            }
+        }
+    }
+
+    public String getHttpUrl() {
+        return String.format("http://%s:%s", serverSocketChannel.socket().getInetAddress().getHostName(), serverSocketChannel.socket().getLocalPort());
+    }
+
+    public void setConnectionHandler(NioServable connectionHandler) {
+        this.connectionHandler = connectionHandler;
+    }
+
+    /**
+     * Provides the protocol handler for each new connection.
+     * Handlers are called on the event loop, so must not block.
+     */
+    @FunctionalInterface
+    public interface NioServable {
+        NioConnection.Handler handleConnection(NioConnection connection) throws IOException;
+    }
+
+    public int getEventLoopCount() {
+        return eventLoops.length;
+    }
+
+    /**
+     * Choose the loop with the fewest connections, starting the search round-robin so that ties are spread evenly.
+     * Only called from the accepting loop.
+     */
+    private EventLoop nextEventLoop() {
+        EventLoop chosen = eventLoops[nextEventLoop];
+        for (int i = 1; i < eventLoops.length; i++) {
+            EventLoop candidate = eventLoops[(nextEventLoop + i) % eventLoops.length];
+            if (candidate.getConnectionCount() < chosen.getConnectionCount()) {
+                chosen = candidate;
+            }
+        }
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        return chosen;
+    }
+
+    private class Acceptor implements EventLoop.Attachment {
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            SocketChannel client;
+            while (!terminating && (client = serverSocketChannel.accept()) != null) {
+                NioConnection connection = new NioConnection(client, nextEventLoop());
+                connection.getEventLoop().execute(() -> open(connection));
+            }
+        }
+
+        /**
+         * Runs on the connection's own loop, so that its handler is created where it will be used.
+         */
+        private void open(NioConnection connection) {
+            try {
+                connection.register();
+                connection.setHandler(connectionHandler.handleConnection(connection));
+            } catch (IOException e) {
+                log.error("Connection error!", e);
+                connection.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            Utils.closeQuietly(serverSocketChannel);
+        }
+    }
+
+    public static NioServer newNioServer(int port, NioServable nioServable) throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.socket().bind(new InetSocketAddress(port));
+        return new NioServer(serverSocketChannel, nioServable);
+    }
+
+    @Override
+    public String toString() {
+        String status;
+        if (terminated) {
+            status = "terminated";
+        } else if (terminating) {
+            status = "terminating";
+        } else if (started) {
+            status = "started";
+        } else {
+            status = "starting";
+        }
+        return String.format("Server %s on %s", status, serverSocketChannel.socket().getLocalSocketAddress());
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        NioServer nioServer = NioServer.newNioServer(8081, ProtocolDispatcher.nioServable((request, response, body) -> null));
+        nioServer.waitForStart();
+        log.info("Press Ctrl-C to exit.");
+    }
+}
@@ -0,0 +1,100 @@
+package propolis.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted buffer, returned to its BufferPool when the last reference is released.
+ *
+ * Whoever holds a buffer must release it exactly once. To hand it on while keeping it, for instance to share a
+ * payload between streams or connections without copying it, retain it first.
+ * Buffers which wrap an array belong to no pool, but are counted all the same, so that ownership is the same
+ * whichever kind a frame carries.
+ */
+public class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final int length;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.length = buffer.limit();
+    }
+
+    /**
+     * A buffer over the given bytes, which are neither copied nor recycled.
+     */
+    public static PooledBuffer wrap(byte[] bytes) {
+        return new PooledBuffer(null, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @return A new view of the content, from position zero to its length.
+     * Views share the content, but not their position or limit, so each reader or writer should take its own.
+     */
+    public ByteBuffer nioBuffer() {
+        checkLive();
+        return buffer.duplicate();
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return A copy of the content.
+     */
+    public byte[] toArray() {
+        byte[] bytes = new byte[length()];
+        nioBuffer().get(bytes);
+        return bytes;
+    }
+
+    public boolean isDirect() {
+        return buffer.isDirect();
+    }
+
+    public int refCount() {
+        return refCount.get();
+    }
+
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released! " + this);
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * @return True if this was the last reference, and the buffer has been recycled.
+     */
+    public boolean release() {
+        int count = refCount.decrementAndGet();
+        if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("Buffer released too many times! " + this);
+        }
+        if (count == 0 && pool != null) {
+            pool.recycle(this, buffer);
+        }
+        return count == 0;
+    }
+
+    private void checkLive() {
+        if (refCount.get() <= 0) {
+            throw new IllegalStateException("Buffer used after release! " + this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s buffer of %d bytes with %d reference(s)", buffer.isDirect() ? "direct" : "heap", length(), refCount.get());
+    }
+}
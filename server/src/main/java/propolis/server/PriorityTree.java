@@ -0,0 +1,298 @@
+package propolis.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Writes DATA in the order of the stream priorities of RFC 7540 Section 5.3.
+ *
+ * Streams are taken from the dependency tree: a stream with data ready goes ahead of the streams which depend on it,
+ * and siblings share what is left in proportion to their weights.
+ *
+ * Siblings share by stride scheduling. Each stream's pass advances by the length of each frame it sends over its
+ * weight, and of the siblings with data, the one with the lowest pass goes next. A stream which has been idle starts
+ * from where its siblings are, rather than with the credit of the time it had nothing to send.
+ *
+ * Streams which are closed, or have only been named by PRIORITY frames, stay in the tree so that others may depend on
+ * them, but only the latest MAX_RETAINED of them, so that a peer cannot grow the tree without bound. RFC 7540
+ * Section 5.3.4.
+ */
+public final class PriorityTree extends WriteScheduler {
+
+    public static final int DEFAULT_WEIGHT = 16;
+    public static final int MAX_WEIGHT = 256;
+
+    // Closed and idle streams kept in the tree for other streams to depend on.
+    public static final int MAX_RETAINED = 100;
+
+    private static final Comparator<Node> BY_PASS = Comparator.<Node>comparingLong(node -> node.pass)
+            .thenComparingLong(node -> node.order);
+
+    private final Node root = new Node(0);
+    private final Map<Integer, Node> nodes = new HashMap<>();
+    // In the order they were retained, oldest first.
+    private final LinkedHashSet<Node> retained = new LinkedHashSet<>();
+    private final List<Node> path = new ArrayList<>();
+    private long order;
+
+    private static final class Node extends StreamQueue {
+
+        Node parent;
+        int weight = DEFAULT_WEIGHT;
+        final List<Node> children = new ArrayList<>();
+        // The children with frames to send, themselves or below them, by pass. Created when first needed.
+        PriorityQueue<Node> ready;
+        long pass;
+        // To keep siblings with equal passes in the order they became ready.
+        long order;
+        // The pass of the child chosen last, which a child becoming ready starts from.
+        long virtualTime;
+        // In the parent's ready queue, as every node with frames to send, itself or below it, is.
+        boolean scheduled;
+
+        Node(int streamId) {
+            super(streamId);
+        }
+
+        boolean isReady() {
+            return hasFrames() || ready != null && !ready.isEmpty();
+        }
+
+        PriorityQueue<Node> ready() {
+            if (ready == null) {
+                ready = new PriorityQueue<>(BY_PASS);
+            }
+            return ready;
+        }
+    }
+
+    @Override
+    StreamQueue queue(int streamId) {
+        return nodes.get(streamId);
+    }
+
+    @Override
+    Iterable<? extends StreamQueue> queues() {
+        return nodes.values();
+    }
+
+    @Override
+    void onReady(StreamQueue queue) {
+        schedule((Node) queue);
+    }
+
+    @Override
+    void onDrained(StreamQueue queue) {
+        Node node = (Node) queue;
+        if (node.scheduled) {
+            unschedule(node);
+        }
+        retainIfDone(node);
+    }
+
+    @Override
+    Frames.HttpFrame pollData() {
+        if (root.ready == null || root.ready.isEmpty()) {
+            return null;
+        }
+
+        path.clear();
+        Node node = root;
+        while (!node.hasFrames()) {
+            Node child = node.ready.poll();
+            child.scheduled = false;
+            node.virtualTime = child.pass;
+            path.add(child);
+            node = child;
+        }
+        Frames.HttpFrame frame = take(node);
+        long stride = (long) Math.max(1, frame.length()) * MAX_WEIGHT;
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Node chosen = path.get(i);
+            chosen.pass += stride / chosen.weight;
+            if (chosen.isReady()) {
+                chosen.order = order++;
+                chosen.parent.ready().add(chosen);
+                chosen.scheduled = true;
+            }
+        }
+        retainIfDone(node);
+        return frame;
+    }
+
+    @Override
+    public synchronized void open(int streamId) {
+        Node node = nodes.get(streamId);
+        if (node == null) {
+            node = add(streamId);
+        }
+        node.open = true;
+        retained.remove(node);
+    }
+
+    /**
+     * Keep the stream in the tree for others to depend on, once its frames have been written.
+     */
+    @Override
+    public synchronized void close(int streamId) {
+        Node node = nodes.get(streamId);
+        if (node != null && node.open) {
+            node.open = false;
+            if (!node.hasFrames()) {
+                retain(node);
+            }
+        }
+    }
+
+    /**
+     * Move a stream in the tree, as described in RFC 7540 Section 5.3.3.
+     */
+    @Override
+    public synchronized void prioritize(int streamId, int dependency, int weight, boolean exclusive) {
+        Node node = nodes.get(streamId);
+        if (node == null) {
+            node = add(streamId);
+            retain(node);
+        }
+        Node parent;
+        if (dependency == 0) {
+            parent = root;
+        } else {
+            parent = nodes.get(dependency);
+            if (parent == null) {
+                // A stream not in the tree is given the default priority. RFC 7540 Section 5.3.1.
+                parent = add(dependency);
+                retain(parent);
+                if (!nodes.containsKey(streamId)) {
+                    return; // Evicted to make room for its own dependency.
+                }
+            }
+        }
+        for (Node ancestor = parent.parent; ancestor != null; ancestor = ancestor.parent) {
+            if (ancestor == node) {
+                // Moving a stream below one of its own dependents moves the dependent up first.
+                move(parent, node.parent, false);
+                break;
+            }
+        }
+        node.weight = weight;
+        move(node, parent, exclusive);
+    }
+
+    /**
+     * @return The number of streams in the tree, which bounds its memory.
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    private Node add(int streamId) {
+        Node node = new Node(streamId);
+        node.parent = root;
+        root.children.add(node);
+        nodes.put(streamId, node);
+        return node;
+    }
+
+    private void retainIfDone(Node node) {
+        if (!node.open && !node.hasFrames() && nodes.get(node.streamId) == node) {
+            retain(node);
+        }
+    }
+
+    /**
+     * Put a node which has frames to send in its parent's ready queue, and so on up, as far as need be.
+     */
+    private void schedule(Node node) {
+        while (node != root && !node.scheduled) {
+            node.pass = Math.max(node.pass, node.parent.virtualTime);
+            node.order = order++;
+            node.parent.ready().add(node);
+            node.scheduled = true;
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Take a node which no longer has frames to send out of its parent's ready queue, and so on up.
+     */
+    private void unschedule(Node node) {
+        while (node != root && node.scheduled && !node.isReady()) {
+            node.parent.ready.remove(node);
+            node.scheduled = false;
+            node = node.parent;
+        }
+    }
+
+    private void move(Node node, Node parent, boolean exclusive) {
+        Node oldParent = node.parent;
+        oldParent.children.remove(node);
+        if (node.scheduled) {
+            oldParent.ready.remove(node);
+            node.scheduled = false;
+            unschedule(oldParent);
+        }
+        if (exclusive) {
+            // The new parent's dependents become the node's. RFC 7540 Section 5.3.3.
+            for (Node child : parent.children) {
+                child.parent = node;
+                node.children.add(child);
+                if (child.scheduled) {
+                    node.ready().add(child);
+                }
+            }
+            parent.children.clear();
+            if (parent.ready != null) {
+                parent.ready.clear();
+            }
+            node.virtualTime = parent.virtualTime;
+        }
+        node.parent = parent;
+        parent.children.add(node);
+        if (node.isReady()) {
+            schedule(node);
+        } else {
+            unschedule(parent);
+        }
+    }
+
+    /**
+     * Keep a closed or idle stream, forgetting the oldest kept if there are too many.
+     */
+    private void retain(Node node) {
+        retained.add(node);
+        while (retained.size() > MAX_RETAINED) {
+            Node oldest = retained.iterator().next();
+            retained.remove(oldest);
+            remove(oldest);
+        }
+    }
+
+    /**
+     * Take a stream out of the tree, its dependents sharing its weight in proportion to their own.
+     * RFC 7540 Section 5.3.4.
+     */
+    private void remove(Node node) {
+        nodes.remove(node.streamId);
+        forget(node);
+        int totalWeight = 0;
+        for (Node child : node.children) {
+            totalWeight += child.weight;
+        }
+        for (Node child : new ArrayList<>(node.children)) {
+            child.weight = Math.max(1, node.weight * child.weight / totalWeight);
+            move(child, node.parent, false);
+        }
+        node.parent.children.remove(node);
+        if (node.scheduled) {
+            node.parent.ready.remove(node);
+            node.scheduled = false;
+            unschedule(node.parent);
+        }
+    }
+}
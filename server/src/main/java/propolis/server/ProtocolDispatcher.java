@@ -0,0 +1,130 @@
+package propolis.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves HTTP/1.1 and HTTP/2 with prior knowledge on the same port. RFC 7540 Section 3.4.
+ *
+ * The first bytes of each connection are compared with the HTTP/2 client preface. A connection which sends all of
+ * it is served by a Session, which sends the server preface at once. Any other is served by the HTTP/1.1 templates,
+ * starting with the bytes already read, so none are lost.
+ * Only as much is read as is needed to decide, which for an HTTP/1.1 request is usually its first packet.
+ */
+public class ProtocolDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(ProtocolDispatcher.class);
+
+    public static TcpServer.TcpServable tcpServable(Handlers.Http11Handler handler) {
+        return tcpServable(handler, Templates.KeepAlive.DEFAULT, SessionScheduler.shared());
+    }
+
+    public static TcpServer.TcpServable tcpServable(Handlers.Http11Handler handler, Templates.KeepAlive keepAlive, SessionScheduler scheduler) {
+        return client -> dispatch(client, handler, keepAlive, scheduler);
+    }
+
+    public static NioServer.NioServable nioServable(Handlers.Http11Handler handler) {
+        return nioServable(handler, Templates.KeepAlive.DEFAULT);
+    }
+
+    public static NioServer.NioServable nioServable(Handlers.Http11Handler handler, Templates.KeepAlive keepAlive) {
+        NioServer.NioServable http11 = Templates.nioHandlerTemplate(handler, keepAlive);
+        return connection -> new NioDispatcher(connection, http11, handler, keepAlive);
+    }
+
+    private static void dispatch(Socket client, Handlers.Http11Handler handler, Templates.KeepAlive keepAlive,
+                                 SessionScheduler scheduler) throws IOException {
+        client.setSoTimeout((int) keepAlive.idleTimeout.toMillis());
+        InputStream input = client.getInputStream();
+        byte[] peeked = new byte[HttpComponents.PREFACE.length];
+        int peekedLength = 0;
+        try {
+            while (peekedLength < peeked.length && matchesPreface(peeked, peekedLength)) {
+                int count = input.read(peeked, peekedLength, peeked.length - peekedLength);
+                if (count < 0) {
+                    break;
+                }
+                peekedLength += count;
+            }
+        } catch (SocketTimeoutException e) {
+            log.debug("Closing connection. " + e.getMessage());
+            Utils.closeQuietly(client);
+            return;
+        }
+
+        if (peekedLength == peeked.length && matchesPreface(peeked, peekedLength)) {
+            client.setSoTimeout(0);
+            Session.startSession(new HttpIOStream(client), scheduler, handler).run();
+        } else {
+            InputStream replayed = new SequenceInputStream(new ByteArrayInputStream(peeked, 0, peekedLength), input);
+            Templates.handlerTemplate(client, replayed, handler, keepAlive);
+        }
+    }
+
+    private static boolean matchesPreface(byte[] bytes, int length) {
+        return Arrays.equals(bytes, 0, length, HttpComponents.PREFACE, 0, length);
+    }
+
+    /**
+     * Collects the first bytes of a connection until they match the preface, or do not, then hands the connection,
+     * and the bytes, to the protocol's handler.
+     */
+    private static class NioDispatcher implements NioConnection.Handler {
+
+        private final NioServer.NioServable http11;
+        private final Handlers.Http11Handler handler;
+        private final byte[] peeked = new byte[HttpComponents.PREFACE.length];
+        private int peekedLength;
+        private boolean dispatched;
+
+        NioDispatcher(NioConnection connection, NioServer.NioServable http11, Handlers.Http11Handler handler,
+                      Templates.KeepAlive keepAlive) {
+            this.http11 = http11;
+            this.handler = handler;
+            connection.getEventLoop().schedule(() -> {
+                if (!dispatched && !connection.isClosed()) {
+                    log.debug("Closing idle connection. " + connection);
+                    connection.close();
+                }
+            }, keepAlive.idleTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void onRead(NioConnection connection, ByteBuffer input) throws IOException {
+            while (peekedLength < peeked.length && input.hasRemaining()) {
+                byte b = input.get();
+                boolean matches = b == HttpComponents.PREFACE[peekedLength];
+                peeked[peekedLength++] = b;
+                if (!matches) {
+                    dispatch(connection, http11.handleConnection(connection), input);
+                    return;
+                }
+            }
+            if (peekedLength == peeked.length) {
+                peekedLength = 0; // The preface is for the dispatcher alone.
+                dispatch(connection, Session.startNioSession(connection, handler), input);
+            }
+        }
+
+        private void dispatch(NioConnection connection, NioConnection.Handler handler, ByteBuffer input) throws IOException {
+            dispatched = true;
+            connection.setHandler(handler);
+            if (peekedLength > 0) {
+                handler.onRead(connection, ByteBuffer.wrap(peeked, 0, peekedLength));
+            }
+            if (input.hasRemaining()) {
+                handler.onRead(connection, input);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package propolis.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * A request body which arrives in pieces, on the thread receiving them, to be read by a handler on a worker.
+ * Reads wait for data until the body ends, or is abandoned, as when its stream is reset.
+ *
+ * The bytes read are counted until the receiving side takes the count, so that it may ask the peer for more, as by
+ * crediting a flow control window. It is told whenever there is a count to take.
+ */
+final class RequestBodyStream extends InputStream {
+
+    private final Runnable onRead;
+    private final ArrayDeque<byte[]> pieces = new ArrayDeque<>();
+    // How far the first piece has been read.
+    private int position;
+    private int buffered;
+    private int unclaimed;
+    private boolean ended;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * @param onRead Called whenever bytes are counted as read while no count was waiting to be taken.
+     */
+    RequestBodyStream(Runnable onRead) {
+        this.onRead = onRead;
+    }
+
+    /**
+     * Add a piece of the body. Once the reader has closed the stream, the piece is dropped, and counted as read.
+     */
+    void offer(byte[] bytes) {
+        boolean notify;
+        synchronized (this) {
+            if (ended || failure != null || bytes.length == 0) {
+                return;
+            }
+            if (!closed) {
+                pieces.add(bytes);
+                buffered += bytes.length;
+                notifyAll();
+                return;
+            }
+            notify = unclaimed == 0;
+            unclaimed += bytes.length;
+        }
+        if (notify) {
+            onRead.run();
+        }
+    }
+
+    /**
+     * The body is complete, so reads end once what is buffered has been read.
+     */
+    synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Fail any read of the body which has not already been read to its end, and drop what is buffered.
+     *
+     * @return The number of bytes received which have not been counted in takeRead, whether read or not.
+     */
+    synchronized int abandon(IOException cause) {
+        if (!ended || !pieces.isEmpty()) {
+            failure = cause;
+        }
+        int outstanding = buffered + unclaimed;
+        pieces.clear();
+        position = 0;
+        buffered = 0;
+        unclaimed = 0;
+        notifyAll();
+        return outstanding;
+    }
+
+    /**
+     * @return The number of bytes read since the count was last taken.
+     */
+    synchronized int takeRead() {
+        int count = unclaimed;
+        unclaimed = 0;
+        return count;
+    }
+
+    /**
+     * @return The number of bytes received and not yet read.
+     */
+    @Override
+    public synchronized int available() {
+        return buffered;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int count = 0;
+        boolean notify;
+        synchronized (this) {
+            while (pieces.isEmpty() && !ended && failure == null && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the request body!");
+                }
+            }
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            if (pieces.isEmpty()) {
+                return -1;
+            }
+            while (count < length && !pieces.isEmpty()) {
+                byte[] piece = pieces.peek();
+                int n = Math.min(length - count, piece.length - position);
+                System.arraycopy(piece, position, bytes, offset + count, n);
+                count += n;
+                position += n;
+                if (position == piece.length) {
+                    pieces.remove();
+                    position = 0;
+                }
+            }
+            buffered -= count;
+            notify = unclaimed == 0;
+            unclaimed += count;
+        }
+        if (notify) {
+            onRead.run();
+        }
+        return count;
+    }
+
+    /**
+     * Stop reading. What is buffered, and whatever more arrives, is dropped, and counted as read.
+     */
+    @Override
+    public void close() {
+        boolean notify;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pieces.clear();
+            position = 0;
+            notify = unclaimed == 0 && buffered > 0;
+            unclaimed += buffered;
+            buffered = 0;
+            notifyAll();
+        }
+        if (notify) {
+            onRead.run();
+        }
+    }
+}
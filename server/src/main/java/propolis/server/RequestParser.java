@@ -0,0 +1,332 @@
+package propolis.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An incremental parser for the head of an HTTP/1.1 request, working on bytes. RFC 7230 Section 3.
+ *
+ * The head may arrive in any number of pieces. Each byte is checked as it is copied into the parser's own buffer,
+ * so the caller is free to reuse its buffer between calls, and parsing stops at the end of the head, leaving the
+ * body, and any pipelined request, in the input.
+ * The method, target, version and headers are kept as slices of that buffer until the head is complete, and only
+ * then made into a Request.
+ */
+public class RequestParser {
+
+    public static final int MAX_HEAD_LENGTH = 16384;
+    public static final int MAX_HEADERS = 100;
+
+    private static final int VERSION_LENGTH = "HTTP/1.1".length();
+
+    // Reused rather than allocated for each request.
+    private static final String[] KNOWN_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE", "CONNECT", "PATCH"};
+    private static final String[] KNOWN_VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+    private static final String[] KNOWN_NAMES = {
+            "Host", "Connection", "Content-Length", "Content-Type", "Transfer-Encoding", "Accept", "Accept-Encoding",
+            "Accept-Language", "User-Agent", "Cookie", "Upgrade", "HTTP2-Settings", "Expect", "TE"
+    };
+
+    // RFC 7230 Section 3.2.6.
+    private static final boolean[] TCHAR = new boolean[256];
+
+    static {
+        for (char c : "!#$%&'*+-.^_`|~0123456789".toCharArray()) {
+            TCHAR[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            TCHAR[c] = true;
+            TCHAR[Character.toUpperCase(c)] = true;
+        }
+    }
+
+    /**
+     * A request which cannot be served, to be answered with the status given, usually 400, and the connection closed.
+     */
+    public static class BadRequestException extends IOException {
+
+        public final int status;
+
+        public BadRequestException(String message) {
+            this(400, message);
+        }
+
+        public BadRequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private enum State {
+        METHOD, TARGET, VERSION, LINE_END, HEADER_START, NAME, VALUE, COMPLETE
+    }
+
+    private byte[] head = new byte[512];
+    private int length;
+    private State state = State.METHOD;
+    private State afterLineEnd;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    // The name start, name end, value start and value end of each header, in turn.
+    private int[] fields = new int[4 * 16];
+    private int fieldCount;
+    private long contentLength = -1;
+    private boolean chunked;
+
+    /**
+     * Parse as much of the head as the input holds, consuming no more of the input than the head.
+     *
+     * @return True once the head is complete.
+     * @throws BadRequestException If the head is malformed or too large.
+     */
+    public boolean parse(ByteBuffer input) throws BadRequestException {
+        while (state != State.COMPLETE && input.hasRemaining()) {
+            int c = input.get() & 0xff;
+            int position = append(c);
+            int field = 4 * fieldCount;
+            switch (state) {
+                case METHOD:
+                    if (c == ' ' && position > 0) {
+                        methodEnd = position;
+                        targetStart = length;
+                        state = State.TARGET;
+                    } else if (!TCHAR[c]) {
+                        throw new BadRequestException("Invalid method.");
+                    }
+                    break;
+                case TARGET:
+                    if (c == ' ' && position > targetStart) {
+                        targetEnd = position;
+                        versionStart = length;
+                        state = State.VERSION;
+                    } else if (c <= ' ' || c >= 0x7f) {
+                        throw new BadRequestException("Invalid request target.");
+                    }
+                    break;
+                case VERSION:
+                    if (c == '\r' || c == '\n') {
+                        checkVersion(position);
+                        endLine(c, State.HEADER_START);
+                    } else if (position - versionStart == VERSION_LENGTH) {
+                        throw new BadRequestException("Invalid version.");
+                    }
+                    break;
+                case LINE_END:
+                    if (c != '\n') {
+                        throw new BadRequestException("Expected LF after CR.");
+                    }
+                    state = afterLineEnd;
+                    break;
+                case HEADER_START:
+                    if (c == '\r' || c == '\n') {
+                        if (chunked && contentLength >= 0) {
+                            // A way to smuggle a request past anything between here and the client. RFC 7230 Section 3.3.3.
+                            throw new BadRequestException("Both Transfer-Encoding and Content-Length.");
+                        }
+                        endLine(c, State.COMPLETE);
+                    } else if (c == ' ' || c == '\t') {
+                        throw new BadRequestException("Obsolete line folding is not accepted."); // RFC 7230 Section 3.2.4.
+                    } else if (!TCHAR[c]) {
+                        throw new BadRequestException("Invalid header name.");
+                    } else {
+                        if (fieldCount == MAX_HEADERS) {
+                            throw new BadRequestException("More than " + MAX_HEADERS + " headers.");
+                        }
+                        if (fields.length < field + 4) {
+                            fields = Arrays.copyOf(fields, 2 * fields.length);
+                        }
+                        fields[field] = position;
+                        state = State.NAME;
+                    }
+                    break;
+                case NAME:
+                    if (c == ':') {
+                        fields[field + 1] = position;
+                        fields[field + 2] = length;
+                        fields[field + 3] = length;
+                        state = State.VALUE;
+                    } else if (!TCHAR[c]) { // Including whitespace before the colon. RFC 7230 Section 3.2.4.
+                        throw new BadRequestException("Invalid header name.");
+                    }
+                    break;
+                case VALUE:
+                    if (c == '\r' || c == '\n') {
+                        endField();
+                        endLine(c, State.HEADER_START);
+                    } else if (c == ' ' || c == '\t') {
+                        if (fields[field + 2] == position) { // Leading whitespace is not part of the value.
+                            fields[field + 2] = length;
+                            fields[field + 3] = length;
+                        }
+                    } else if (c < ' ' || c == 0x7f) {
+                        throw new BadRequestException("Invalid header value.");
+                    } else {
+                        fields[field + 3] = length; // Trailing whitespace is not either.
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected state! " + state);
+            }
+        }
+        return state == State.COMPLETE;
+    }
+
+    public boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * @return True if any of a head has been parsed since the last reset.
+     */
+    public boolean hasStarted() {
+        return length > 0;
+    }
+
+    /**
+     * @return The Content-Length of the request, or -1 if it has none.
+     */
+    public long contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return True if the body has the chunked transfer coding, and so is delimited by it.
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @return The parsed request. Repeated headers are joined into one comma separated list. RFC 7230 Section 3.2.2.
+     */
+    public HttpComponents.Request request() {
+        if (state != State.COMPLETE) {
+            throw new IllegalStateException("The request head is incomplete!");
+        }
+        Map<String, String> headers = new HashMap<>(Math.max(16, 2 * fieldCount));
+        for (int i = 0; i < 4 * fieldCount; i += 4) {
+            String name = string(fields[i], fields[i + 1], KNOWN_NAMES);
+            String value = string(fields[i + 2], fields[i + 3], null);
+            headers.merge(name, value, (first, second) -> first + ", " + second);
+        }
+        return new HttpComponents.Request(
+                string(versionStart, versionStart + VERSION_LENGTH, KNOWN_VERSIONS),
+                string(0, methodEnd, KNOWN_METHODS),
+                string(targetStart, targetEnd, null),
+                headers);
+    }
+
+    /**
+     * Ready the parser for the next request, keeping its buffers.
+     */
+    public void reset() {
+        length = 0;
+        state = State.METHOD;
+        fieldCount = 0;
+        contentLength = -1;
+        chunked = false;
+    }
+
+    private int append(int c) throws BadRequestException {
+        if (length == head.length) {
+            if (length == MAX_HEAD_LENGTH) {
+                throw new BadRequestException("Request head exceeds " + MAX_HEAD_LENGTH + " bytes.");
+            }
+            head = Arrays.copyOf(head, Math.min(2 * length, MAX_HEAD_LENGTH));
+        }
+        head[length] = (byte) c;
+        return length++;
+    }
+
+    private void endLine(int c, State next) {
+        if (c == '\r') {
+            afterLineEnd = next;
+            state = State.LINE_END;
+        } else {
+            state = next; // A bare LF is accepted as a line end. RFC 7230 Section 3.5.
+        }
+    }
+
+    private void checkVersion(int end) throws BadRequestException {
+        int i = versionStart;
+        if (end - i != VERSION_LENGTH
+                || head[i] != 'H' || head[i + 1] != 'T' || head[i + 2] != 'T' || head[i + 3] != 'P' || head[i + 4] != '/'
+                || !isDigit(head[i + 5]) || head[i + 6] != '.' || !isDigit(head[i + 7])) {
+            throw new BadRequestException("Invalid version.");
+        }
+    }
+
+    private void endField() throws BadRequestException {
+        int field = 4 * fieldCount++;
+        if (equalsIgnoreCase(fields[field], fields[field + 1], "Content-Length")) {
+            long value = parseContentLength(fields[field + 2], fields[field + 3]);
+            if (contentLength >= 0 && contentLength != value) {
+                throw new BadRequestException("Conflicting Content-Length headers.");
+            }
+            contentLength = value;
+        } else if (equalsIgnoreCase(fields[field], fields[field + 1], "Transfer-Encoding")) {
+            // Chunked is the only coding understood, so must be the only one. RFC 7230 Section 3.3.1.
+            if (chunked || !equalsIgnoreCase(fields[field + 2], fields[field + 3], "chunked")) {
+                throw new BadRequestException(501, "Unsupported transfer coding.");
+            }
+            chunked = true;
+        }
+    }
+
+    private long parseContentLength(int start, int end) throws BadRequestException {
+        if (start == end || end - start > 18) {
+            throw new BadRequestException("Invalid Content-Length.");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (!isDigit(head[i])) {
+                throw new BadRequestException("Invalid Content-Length.");
+            }
+            value = 10 * value + head[i] - '0';
+        }
+        return value;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (((head[start + i] ^ name.charAt(i)) & ~0x20) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param known Strings to return, rather than a new one, if the bytes match one exactly.
+     */
+    private String string(int start, int end, String[] known) {
+        if (known != null) {
+            outer:
+            for (String candidate : known) {
+                if (candidate.length() != end - start) {
+                    continue;
+                }
+                for (int i = 0; i < candidate.length(); i++) {
+                    if (head[start + i] != candidate.charAt(i)) {
+                        continue outer;
+                    }
+                }
+                return candidate;
+            }
+        }
+        return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
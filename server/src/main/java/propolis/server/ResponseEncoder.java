@@ -0,0 +1,161 @@
+package propolis.server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes HTTP/1.1 response heads as bytes, from tables of pre-encoded status lines and header names.
+ * Anything not in the tables is encoded a character at a time, as ISO-8859-1. RFC 7230 Section 3.2.4.
+ *
+ * An encoder reuses its buffer, so belongs to one connection.
+ */
+class ResponseEncoder {
+
+    private static final int MAX_STATUS = 599;
+
+    private static final byte[][] STATUS_LINES = new byte[MAX_STATUS + 1][];
+    private static final String[] STATUS_REASONS = new String[MAX_STATUS + 1];
+    private static final Map<String, byte[]> HEADER_NAMES = new HashMap<>();
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    // IMF-fixdate, RFC 7231 Section 7.1.1.1. The RFC 1123 formatter does not pad the day to two digits.
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    private static volatile DateLine dateLine;
+
+    static {
+        for (Map.Entry<Integer, String> status : HttpComponents.statusReason.entrySet()) {
+            int code = status.getKey();
+            if (code >= 100 && code <= MAX_STATUS) {
+                STATUS_REASONS[code] = status.getValue();
+                STATUS_LINES[code] = latin1(String.format("%s %d %s\r\n", HttpComponents.Message.HTTP_11, code, status.getValue()));
+            }
+        }
+        for (String name : new String[]{
+                "Content-Length", "Content-Type", "Connection", "Date", "Server", "Transfer-Encoding", "Cache-Control",
+                "Content-Encoding", "Last-Modified", "ETag", "Location", "Set-Cookie", "Vary", "Upgrade", "Trailer"}) {
+            HEADER_NAMES.put(name, latin1(name + ": "));
+        }
+    }
+
+    /**
+     * The Date header for the current second, shared by every response in it.
+     */
+    private static final class DateLine {
+        final long second;
+        final byte[] bytes;
+
+        DateLine(long second) {
+            this.second = second;
+            this.bytes = latin1("Date: " + DATE_FORMAT.format(Instant.ofEpochSecond(second)) + "\r\n");
+        }
+    }
+
+    private byte[] buffer = new byte[512];
+    private int length;
+
+    /**
+     * Encode the status line and headers, adding a Date header unless the response has one.
+     *
+     * @return The buffer holding the head, from zero to the length returned by length(). Valid until the next call.
+     */
+    byte[] encode(HttpComponents.Response response) {
+        length = 0;
+        statusLine(response);
+        boolean dated = false;
+        if (response.headers != null) {
+            for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                String name = header.getKey();
+                byte[] encodedName = HEADER_NAMES.get(name);
+                if (encodedName != null) {
+                    append(encodedName);
+                } else {
+                    append(name);
+                    append(':');
+                    append(' ');
+                }
+                append(header.getValue());
+                append(CRLF);
+                dated = dated || name.equalsIgnoreCase("Date");
+            }
+        }
+        if (!dated) {
+            append(dateLine());
+        }
+        append(CRLF);
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return The Date header line, regenerated at most once a second.
+     */
+    static byte[] dateLine() {
+        long second = System.currentTimeMillis() / 1000;
+        DateLine line = dateLine;
+        if (line == null || line.second != second) {
+            line = new DateLine(second);
+            dateLine = line;
+        }
+        return line.bytes;
+    }
+
+    private void statusLine(HttpComponents.Response response) {
+        int status = response.status;
+        if (status >= 100 && status <= MAX_STATUS && STATUS_LINES[status] != null
+                && HttpComponents.Message.HTTP_11.equals(response.version)
+                && (response.reason == null || response.reason.equals(STATUS_REASONS[status]))) {
+            append(STATUS_LINES[status]);
+            return;
+        }
+        String reason = response.reason != null ? response.reason : HttpComponents.statusReason.get(status);
+        append(response.version);
+        append(' ');
+        append(Integer.toString(status));
+        append(' ');
+        append(reason != null ? reason : "");
+        append(CRLF);
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void append(String string) {
+        int count = string.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            char c = string.charAt(i);
+            buffer[length++] = (byte) (c <= 0xff ? c : '?');
+        }
+    }
+
+    private void append(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensureCapacity(int count) {
+        if (buffer.length - length < count) {
+            buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, length + count));
+        }
+    }
+
+    private static byte[] latin1(String string) {
+        return string.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
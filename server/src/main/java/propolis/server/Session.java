@@ -4,88 +4,546 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
-public class Session {
+/**
+ * The state of an HTTP/2 connection.
+ *
+ * On a blocking connection the connection's own thread reads frames (see run), while handling them and writing
+ * replies is done by a SessionScheduler shared with other sessions.
+ * On a NioServer connection, all of that happens on the connection's event loop.
+ *
+ * Requests are answered by an application handler on a pool of workers, each on a thread of its own, so that
+ * however slow one response is, the others on the connection, and the handling of frames, carry on.
+ *
+ * On a blocking connection, frames queued while the writer is busy are written together, in one write per batch.
+ * Queued DATA is written in the order of the streams' priorities, by a WriteScheduler for the Prioritization in use.
+ * A session may also be corked, to hold back a multi-frame response until all of its frames are ready.
+ */
+public class Session implements Runnable {
 
     private static final Logger log = LoggerFactory.getLogger(Session.class);
 
+    // Roughly one TCP segment. Smaller batches may wait out the flush latency budget for company.
+    private static final int SMALL_BATCH_SIZE = 1400;
+
+    // The most written in one go, so that frames sent meanwhile on more important streams need not wait long.
+    private static final int MAX_BATCH_SIZE = 4 * Frames.SETTINGS_MAX_FRAME_LENGTH;
+
+    private static final String HTTP_2 = "HTTP/2.0";
+
+    private static final Handlers.Http11Handler NOT_FOUND = (request, response, body) -> {
+        response.setStatus(404);
+        return null;
+    };
+
+    /**
+     * The ways the DATA of concurrent responses may be ordered.
+     */
+    public enum Prioritization {
+        // By dependencies and weights. RFC 7540 Section 5.3.
+        DEPENDENCY_TREE,
+        // By urgency, and whether responses are incremental, for clients which do not use the tree. RFC 9218.
+        URGENCY
+    }
+
     private HttpIOStream httpIOStream;
-    private Map<Integer, Stream> streams = new HashMap<>();
-    private LinkedBlockingQueue<Frames.HttpFrame> sendFrames = new LinkedBlockingQueue<>();
+    private final Consumer<Frames.HttpFrame> frameWriter;
+    private final SessionScheduler scheduler;
+    private final Executor executor;
+    private final Executor workers;
+    // The connection written to without blocking, for sessions served by NioServer.
+    private final NioConnection connection;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicInteger corks = new AtomicInteger();
+    private volatile long flushLatencyBudgetNanos;
+    private volatile boolean closed;
+    private final StreamTable streams = new StreamTable();
+    // Frames on stream 0 apply to the connection as a whole.
+    private final Stream connectionStream = new Stream(this::sendFrame);
+    private volatile WriteScheduler sendFrames = new PriorityTree();
     private Settings settings = new Settings();
+    private final Map<Frames.SettingsFrame.Setting, Integer> peerSettings = new EnumMap<>(Frames.SettingsFrame.Setting.class);
+    private Handlers.Http11Handler handler = NOT_FOUND;
+    // One HPACK context each way, shared by every stream on the connection. RFC 7541 Section 2.2.
+    // The encoder's lock is held from encoding a header block until it has been sent, to send them in order.
+    private final Hpack encoder = new Hpack();
+    private final Hpack decoder = new Hpack();
+    private final FrameFactory frameFactory = new FrameFactory(decoder);
+    private final FlowControl flowControl = new FlowControl(this::sendFrame);
+    // The stream whose header block awaits CONTINUATION frames, or 0 if none does.
+    private int continuedStreamId;
+    private boolean continuedEndStream;
+    private byte[] headerBlock = new byte[0];
+    private int headerBlockLength;
+    private boolean goingAway;
 
     public static Session createSession(Socket client) {
+        return createSession(client, SessionScheduler.shared());
+    }
+
+    public static Session createSession(Socket client, SessionScheduler scheduler) {
+        return createSession(client, scheduler, NOT_FOUND);
+    }
+
+    /**
+     * @param handler Answers each request, on one of the scheduler's workers.
+     */
+    public static Session createSession(Socket client, SessionScheduler scheduler, Handlers.Http11Handler handler) {
         HttpIOStream httpIOStream = new HttpIOStream(client);
         try {
             httpIOStream.readConnectionPreface();
-            httpIOStream.writeConnectionPreface();
         } catch (IOException e) {
             throw new RuntimeException("Unhandled failure while setting up HTTP2 strean!", e);
         }
-        return new Session(httpIOStream);
+        return startSession(httpIOStream, scheduler, handler);
+    }
+
+    /**
+     * A session on a connection whose client preface has already been read, such as by ProtocolDispatcher.
+     * The server preface, a SETTINGS frame, is written at once, without waiting for the client's.
+     * RFC 7540 Section 3.5.
+     */
+    public static Session startSession(HttpIOStream httpIOStream, SessionScheduler scheduler, Handlers.Http11Handler handler) {
+        try {
+            httpIOStream.writeFrame(serverPreface());
+        } catch (IOException e) {
+            throw new RuntimeException("Unhandled failure while setting up HTTP2 strean!", e);
+        }
+        Session session = new Session(httpIOStream, scheduler);
+        session.handler = handler;
+        return session;
     }
 
+    /**
+     * A session on an HTTP/1.1 connection which has just been answered with 101 Switching Protocols, to h2c.
+     * RFC 7540 Section 3.2.
+     * The server preface is written at once, then the client's read, which follows the upgrade request.
+     * The request which asked for the upgrade is served as stream 1.
+     *
+     * @param settings The client's settings, from its HTTP2-Settings header.
+     */
+    public static Session upgradeSession(HttpIOStream httpIOStream, SessionScheduler scheduler, Handlers.Http11Handler handler,
+                                         Map<Frames.SettingsFrame.Setting, Integer> settings, HttpComponents.Request request) {
+        Session session = startSession(httpIOStream, scheduler, handler);
+        session.upgrade(settings, request);
+        try {
+            httpIOStream.readConnectionPreface();
+        } catch (IOException e) {
+            session.close();
+            throw new RuntimeException("Unhandled failure while setting up HTTP2 strean!", e);
+        }
+        return session;
+    }
+
+    /**
+     * The counterpart of upgradeSession for connections served by NioServer.
+     */
+    static NioConnection.Handler upgradeNioSession(NioConnection connection, Handlers.Http11Handler handler,
+                                                   Map<Frames.SettingsFrame.Setting, Integer> settings, HttpComponents.Request request) {
+        NioSessionHandler sessionHandler = new NioSessionHandler(connection, false, handler);
+        sessionHandler.sendServerPreface();
+        sessionHandler.session.upgrade(settings, request);
+        return sessionHandler;
+    }
+
+    /**
+     * Decode the value of an HTTP2-Settings header, the base64url encoded payload of a SETTINGS frame.
+     * RFC 7540 Section 3.2.1.
+     *
+     * @return The settings, or null if the value is not a valid encoding of them.
+     */
+    static Map<Frames.SettingsFrame.Setting, Integer> decodeSettings(String value) {
+        byte[] payload;
+        try {
+            payload = Base64.getUrlDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (payload.length % 6 != 0) {
+            return null;
+        }
+        Frames.HttpFrame frame = new Frames.HttpFrame(0, Frames.Type.SETTINGS, 0, payload);
+        try {
+            return new FrameFactory().createSettingsFrame(frame).settings;
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static Frames.HttpFrame serverPreface() {
+        return new Frames.SettingsFrame().asHttpFrame();
+    }
+
+    /**
+     * A TcpServable, serving HTTP/2 on the connection until it is closed.
+     */
+    public static void serve(Socket client) {
+        createSession(client).run();
+    }
+
+    /**
+     * The counterpart of createSession for connections served by NioServer.
+     * Frames are decoded and handled on the connection's event loop, and written without blocking.
+     */
+    public static NioConnection.Handler createNioSession(NioConnection connection) {
+        return new NioSessionHandler(connection, false, NOT_FOUND);
+    }
+
+    /**
+     * A NioServable serving HTTP/2, with prior knowledge, answering each request with the handler.
+     */
+    public static NioServer.NioServable nioServable(Handlers.Http11Handler handler) {
+        return connection -> new NioSessionHandler(connection, false, handler);
+    }
+
+    /**
+     * The counterpart of startSession for connections served by NioServer.
+     */
+    static NioConnection.Handler startNioSession(NioConnection connection, Handlers.Http11Handler handler) {
+        return new NioSessionHandler(connection, true, handler);
+    }
+
+    /**
+     * Buffer the queued frames, in priority order and up to a batch, then flush them in one write unless corked.
+     * Runs on the scheduler. A small batch is held back for up to the flush latency budget, in case more frames
+     * follow, and what is left over from a full one is written in another turn.
+     */
     private void writeHandler() {
-        while (true) { // TODO: Terminate condition.
-            try {
-                httpIOStream.writeFrame(sendFrames.take());
-            } catch (IOException | InterruptedException e) {
-                throw new RuntimeException("Unhandled failure!", e);
+        writeScheduled.set(false);
+        try {
+            Frames.HttpFrame frame;
+            int batchSize = 0;
+            while (!closed && batchSize < MAX_BATCH_SIZE && (frame = sendFrames.poll()) != null) {
+                batchSize += Frames.HEADER_SIZE + frame.length();
+                httpIOStream.bufferFrame(frame);
+            }
+            if (batchSize >= MAX_BATCH_SIZE) {
+                scheduleWrite();
+            }
+            if (closed || corks.get() > 0) {
+                return;
             }
+            if (flushLatencyBudgetNanos > 0 && httpIOStream.getBufferedBytes() < SMALL_BATCH_SIZE) {
+                if (flushScheduled.compareAndSet(false, true)) {
+                    scheduler.schedule(executor, this::flushHandler, flushLatencyBudgetNanos, TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+            httpIOStream.flush();
+        } catch (IOException e) {
+            log.error("Write failure! Closing session.", e);
+            close();
+        }
+    }
+
+    /**
+     * Flush a batch held back by writeHandler, once the latency budget has run out. Runs on the scheduler.
+     */
+    private void flushHandler() {
+        flushScheduled.set(false);
+        if (closed || corks.get() > 0) {
+            return;
+        }
+        try {
+            httpIOStream.flush();
+        } catch (IOException e) {
+            log.error("Write failure! Closing session.", e);
+            close();
         }
     }
 
+    /**
+     * Read frames until the connection is closed, passing each to the scheduler to be handled.
+     */
     private void readHandler() {
         try {
-            Frames.HttpFrame httpFrame = httpIOStream.readFrame();
-            onFrame(httpFrame);
+            while (!closed) {
+                Frames.HttpFrame httpFrame = httpIOStream.readFrame();
+                executor.execute(() -> onFrame(httpFrame));
+            }
         } catch (IOException e) {
-            log.error("Failure!", e);
-            // TODO: Set an appropriate stream error.
+            if (!closed) {
+                log.error("Failure!", e);
+                // TODO: Set an appropriate stream error.
+            }
+        } finally {
+            close();
         }
     }
 
     public Session(HttpIOStream httpIOStream) {
+        this(httpIOStream, SessionScheduler.shared());
+    }
+
+    public Session(HttpIOStream httpIOStream, SessionScheduler scheduler) {
         this.httpIOStream = httpIOStream;
-        ExecutorService service = Executors.newFixedThreadPool(2);
-        service.submit(this::readHandler);
-        service.submit(this::writeHandler);
+        this.frameWriter = this::enqueueFrame;
+        this.scheduler = scheduler;
+        this.executor = scheduler.newSerialExecutor();
+        this.workers = scheduler.workers();
+        this.connection = null;
+    }
+
+    /**
+     * For transports which read frames themselves and accept written frames without blocking.
+     * Requests are answered on the shared scheduler's workers, since their bodies arrive on the calling thread.
+     *
+     * @param frameWriter - Called with each frame to be sent to the peer.
+     */
+    public Session(Consumer<Frames.HttpFrame> frameWriter) {
+        this.frameWriter = frameWriter;
+        this.scheduler = null;
+        this.executor = Runnable::run;
+        this.workers = SessionScheduler.shared().workers();
+        this.connection = null;
     }
 
-    private void sendFrame(Frames.HttpFrame frame) {
+    /**
+     * The session's own work runs on the connection's event loop. Frames are queued by priority, as for blocking
+     * connections, and written while the connection keeps up with them.
+     */
+    private Session(NioConnection connection, Executor workers) {
+        this.frameWriter = this::enqueueFrame;
+        this.scheduler = null;
+        this.executor = connection.getEventLoop()::execute;
+        this.workers = workers;
+        this.connection = connection;
+    }
+
+    /**
+     * Read from the connection on the calling thread, until the peer closes it, or the session is closed.
+     */
+    @Override
+    public void run() {
+        readHandler();
+    }
+
+    /**
+     * Stop reading and writing, and close the underlying connection.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flowControl.close();
+        dropQueuedFrames();
+        executor.execute(() -> streams.forEach(stream -> {
+            if (stream.body != null) {
+                stream.body.abandon(new IOException("Session closed before the request body ended."));
+            }
+        }));
+        if (httpIOStream != null) {
+            Utils.closeQuietly(httpIOStream);
+        } else if (connection != null) {
+            connection.closeAfterWrite();
+        }
+    }
+
+    /**
+     * Choose how responses are prioritized, before any streams have opened. The default is the dependency tree,
+     * until the client's SETTINGS say it does not use it, when urgencies are used instead.
+     */
+    public void setPrioritization(Prioritization prioritization) {
+        if (streams.lastPeerStreamId() != 0) {
+            throw new IllegalStateException("Streams have opened already!");
+        }
+        WriteScheduler previous = sendFrames;
+        sendFrames = prioritization == Prioritization.URGENCY ? new UrgencyScheduler() : new PriorityTree();
+        previous.moveTo(sendFrames);
+    }
+
+    /**
+     * How long a small batch of frames may wait for more before being written.
+     * Zero, the default, writes every batch as soon as it has been buffered.
+     */
+    public void setFlushLatencyBudget(long duration, TimeUnit unit) {
+        this.flushLatencyBudgetNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Hold back writes until a matching uncork, so that the frames of a multi-frame response,
+     * such as HEADERS followed by DATA, are written together. Corks nest.
+     * Frames are still written if they fill the output buffer.
+     * Only affects blocking connections; NioServer connections write frames as soon as they can take them.
+     */
+    public void cork() {
+        corks.incrementAndGet();
+    }
+
+    /**
+     * Release a cork, writing everything held back once the last one is released.
+     */
+    public void uncork() {
+        if (corks.decrementAndGet() == 0) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Send a frame to the peer. May be called from any thread.
+     * The frame now belongs to the session, which releases it once written.
+     */
+    public void sendFrame(Frames.HttpFrame frame) {
+        frameWriter.accept(frame);
+    }
+
+    private void enqueueFrame(Frames.HttpFrame frame) {
+        if (closed) {
+            frame.release();
+            return;
+        }
+        sendFrames.add(frame);
+        if (closed) {
+            dropQueuedFrames(); // Raced with close, which may have missed this frame.
+            return;
+        }
+        scheduleWrite();
+    }
+
+    private void dropQueuedFrames() {
+        sendFrames.clear();
+    }
+
+    private void scheduleWrite() {
+        if (httpIOStream != null && writeScheduled.compareAndSet(false, true)) {
+            executor.execute(this::writeHandler);
+        } else if (connection != null && writeScheduled.compareAndSet(false, true)) {
+            executor.execute(this::connectionWriteHandler);
+        }
+    }
+
+    /**
+     * Queue frames on the connection, in priority order and up to a batch, for as long as it has written everything
+     * queued before, so that frames stay in priority order while it is backed up. Runs on the event loop, again
+     * once the connection has caught up, and in another turn for what is left over from a full batch.
+     */
+    private void connectionWriteHandler() {
+        writeScheduled.set(false);
+        Frames.HttpFrame frame;
+        int batchSize = 0;
         try {
-            sendFrames.put(frame);
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Unhandled failure!", e); // TODO: Handle.
+            while (!closed && batchSize < MAX_BATCH_SIZE && !connection.hasPendingWrites()
+                    && (frame = sendFrames.poll()) != null) {
+                batchSize += Frames.HEADER_SIZE + frame.length();
+                try {
+                    connection.write(FrameCodec.encodeGathered(frame), frame::release);
+                } catch (IOException e) {
+                    frame.release();
+                    throw e;
+                }
+            }
+            if (batchSize >= MAX_BATCH_SIZE) {
+                scheduleWrite();
+            }
+        } catch (IOException e) {
+            log.error("Write failure! Closing session.", e);
+            close();
         }
     }
 
     /**
      * HttpFrames are decoded from a Socket's InputStream and then sent here.
+     * The frame is released once handled, so a stream which keeps its payload must retain it.
      *
      * @param frame - Decoded HttpFrame.
      */
     public void onFrame(Frames.HttpFrame frame) {
+        try {
+            handleFrame(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void handleFrame(Frames.HttpFrame frame) {
+
+        if (goingAway) {
+            return;
+        }
+        if (continuedStreamId != 0
+                && (frame.type != Frames.Type.CONTINUATION.ordinal() || frame.streamId != continuedStreamId)) {
+            // Nothing may come between the fragments of a header block. RFC 7540 Section 6.10.
+            connectionError(Frames.Error.PROTOCOL_ERROR, "Expected CONTINUATION on stream " + continuedStreamId + ".");
+            return;
+        }
+
+        if (frame.streamId == 0 && frame.type == Frames.Type.SETTINGS.ordinal()) {
+            onSettingsFrame(frame);
+            return;
+        }
+        if (frame.streamId == 0 && frame.type == Frames.Type.PING.ordinal()) {
+            onPingFrame(frame);
+            return;
+        }
+        if (frame.streamId == 0 && frame.type == Frames.Type.WINDOW_UPDATE.ordinal()) {
+            onWindowUpdateFrame(0, null, frame);
+            return;
+        }
+        if (frame.type == Frames.Type.PRIORITY.ordinal()) {
+            onPriorityFrame(frame); // Which may name any stream, without opening it. RFC 7540 Section 5.1.
+            return;
+        }
+        if (frame.type == Frames.PRIORITY_UPDATE) {
+            onPriorityUpdateFrame(frame);
+            return;
+        }
+        if (frame.type > Frames.Type.CONTINUATION.ordinal()) {
+            return; // Frames of unknown types are ignored. RFC 7540 Section 4.1.
+        }
+        if (frame.type == Frames.Type.DATA.ordinal() && !flowControl.receiveOnConnection(frame.length())) {
+            connectionError(Frames.Error.FLOW_CONTROL_ERROR, "DATA beyond the connection's window.");
+            return;
+        }
 
         Stream stream;
-        if (streams.containsKey(frame.streamId)) {
-            stream = streams.get(frame.streamId);
+        if (frame.streamId == 0) {
+            stream = connectionStream;
         } else {
-            // TODO: validate stream id
-            stream = new Stream(this::sendFrame);
-            streams.put(frame.streamId, stream);
+            stream = streams.get(frame.streamId);
+            if (stream == null) {
+                if (!streams.isIdle(frame.streamId)) {
+                    onClosedStreamFrame(frame);
+                    return;
+                }
+                // Only HEADERS opens a stream, and a client's streams are odd. RFC 7540 Sections 5.1 and 5.1.1.
+                if (frame.type != Frames.Type.HEADERS.ordinal() || (frame.streamId & 1) == 0) {
+                    connectionError(Frames.Error.PROTOCOL_ERROR, "Frame of type " + frame.type + " on idle stream " + frame.streamId + ".");
+                    return;
+                }
+                stream = new Stream(this::sendFrame);
+                flowControl.openStream(stream);
+                streams.put(frame.streamId, stream);
+                sendFrames.open(frame.streamId);
+            }
+        }
+        if (frame.type == Frames.Type.HEADERS.ordinal() && !prioritize(frameFactory.headersPriority(frame))) {
+            onHeaderBlockFragment(frame.streamId, null, frame);
+            return;
         }
 
         switch (frame.type) {
             case 0x0: stream.getState().onReceiveDataFrame(frame); break;
             case 0x1: stream.getState().onReceiveHeaderFrame(frame); break;
-            case 0x2: stream.getState().onReceivePriorityFrame(frame); break;
             case 0x3: stream.getState().onReceiveResetFrame(frame); break;
             case 0x4: stream.getState().onReceiveSettingsFrame(frame); break;
             case 0x5: stream.getState().onReceivePushPromiseFrame(frame); break;
@@ -97,5 +555,726 @@ public class Session {
                 // TODO: Handle unknown frame type.
             }
         }
+
+        if (frame.streamId == 0) {
+            return;
+        }
+        if (frame.type == Frames.Type.DATA.ordinal()) {
+            onDataFrame(frame.streamId, stream, frame);
+        } else if (frame.type == Frames.Type.WINDOW_UPDATE.ordinal()) {
+            onWindowUpdateFrame(frame.streamId, stream, frame);
+        } else if (frame.type == Frames.Type.HEADERS.ordinal() || frame.type == Frames.Type.CONTINUATION.ordinal()) {
+            onHeaderBlockFragment(frame.streamId, stream, frame);
+        }
+        onReceived(frame.streamId, stream, frame);
+    }
+
+    /**
+     * Gather a header block from a HEADERS frame and any CONTINUATION frames, then decode it as a request or its
+     * trailers. RFC 7540 Section 8.1.
+     * Blocks are decoded even for streams which are closed, given as null, to keep the decoding context in step
+     * with the peer's. RFC 7540 Section 4.3.
+     */
+    private void onHeaderBlockFragment(int streamId, Stream stream, Frames.HttpFrame frame) {
+        if (frame.type == Frames.Type.HEADERS.ordinal()) {
+            continuedEndStream = (frame.flags & 0x1) != 0;
+            headerBlockLength = 0;
+        } else if (continuedStreamId == 0) {
+            connectionError(Frames.Error.PROTOCOL_ERROR, "CONTINUATION without HEADERS on stream " + streamId + ".");
+            return;
+        }
+        byte[] fragment;
+        try {
+            fragment = frameFactory.headerBlockFragment(frame);
+        } catch (IllegalArgumentException e) {
+            connectionError(Frames.Error.PROTOCOL_ERROR, e.getMessage());
+            return;
+        }
+        if (headerBlockLength + fragment.length > RequestParser.MAX_HEAD_LENGTH) {
+            connectionError(Frames.Error.ENHANCE_YOUR_CALM, "Header block exceeds " + RequestParser.MAX_HEAD_LENGTH + " bytes.");
+            return;
+        }
+        if (headerBlock.length < headerBlockLength + fragment.length) {
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(2 * headerBlock.length, headerBlockLength + fragment.length));
+        }
+        System.arraycopy(fragment, 0, headerBlock, headerBlockLength, fragment.length);
+        headerBlockLength += fragment.length;
+        if ((frame.flags & 0x4) == 0) {
+            continuedStreamId = streamId;
+            return;
+        }
+        continuedStreamId = 0;
+
+        List<HeaderIndex.HeaderEntry> fields;
+        try {
+            fields = decoder.decodeHeaderFields(Arrays.copyOf(headerBlock, headerBlockLength));
+        } catch (IOException | RuntimeException e) {
+            connectionError(Frames.Error.COMPRESSION_ERROR, "Undecodable header block on stream " + streamId + ".");
+            return;
+        }
+        if (stream == null) {
+            return;
+        }
+
+        if (stream.request == null) {
+            stream.request = toRequest(fields);
+            if (stream.request == null) {
+                refuse(streamId, stream, Frames.Error.PROTOCOL_ERROR);
+                return;
+            }
+            sendFrames.prioritize(streamId, stream.request.header("priority"));
+            dispatch(streamId, stream, continuedEndStream);
+        } else if (continuedEndStream && stream.body != null) {
+            // Added before the body ends, so the handler sees them once it has read the body to its end.
+            for (HeaderIndex.HeaderEntry field : fields) {
+                stream.request.trailers.merge(field.name, field.value, (first, second) -> first + ", " + second);
+            }
+            stream.body.end();
+        } else {
+            refuse(streamId, stream, Frames.Error.PROTOCOL_ERROR); // Trailers must end the stream.
+        }
+    }
+
+    /**
+     * Pass a piece of a request body to the handler reading it.
+     */
+    private void onDataFrame(int streamId, Stream stream, Frames.HttpFrame frame) {
+        if (stream.body == null || stream.getState() != Stream.State.OPEN) {
+            flowControl.releaseOnConnection(frame.length());
+            refuse(streamId, stream, Frames.Error.STREAM_CLOSED);
+            return;
+        }
+        Frames.DataFrame dataFrame = frameFactory.createDataFrame(frame);
+        if (!flowControl.receiveOnStream(stream, frame.length())) {
+            flowControl.releaseOnConnection(frame.length());
+            refuse(streamId, stream, Frames.Error.FLOW_CONTROL_ERROR);
+            return;
+        }
+        stream.body.offer(dataFrame.data);
+        if (dataFrame.flagEndStream) {
+            stream.body.end();
+        }
+        // The padding is released at once, and the data as the handler reads it.
+        if (frame.length() > dataFrame.data.length) {
+            release(streamId, stream, frame.length() - dataFrame.data.length, !dataFrame.flagEndStream);
+        }
+    }
+
+    /**
+     * Credit the windows with what the handler has read of a request body. Runs on the session.
+     */
+    private void onBodyRead(int streamId, Stream stream) {
+        int length = stream.body.takeRead();
+        if (length > 0) {
+            release(streamId, stream, length, stream.getState() == Stream.State.OPEN);
+        }
+    }
+
+    /**
+     * Release received data from the connection's window, and from the stream's while it is open.
+     *
+     * @param more Whether more data may follow on the stream.
+     */
+    private void release(int streamId, Stream stream, int length, boolean more) {
+        flowControl.releaseOnConnection(length);
+        if (streams.get(streamId) == stream) {
+            flowControl.releaseOnStream(streamId, stream, length, more);
+        }
+    }
+
+    /**
+     * Hand a request to the handler, on a worker, as soon as its headers are complete, so that the session carries
+     * on with other streams while the handler reads the body as it arrives.
+     */
+    private void dispatch(int streamId, Stream stream, boolean endStream) {
+        HttpComponents.Request request = stream.request;
+        InputStream body;
+        if (endStream) {
+            body = InputStream.nullInputStream();
+        } else {
+            stream.body = new RequestBodyStream(() -> executor.execute(() -> onBodyRead(streamId, stream)));
+            body = stream.body;
+        }
+        workers.execute(() -> respond(streamId, stream, request, body));
+    }
+
+    private void onPriorityFrame(Frames.HttpFrame frame) {
+        if (frame.streamId == 0) {
+            connectionError(Frames.Error.PROTOCOL_ERROR, "PRIORITY on stream 0.");
+        } else if (frame.length() != 5) {
+            resetStream(frame.streamId, Frames.Error.FRAME_SIZE_ERROR);
+        } else {
+            prioritize(frameFactory.createPriorityFrame(frame));
+        }
+    }
+
+    /**
+     * Reprioritize a stream, whether open or not yet, by its urgency. RFC 9218 Section 7.1.
+     * Frames for streams which have closed are ignored.
+     */
+    private void onPriorityUpdateFrame(Frames.HttpFrame frame) {
+        if (frame.streamId != 0) {
+            connectionError(Frames.Error.PROTOCOL_ERROR, "PRIORITY_UPDATE on stream " + frame.streamId + ".");
+            return;
+        }
+        if (frame.length() < 4) {
+            connectionError(Frames.Error.FRAME_SIZE_ERROR, "PRIORITY_UPDATE payload of " + frame.length() + " bytes.");
+            return;
+        }
+        byte[] payload = frame.payloadBytes();
+        int streamId = ByteBuffer.wrap(payload).getInt() & 0x7fffffff;
+        if (streamId == 0 || (streamId & 1) == 0) {
+            connectionError(Frames.Error.PROTOCOL_ERROR, "PRIORITY_UPDATE for stream " + streamId + ".");
+        } else if (!streams.isClosed(streamId)) {
+            sendFrames.updatePriority(streamId, new String(payload, 4, payload.length - 4, StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Move a stream in the priority tree. A stream may not depend on itself. RFC 7540 Section 5.3.1.
+     *
+     * @param priority The stream's new priority, or null to leave it be.
+     * @return False if the stream has been reset instead.
+     */
+    private boolean prioritize(Frames.PriorityFrame priority) {
+        if (priority == null) {
+            return true;
+        }
+        if (priority.streamDependency == priority.streamId) {
+            resetStream(priority.streamId, Frames.Error.PROTOCOL_ERROR);
+            return false;
+        }
+        sendFrames.prioritize(priority.streamId, priority.streamDependency, priority.weight + 1, priority.exclusive);
+        return true;
+    }
+
+    /**
+     * Answer a PING, or take it as the end of a flow control measurement. RFC 7540 Section 6.7.
+     */
+    private void onPingFrame(Frames.HttpFrame frame) {
+        Frames.PingFrame pingFrame = frameFactory.createPingFrame(frame);
+        if (pingFrame.data.length != 8) {
+            connectionError(Frames.Error.FRAME_SIZE_ERROR, "PING payload of " + pingFrame.data.length + " bytes.");
+        } else if (!pingFrame.ack) {
+            sendFrame(new Frames.PingFrame(true, pingFrame.data).asHttpFrame());
+        } else {
+            flowControl.onPingAck(pingFrame.data);
+        }
+    }
+
+    /**
+     * Widen the send window of the connection, or of a stream. RFC 7540 Section 6.9.
+     *
+     * @param stream The stream, or null for the connection.
+     */
+    private void onWindowUpdateFrame(int streamId, Stream stream, Frames.HttpFrame frame) {
+        if (frame.length() != 4) {
+            connectionError(Frames.Error.FRAME_SIZE_ERROR, "WINDOW_UPDATE payload of " + frame.length() + " bytes.");
+            return;
+        }
+        int increment = frameFactory.createWindowUpdateFrame(frame).canTransmit & 0x7fffffff;
+        if (stream == null) {
+            if (increment == 0) {
+                connectionError(Frames.Error.PROTOCOL_ERROR, "WINDOW_UPDATE of 0 on the connection.");
+            } else if (!flowControl.onWindowUpdate(null, increment)) {
+                connectionError(Frames.Error.FLOW_CONTROL_ERROR, "Connection window overflowed.");
+            }
+        } else if (increment == 0) {
+            refuse(streamId, stream, Frames.Error.PROTOCOL_ERROR);
+        } else if (!flowControl.onWindowUpdate(stream, increment)) {
+            refuse(streamId, stream, Frames.Error.FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Make a request from decoded header fields, or return null if they are malformed. RFC 7540 Section 8.1.2.
+     */
+    private static HttpComponents.Request toRequest(List<HeaderIndex.HeaderEntry> fields) {
+        String method = null;
+        String path = null;
+        Map<String, String> headers = new HashMap<>(Math.max(16, 2 * fields.size()));
+        boolean pseudoHeaders = true;
+        for (HeaderIndex.HeaderEntry field : fields) {
+            String name = field.name;
+            if (name.startsWith(":")) {
+                if (!pseudoHeaders) {
+                    return null;
+                }
+                switch (name) {
+                    case ":method": method = field.value; break;
+                    case ":path": path = field.value; break;
+                    case ":authority": headers.put("Host", field.value); break;
+                    case ":scheme": break;
+                    default: return null;
+                }
+                continue;
+            }
+            pseudoHeaders = false;
+            if (!name.equals(name.toLowerCase(Locale.ROOT))
+                    || isConnectionSpecific(name) && !("te".equals(name) && "trailers".equals(field.value))) {
+                return null;
+            }
+            // Cookies may be split across fields, to be joined again with semicolons. RFC 7540 Section 8.1.2.5.
+            String separator = "cookie".equals(name) ? "; " : ", ";
+            headers.merge(name, field.value, (first, second) -> first + separator + second);
+        }
+        if (method == null || path == null && !"CONNECT".equals(method)) {
+            return null;
+        }
+        return new HttpComponents.Request(HTTP_2, method, path, headers);
+    }
+
+    /**
+     * Move a stream through the states of RFC 7540 Section 5.1 on a frame from the peer, removing it once closed.
+     */
+    private void onReceived(int streamId, Stream stream, Frames.HttpFrame frame) {
+        boolean endStream = (frame.flags & 0x1) != 0
+                && (frame.type == Frames.Type.DATA.ordinal() || frame.type == Frames.Type.HEADERS.ordinal());
+        if (stream.getState() == Stream.State.CLOSED) {
+            return; // Refused while handling the frame.
+        }
+        if (frame.type == Frames.Type.RST_STREAM.ordinal()) {
+            closeStream(streamId, stream);
+        } else if (stream.getState() == Stream.State.IDLE && frame.type == Frames.Type.HEADERS.ordinal()) {
+            stream.setState(endStream ? Stream.State.HALF_CLOSED_REMOTE : Stream.State.OPEN);
+        } else if (endStream && stream.getState() == Stream.State.OPEN) {
+            stream.setState(Stream.State.HALF_CLOSED_REMOTE);
+        } else if (endStream && stream.getState() == Stream.State.HALF_CLOSED_LOCAL) {
+            closeStream(streamId, stream);
+        }
+    }
+
+    /**
+     * The counterpart of onReceived, for the end of the stream being sent.
+     */
+    private void onEndStreamSent(int streamId) {
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        if (stream.getState() == Stream.State.OPEN) {
+            stream.setState(Stream.State.HALF_CLOSED_LOCAL);
+        } else {
+            closeStream(streamId, stream);
+        }
+    }
+
+    private void closeStream(int streamId, Stream stream) {
+        if (stream.body != null) {
+            // Whatever the handler has not had credited, read or not, is released.
+            flowControl.releaseOnConnection(
+                    stream.body.abandon(new IOException("Stream " + streamId + " closed before the request body ended.")));
+        }
+        stream.setState(Stream.State.CLOSED);
+        streams.remove(streamId);
+        flowControl.streamClosed();
+        sendFrames.close(streamId);
+    }
+
+    /**
+     * End a stream with a stream error. RFC 7540 Section 5.4.2.
+     */
+    private void refuse(int streamId, Stream stream, Frames.Error error) {
+        log.debug("Resetting stream " + streamId + " with " + error + ".");
+        sendReset(streamId, error);
+        closeStream(streamId, stream);
+    }
+
+    /**
+     * End a stream with a stream error, whether or not it is open.
+     */
+    private void resetStream(int streamId, Frames.Error error) {
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            refuse(streamId, stream, error);
+        } else {
+            sendReset(streamId, error);
+        }
+    }
+
+    /**
+     * End the connection with GOAWAY. RFC 7540 Section 5.4.1.
+     * Nothing more is read, and the connection is closed once the GOAWAY has been written.
+     */
+    private void connectionError(Frames.Error error, String reason) {
+        log.debug("Closing session with " + error + ". " + reason);
+        goingAway = true;
+        continuedStreamId = 0;
+        Frames.GoAwayFrame goAwayFrame = new Frames.GoAwayFrame();
+        goAwayFrame.lastStreamId = streams.lastPeerStreamId();
+        goAwayFrame.error = error;
+        goAwayFrame.data = reason.getBytes(StandardCharsets.UTF_8);
+        sendFrame(goAwayFrame.asHttpFrame());
+        executor.execute(this::close); // Queued behind the write of the GOAWAY.
+    }
+
+    /**
+     * Handle a frame on a stream which has closed. RFC 7540 Section 5.1.
+     * PRIORITY, WINDOW_UPDATE and RST_STREAM may arrive after a close, as may anything the peer sent before it saw
+     * one, so those, and any frame on a recently closed stream, are ignored. Anything else is refused with
+     * STREAM_CLOSED.
+     */
+    private void onClosedStreamFrame(Frames.HttpFrame frame) {
+        if (frame.type == Frames.Type.DATA.ordinal()) {
+            flowControl.releaseOnConnection(frame.length()); // Nothing will read it.
+        }
+        if (frame.type == Frames.Type.HEADERS.ordinal() || frame.type == Frames.Type.CONTINUATION.ordinal()) {
+            onHeaderBlockFragment(frame.streamId, null, frame);
+        }
+        if (frame.type == Frames.Type.PRIORITY.ordinal()
+                || frame.type == Frames.Type.WINDOW_UPDATE.ordinal()
+                || frame.type == Frames.Type.RST_STREAM.ordinal()
+                || streams.isRecentlyClosed(frame.streamId)) {
+            log.debug("Ignoring frame of type " + frame.type + " on closed stream " + frame.streamId + ".");
+            return;
+        }
+        sendReset(frame.streamId, Frames.Error.STREAM_CLOSED);
+    }
+
+    private void sendReset(int streamId, Frames.Error error) {
+        Frames.ResetFrame resetFrame = new Frames.ResetFrame();
+        resetFrame.streamId = streamId;
+        resetFrame.error = error;
+        sendFrame(resetFrame.asHttpFrame());
+    }
+
+    /**
+     * Take over from an HTTP/1.1 upgrade, with the settings sent in its HTTP2-Settings header. The upgrade request
+     * is stream 1, which the client has half-closed, and which is answered as soon as the session is running.
+     */
+    private void upgrade(Map<Frames.SettingsFrame.Setting, Integer> settings, HttpComponents.Request request) {
+        peerSettings.putAll(settings);
+        Integer initialWindow = settings.get(Frames.SettingsFrame.Setting.SETTINGS_INITIAL_WINDOW_SIZE);
+        if (initialWindow != null) {
+            flowControl.setInitialSendWindow(initialWindow, streams);
+        }
+        setHeaderTableSize(settings.get(Frames.SettingsFrame.Setting.SETTINGS_HEADER_TABLE_SIZE));
+        Stream stream = new Stream(this::sendFrame, Stream.State.HALF_CLOSED_REMOTE);
+        flowControl.openStream(stream);
+        streams.put(1, stream);
+        sendFrames.open(1);
+        sendFrames.prioritize(1, request.header("priority"));
+        workers.execute(() -> respond(1, stream, request, InputStream.nullInputStream()));
+    }
+
+    /**
+     * Answer a request with the handler. Runs on a worker.
+     * The response is sent as a HEADERS frame, with the first DATA frame, then any further DATA frames as the body
+     * is written. Header names are sent in lower case, and those specific to HTTP/1.1 connections are dropped.
+     * RFC 7540 Section 8.1.2.
+     */
+    private void respond(int streamId, Stream stream, HttpComponents.Request request, InputStream body) {
+        try {
+            HttpComponents.Response response = HttpComponents.Response.ok();
+            Handlers.ResponseBodyCallback responseBodyCallback = handler.handle(request, response, body);
+
+            LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+            headers.put(":status", Integer.toString(response.status));
+            addFields(headers, response.headers);
+            if (responseBodyCallback == null || "HEAD".equals(request.method)) {
+                sendHeaders(streamId, headers, true, true);
+            } else {
+                DataFrameOutputStream out = new DataFrameOutputStream(streamId, stream, headers, response.trailers);
+                responseBodyCallback.handleResponseBody(out);
+                out.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (stream.getState() == Stream.State.CLOSED || closed) {
+                log.debug("Stream " + streamId + " closed before its response was sent. " + e.getMessage());
+                return;
+            }
+            log.error("Failure while responding on stream " + streamId + "!", e);
+            sendReset(streamId, Frames.Error.INTERNAL_ERROR);
+            executor.execute(() -> {
+                if (streams.get(streamId) == stream) {
+                    closeStream(streamId, stream);
+                }
+            });
+            return;
+        }
+        executor.execute(() -> onEndStreamSent(streamId));
+    }
+
+    private static void addFields(LinkedHashMap<String, String> fields, Map<String, String> headers) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (!isConnectionSpecific(name)) {
+                fields.put(name, header.getValue());
+            }
+        }
+    }
+
+    /**
+     * Send a header block, split over CONTINUATION frames if it is larger than a frame. RFC 7540 Section 6.10.
+     *
+     * The connection's encoder indexes the fields of a block which will be written in the order it is sent, so that
+     * later blocks may refer to them: the first of a response, if it fits in one frame. Trailers wait behind their
+     * stream's DATA, and the frames of a larger block queue with it, so they are encoded without the dynamic table.
+     *
+     * @param first Whether this is the response's first header block, rather than its trailers.
+     */
+    private void sendHeaders(int streamId, LinkedHashMap<String, String> fields, boolean endStream, boolean first) {
+        Frames.HeadersFrame headersFrame = new Frames.HeadersFrame();
+        headersFrame.streamId = streamId;
+        headersFrame.flagEndHeaders = true;
+        headersFrame.flagEndStream = endStream;
+        headersFrame.headers = fields;
+        if (first && Hpack.maxEncodedLength(fields) <= Frames.SETTINGS_MAX_FRAME_LENGTH) {
+            synchronized (encoder) {
+                sendFrame(headersFrame.asHttpFrame(encoder));
+            }
+            return;
+        }
+        Frames.HttpFrame frame = headersFrame.asHttpFrame(encoder.encodeHeaderListWithoutIndexing(fields));
+        if (frame.length() <= Frames.SETTINGS_MAX_FRAME_LENGTH) {
+            sendFrame(frame);
+            return;
+        }
+
+        byte[] block = frame.payloadBytes();
+        frame.release();
+        cork();
+        try {
+            for (int offset = 0; offset < block.length; offset += Frames.SETTINGS_MAX_FRAME_LENGTH) {
+                int end = Math.min(block.length, offset + Frames.SETTINGS_MAX_FRAME_LENGTH);
+                int flags = end == block.length ? 0x4 : 0;
+                Frames.Type type = Frames.Type.CONTINUATION;
+                if (offset == 0) {
+                    type = Frames.Type.HEADERS;
+                    flags |= endStream ? 0x1 : 0;
+                }
+                sendFrame(new Frames.HttpFrame(streamId, type, flags, Arrays.copyOfRange(block, offset, end)));
+            }
+        } finally {
+            uncork();
+        }
+    }
+
+    static boolean isConnectionSpecific(String name) {
+        switch (name) {
+            case "connection":
+            case "keep-alive":
+            case "proxy-connection":
+            case "transfer-encoding":
+            case "upgrade":
+            case "te":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sends a response body as DATA frames of up to the default maximum frame size, which every peer accepts.
+     * The response headers go with the first DATA frame, corked so that they are written together, but no cork is
+     * held while waiting for the body, which would hold back the responses on other streams.
+     * Each frame waits for room in the flow control windows, so the writer is held back by a slow reader.
+     * Closing ends the stream, with the trailers if there are any.
+     */
+    private class DataFrameOutputStream extends OutputStream {
+
+        private final int streamId;
+        private final Stream stream;
+        private final Map<String, String> trailers;
+        private final byte[] buffer = new byte[Frames.SETTINGS_MAX_FRAME_LENGTH];
+        // Sent with the first DATA frame, then null.
+        private LinkedHashMap<String, String> headers;
+        private int count;
+        private boolean closed;
+
+        DataFrameOutputStream(int streamId, Stream stream, LinkedHashMap<String, String> headers, Map<String, String> trailers) {
+            this.streamId = streamId;
+            this.stream = stream;
+            this.headers = headers;
+            this.trailers = trailers;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkOpen();
+            if (count == buffer.length) {
+                sendData(false);
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            checkOpen();
+            while (length > 0) {
+                if (count == buffer.length) {
+                    sendData(false);
+                }
+                int copied = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        /**
+         * Send whatever has been written so far, so that a body may be streamed.
+         */
+        @Override
+        public void flush() throws IOException {
+            checkOpen();
+            if (count > 0) {
+                sendData(false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (trailers.isEmpty()) {
+                sendData(true);
+                return;
+            }
+            if (count > 0 || headers != null) {
+                sendData(false);
+            }
+            LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+            addFields(fields, trailers);
+            sendHeaders(streamId, fields, true, false);
+        }
+
+        private void sendData(boolean endStream) throws IOException {
+            int offset = 0;
+            do {
+                int length = count - offset;
+                if (length > 0) {
+                    length = flowControl.acquire(stream, length);
+                }
+                Frames.DataFrame dataFrame = new Frames.DataFrame();
+                dataFrame.streamId = streamId;
+                dataFrame.data = Arrays.copyOfRange(buffer, offset, offset + length);
+                dataFrame.flagEndStream = endStream && offset + length == count;
+                offset += length;
+                sendDataFrame(dataFrame);
+            } while (offset < count);
+            count = 0;
+        }
+
+        private void sendDataFrame(Frames.DataFrame dataFrame) {
+            if (headers == null) {
+                sendFrame(dataFrame.asHttpFrame());
+                return;
+            }
+            cork();
+            try {
+                sendHeaders(streamId, headers, false, true);
+                sendFrame(dataFrame.asHttpFrame());
+            } finally {
+                headers = null;
+                uncork();
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream " + streamId + " already ended!");
+            }
+        }
+    }
+
+    /**
+     * Record the peer's settings and acknowledge them. RFC 7540 Section 6.5.3.
+     */
+    private void onSettingsFrame(Frames.HttpFrame frame) {
+        Frames.SettingsFrame settingsFrame = new FrameFactory().createSettingsFrame(frame);
+        if (settingsFrame.ack) {
+            return;
+        }
+        Integer initialWindow = settingsFrame.settings.get(Frames.SettingsFrame.Setting.SETTINGS_INITIAL_WINDOW_SIZE);
+        if (initialWindow != null && !flowControl.setInitialSendWindow(initialWindow, streams)) {
+            connectionError(Frames.Error.FLOW_CONTROL_ERROR, "Invalid initial window size " + initialWindow + ".");
+            return;
+        }
+        Integer noTree = settingsFrame.settings.get(Frames.SettingsFrame.Setting.SETTINGS_NO_RFC7540_PRIORITIES);
+        if (noTree != null && noTree == 1 && streams.lastPeerStreamId() == 0 && sendFrames instanceof PriorityTree) {
+            setPrioritization(Prioritization.URGENCY);
+        }
+        setHeaderTableSize(settingsFrame.settings.get(Frames.SettingsFrame.Setting.SETTINGS_HEADER_TABLE_SIZE));
+        peerSettings.putAll(settingsFrame.settings);
+        sendFrame(new Frames.SettingsFrame(true, new HashMap<>()).asHttpFrame());
+    }
+
+    /**
+     * Size the encoder's dynamic table by the peer's SETTINGS_HEADER_TABLE_SIZE, though never larger than the
+     * default, which bounds the memory each connection takes. RFC 7541 Section 4.2.
+     */
+    private void setHeaderTableSize(Integer size) {
+        if (size == null) {
+            return;
+        }
+        int maximum = size < 0 ? Integer.MAX_VALUE : size; // An unsigned 32-bit value.
+        synchronized (encoder) {
+            encoder.setMaximumTableSize(maximum);
+            encoder.resizeTable(Math.min(maximum, HeaderIndex.DEFAULT_DYNAMIC_SIZE));
+        }
+    }
+
+    /**
+     * @return The settings last sent by the peer. Those it has not sent have their default values.
+     */
+    public Map<Frames.SettingsFrame.Setting, Integer> getPeerSettings() {
+        return peerSettings;
+    }
+
+    private static class NioSessionHandler implements NioConnection.Handler {
+
+        private final Session session;
+        private final FrameCodec frameCodec = new FrameCodec(BufferPool.direct());
+        private int prefaceRead;
+        private boolean prefaceSent;
+
+        /**
+         * @param prefaceRead Whether the client preface has been read already, so the server's can be sent now.
+         * @param handler     Answers each request, on the shared scheduler's workers.
+         */
+        NioSessionHandler(NioConnection connection, boolean prefaceRead, Handlers.Http11Handler handler) {
+            this.session = new Session(connection, SessionScheduler.shared().workers());
+            session.handler = handler;
+            if (prefaceRead) {
+                this.prefaceRead = HttpComponents.PREFACE.length;
+                sendServerPreface();
+            }
+        }
+
+        /**
+         * Send the server preface now, rather than once the client's has been read.
+         */
+        void sendServerPreface() {
+            if (!prefaceSent) {
+                prefaceSent = true;
+                session.sendFrame(serverPreface());
+            }
+        }
+
+        @Override
+        public void onWritable(NioConnection connection) {
+            session.scheduleWrite();
+        }
+
+        @Override
+        public void onRead(NioConnection connection, ByteBuffer input) throws IOException {
+            while (prefaceRead < HttpComponents.PREFACE.length && input.hasRemaining()) {
+                if (input.get() != HttpComponents.PREFACE[prefaceRead++]) {
+                    throw new IOException("Failed to read preface!");
+                }
+                if (prefaceRead == HttpComponents.PREFACE.length) {
+                    sendServerPreface();
+                }
+            }
+
+            Frames.HttpFrame frame;
+            while (input.hasRemaining() && (frame = frameCodec.decode(input)) != null) {
+                session.onFrame(frame);
+            }
+        }
     }
 }
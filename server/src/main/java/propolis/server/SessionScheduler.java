@@ -0,0 +1,154 @@
+package propolis.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of threads, shared by every Session on a server, for handling frames and writing them.
+ *
+ * Each session takes a serial executor from the scheduler, so that its own work runs one task at a time and in
+ * order, without needing a thread of its own. The number of threads is fixed however many sessions there are.
+ *
+ * Application handlers, which may block, run apart from these threads, on the scheduler's workers.
+ */
+public class SessionScheduler implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionScheduler.class);
+
+    // The most tasks a session may run before giving up its thread to other sessions.
+    private static final int MAX_TASKS_PER_TURN = 64;
+
+    private static SessionScheduler shared;
+
+    private final ExecutorService threads;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+
+    public SessionScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    public SessionScheduler(int threadCount) {
+        this(threadCount, false);
+    }
+
+    private SessionScheduler(int threadCount, boolean daemon) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "session-scheduler-" + threadNumber.incrementAndGet());
+            thread.setDaemon(daemon);
+            return thread;
+        };
+        this.threads = Executors.newFixedThreadPool(threadCount, threadFactory);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-scheduler-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("session-worker-", 0).factory());
+    }
+
+    /**
+     * A process-wide scheduler, for sessions created without one. Its daemon threads need not be shut down.
+     */
+    public static synchronized SessionScheduler shared() {
+        if (shared == null) {
+            shared = new SessionScheduler(Runtime.getRuntime().availableProcessors(), true);
+        }
+        return shared;
+    }
+
+    /**
+     * @return An executor whose tasks run on this scheduler's threads, one at a time, in submission order.
+     */
+    public Executor newSerialExecutor() {
+        return new SerialExecutor();
+    }
+
+    /**
+     * @return An executor for application handlers. Each task has a virtual thread of its own, so a slow handler
+     * holds up neither other requests nor the handling of frames.
+     */
+    public Executor workers() {
+        return workers;
+    }
+
+    /**
+     * Run a task on the given executor after a delay.
+     * The timer thread only hands the task over, so delayed tasks still run in their executor's order.
+     */
+    public void schedule(Executor executor, Runnable task, long delay, TimeUnit unit) {
+        timer.schedule(() -> executor.execute(task), delay, unit);
+    }
+
+    public void shutdown() {
+        timer.shutdown();
+        threads.shutdown();
+        workers.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threads.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+        try {
+            if (!awaitTermination(3, TimeUnit.SECONDS)) {
+                threads.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            log.error("Graceful shutdown prevented! Attempting forced shutdown. " + e.getMessage());
+            threads.shutdownNow();
+        }
+    }
+
+    private class SerialExecutor implements Executor {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                threads.execute(this::runTasks);
+            }
+        }
+
+        private void runTasks() {
+            try {
+                Runnable task;
+                for (int i = 0; i < MAX_TASKS_PER_TURN && (task = tasks.poll()) != null; i++) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.error("Unhandled failure in session task!", e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -13,17 +13,38 @@ public class Stream {
     private HttpIOStream stream;
     private Consumer<Frames.HttpFrame> frameConsumer;
     private LinkedBlockingQueue<Frames.HttpFrame> outputFrames;
-    private State state = State.IDLE;
+    private volatile State state;
+
+    // The request received, and its body, which the handler reads as it arrives, or null if it has none.
+    HttpComponents.Request request;
+    RequestBodyStream body;
+
+    // Flow control windows, as kept by FlowControl.
+    int sendWindow;
+    int receiveWindow;
+    int receiveHeld;
     private FrameFactory frameFactory = new FrameFactory();
 
     public Stream(Consumer<Frames.HttpFrame> frameConsumer) {
+        this(frameConsumer, State.IDLE);
+    }
+
+    /**
+     * A stream which begins other than idle, such as stream 1 after an upgrade. RFC 7540 Section 3.2.
+     */
+    Stream(Consumer<Frames.HttpFrame> frameConsumer, State state) {
         this.frameConsumer = frameConsumer;
+        this.state = state;
     }
 
     public State getState() {
         return state;
     }
 
+    void setState(State state) {
+        this.state = state;
+    }
+
     public Frames.DataFrame createDataFrame() {
         return new Frames.DataFrame();
     }
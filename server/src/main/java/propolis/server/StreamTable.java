@@ -0,0 +1,218 @@
+package propolis.server;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The streams of a session, by stream identifier.
+ *
+ * An open addressing table keyed by int, so that finding a frame's stream neither boxes its identifier nor looks
+ * it up twice. Streams are removed once closed, so the table only grows with the number of streams open at once,
+ * however many the connection carries over its life.
+ *
+ * Streams are opened in increasing order, so a stream which is not in the table is idle if its identifier is above
+ * the highest opened, and closed otherwise. RFC 7540 Section 5.1.1. Which of the latest identifiers were closed
+ * explicitly is kept in a bitset window, which slides up as higher ones are closed, so that frames still in flight
+ * for them can be told from frames on streams closed long ago.
+ */
+public final class StreamTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // Identifiers tracked by the closed window, in 64 bit words. A power of two.
+    private static final int CLOSED_WINDOW_WORDS = 64;
+
+    // Empty slots have key 0, which is the connection rather than a stream, so is never stored.
+    private int[] keys = new int[MIN_CAPACITY];
+    private Stream[] values = new Stream[MIN_CAPACITY];
+    private int size;
+    private int highestOpenedByClient;
+    private int highestOpenedByServer;
+    private final long[] closed = new long[CLOSED_WINDOW_WORDS];
+    // The word index, identifier / 64, of the lowest word in the window.
+    private int closedBase;
+
+    public Stream get(int streamId) {
+        int mask = keys.length - 1;
+        for (int i = slot(streamId, mask); keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == streamId) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add a newly opened stream, implicitly closing any idle streams of the same initiator below it.
+     */
+    public void put(int streamId, Stream stream) {
+        if (streamId <= 0) {
+            throw new IllegalArgumentException("Invalid stream identifier! " + streamId);
+        }
+        if (2 * (size + 1) > keys.length) {
+            resize(2 * keys.length);
+        }
+        if (insert(streamId, stream)) {
+            size++;
+        }
+        if ((streamId & 1) == 1) {
+            highestOpenedByClient = Math.max(highestOpenedByClient, streamId);
+        } else {
+            highestOpenedByServer = Math.max(highestOpenedByServer, streamId);
+        }
+    }
+
+    /**
+     * Remove a stream which has closed, and remember it as recently closed.
+     *
+     * @return The stream, or null if it was not in the table.
+     */
+    public Stream remove(int streamId) {
+        int mask = keys.length - 1;
+        int i = slot(streamId, mask);
+        while (keys[i] != streamId) {
+            if (keys[i] == 0) {
+                return null;
+            }
+            i = (i + 1) & mask;
+        }
+        Stream stream = values[i];
+        deleteSlot(i, mask);
+        size--;
+        markClosed(streamId);
+        if (keys.length > MIN_CAPACITY && 8 * size < keys.length) {
+            resize(keys.length / 2);
+        }
+        return stream;
+    }
+
+    /**
+     * Call the action with each stream in the table, in no particular order.
+     */
+    public void forEach(Consumer<Stream> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                action.accept(values[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of slots in the table, which bounds its memory.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return The highest stream identifier the client has opened, as for GOAWAY. RFC 7540 Section 6.8.
+     */
+    public int lastPeerStreamId() {
+        return highestOpenedByClient;
+    }
+
+    /**
+     * @return True if the stream has not been opened, nor implicitly closed by a higher one being opened.
+     */
+    public boolean isIdle(int streamId) {
+        return streamId > ((streamId & 1) == 1 ? highestOpenedByClient : highestOpenedByServer);
+    }
+
+    /**
+     * @return True if the stream is closed, whether explicitly or implicitly.
+     */
+    public boolean isClosed(int streamId) {
+        return !isIdle(streamId) && get(streamId) == null;
+    }
+
+    /**
+     * @return True if the stream was removed, and is among the latest identifiers to have been.
+     */
+    public boolean isRecentlyClosed(int streamId) {
+        int word = streamId >>> 6;
+        if (word < closedBase || word >= closedBase + CLOSED_WINDOW_WORDS) {
+            return false;
+        }
+        return (closed[word & (CLOSED_WINDOW_WORDS - 1)] & (1L << streamId)) != 0;
+    }
+
+    private void markClosed(int streamId) {
+        int word = streamId >>> 6;
+        if (word < closedBase) {
+            return; // Below the window, so closed long ago as far as anyone can tell.
+        }
+        int top = closedBase + CLOSED_WINDOW_WORDS;
+        if (word >= top) {
+            // Slide the window up, clearing the words it is about to reuse.
+            if (word - top >= CLOSED_WINDOW_WORDS) {
+                Arrays.fill(closed, 0);
+            } else {
+                for (int w = top; w <= word; w++) {
+                    closed[w & (CLOSED_WINDOW_WORDS - 1)] = 0;
+                }
+            }
+            closedBase = word - CLOSED_WINDOW_WORDS + 1;
+        }
+        closed[word & (CLOSED_WINDOW_WORDS - 1)] |= 1L << streamId;
+    }
+
+    /**
+     * @return True if the key was not already present.
+     */
+    private boolean insert(int streamId, Stream stream) {
+        int mask = keys.length - 1;
+        int i = slot(streamId, mask);
+        while (keys[i] != 0) {
+            if (keys[i] == streamId) {
+                values[i] = stream;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = streamId;
+        values[i] = stream;
+        return true;
+    }
+
+    /**
+     * Empty a slot, shifting back any later entries of its probe run, so that lookups need no tombstones.
+     */
+    private void deleteSlot(int i, int mask) {
+        int gap = i;
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            // Move the entry into the gap unless its home lies cyclically after the gap, up to where it is.
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Stream[] oldValues = values;
+        keys = new int[capacity];
+        values = new Stream[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Fibonacci hashing, to spread identifiers which, from one initiator, are all odd or all even.
+     */
+    private static int slot(int streamId, int mask) {
+        int hash = streamId * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & mask;
+    }
+}
@@ -4,14 +4,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Daemon wrapper around ServerSocket.
+ *
+ * Each connection is handled on its own thread, taken from either a small fixed pool of platform threads,
+ * or created per connection as a virtual thread, according to the ExecutionMode.
  */
 public class TcpServer implements Runnable {
 
@@ -28,12 +33,43 @@ public class TcpServer implements Runnable {
     private ExecutorService server;
     private ExecutorService connections;
     private volatile TcpServable connectionHandler;
+    private final ExecutionMode executionMode;
+
+    public enum ExecutionMode {
+
+        /**
+         * At most MAX_CONNECTIONS connections are handled at once. Further connections wait to be accepted.
+         */
+        PLATFORM_THREADS {
+            @Override
+            ExecutorService newConnectionExecutor() {
+                return Executors.newFixedThreadPool(MAX_CONNECTIONS);
+            }
+        },
+
+        /**
+         * Every connection gets its own virtual thread, so blocking handlers scale to many concurrent connections.
+         */
+        VIRTUAL_THREADS {
+            @Override
+            ExecutorService newConnectionExecutor() {
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("tcp-connection-", 0).factory());
+            }
+        };
+
+        abstract ExecutorService newConnectionExecutor();
+    }
 
     public TcpServer(ServerSocket serverSocket, TcpServable connectionHandler) throws IOException {
+        this(serverSocket, connectionHandler, ExecutionMode.PLATFORM_THREADS);
+    }
+
+    public TcpServer(ServerSocket serverSocket, TcpServable connectionHandler, ExecutionMode executionMode) throws IOException {
         this.serverSocket = serverSocket;
         this.connectionHandler = connectionHandler;
+        this.executionMode = executionMode;
         this.server = Executors.newSingleThreadExecutor();
-        this.connections = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+        this.connections = executionMode.newConnectionExecutor();
 
         server.submit(this);
     }
@@ -141,7 +177,20 @@ public class TcpServer implements Runnable {
     }
 
     public static TcpServer newTcpServer(int port, TcpServable tcpServable) throws IOException {
-        return new TcpServer(new ServerSocket(port), tcpServable);
+        return new TcpServer(bind(port), tcpServable);
+    }
+
+    public static TcpServer newTcpServer(int port, TcpServable tcpServable, ExecutionMode executionMode) throws IOException {
+        return new TcpServer(bind(port), tcpServable, executionMode);
+    }
+
+    /**
+     * Bind a server socket backed by a channel, so that accepted sockets have channels for gathering writes.
+     */
+    private static ServerSocket bind(int port) throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port));
+        return serverSocketChannel.socket();
     }
 
     public static TcpServer newTcpServer(int port) throws IOException {
@@ -162,7 +211,7 @@ public class TcpServer implements Runnable {
         } else {
             status = "starting";
         }
-        return String.format("Server %s on %s", status, serverSocket.getLocalSocketAddress());
+        return String.format("Server %s on %s using %s", status, serverSocket.getLocalSocketAddress(), executionMode);
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
@@ -3,10 +3,21 @@ package propolis.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static propolis.server.HttpComponents.Request;
 import static propolis.server.Utils.closeQuietly;
@@ -15,26 +26,111 @@ public class Templates {
 
     private static Logger log = LoggerFactory.getLogger(Templates.class.getName());
 
+    /**
+     * How long an HTTP/1.1 connection is kept open for further requests.
+     */
+    public static final class KeepAlive {
+
+        public static final KeepAlive DEFAULT = new KeepAlive(Duration.ofSeconds(5), 100);
+        public static final KeepAlive DISABLED = new KeepAlive(Duration.ofSeconds(5), 1);
+
+        public final Duration idleTimeout;
+        public final int maxRequests;
+
+        /**
+         * @param idleTimeout How long to wait for the next request, or the rest of the current one.
+         * @param maxRequests The most requests served on one connection.
+         */
+        public KeepAlive(Duration idleTimeout, int maxRequests) {
+            if (idleTimeout.isZero() || idleTimeout.isNegative() || maxRequests < 1) {
+                throw new IllegalArgumentException(String.format("Invalid keep-alive of %s for %d requests.", idleTimeout, maxRequests));
+            }
+            this.idleTimeout = idleTimeout;
+            this.maxRequests = maxRequests;
+        }
+
+        /**
+         * Whether the connection may be kept open after responding to a request, as far as the client and the
+         * request count allow. RFC 7230 Section 6.3.
+         */
+        boolean persists(Request request, int served) {
+            if (served >= maxRequests || request.headerContains("Connection", "close")) {
+                return false;
+            }
+            if ("HTTP/1.0".equals(request.version)) {
+                return request.headerContains("Connection", "keep-alive");
+            }
+            return true;
+        }
+    }
+
     public static void handlerTemplate(Socket client, Handlers.Http11Handler handler) {
+        handlerTemplate(client, handler, KeepAlive.DEFAULT);
+    }
+
+    /**
+     * Serve requests on the connection until the client closes it, the connection is idle for too long,
+     * or the request limit is reached.
+     * Pipelined requests are served in turn, and responses only flushed once no further request is waiting,
+     * so that they leave together.
+     */
+    public static void handlerTemplate(Socket client, Handlers.Http11Handler handler, KeepAlive keepAlive) {
         try {
-            HttpIOStream http = new HttpIOStream(client);
+            handlerTemplate(client, client.getInputStream(), handler, keepAlive);
+        } catch (IOException e) {
+            closeQuietly(client);
+            throw new RuntimeException(e);
+        }
+    }
 
-            Request request = http.readHttpRequest();
-            HttpComponents.Response response;
+    /**
+     * @param input The client's input, which may begin with bytes already read from the socket, such as by
+     *              ProtocolDispatcher.
+     */
+    static void handlerTemplate(Socket client, InputStream input, Handlers.Http11Handler handler, KeepAlive keepAlive) {
+        try {
+            client.setSoTimeout((int) keepAlive.idleTimeout.toMillis());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream());
+            HttpIOStream http = new HttpIOStream(input, out);
+            for (int served = 1; ; served++) {
+                Request request;
+                try {
+                    request = http.readHttpRequest();
+                } catch (EOFException | SocketTimeoutException e) {
+                    log.debug("Closing connection. " + e.getMessage());
+                    return;
+                } catch (RequestParser.BadRequestException e) {
+                    rejectRequest(http, e);
+                    out.flush();
+                    return;
+                }
 
-            Handlers.ResponseBodyCallback responseBodyCallback;
-            if (!validateRequest(request)) {
-                response = new HttpComponents.Response(400, "Bad request"); // TODO: Configure default response mesasges.
-                responseBodyCallback = null;
-            } else {
-                response = HttpComponents.Response.ok();
-                responseBodyCallback = handler.handle(request, response, client.getInputStream());
-            }
+                Map<Frames.SettingsFrame.Setting, Integer> upgradeSettings = h2cUpgrade(request);
+                if (upgradeSettings != null) {
+                    out.write(HttpIOStream.SWITCHING_PROTOCOLS);
+                    out.flush();
+                    client.setSoTimeout(0);
+                    Session.upgradeSession(http, SessionScheduler.shared(), handler, upgradeSettings, request).run();
+                    return;
+                }
 
-            http.writeHttpResponse(response);
-            if (responseBodyCallback != null) {
-                log.debug("Writing response body.");
-                responseBodyCallback.handleResponseBody(client.getOutputStream());
+                boolean persists = keepAlive.persists(request, served);
+                InputStream body = http.requestBody(request);
+                try {
+                    persists = respond(http, request, body, out, client.getChannel(), handler, persists);
+                    if (!persists) {
+                        out.flush();
+                        return;
+                    }
+                    body.close(); // Skip whatever the handler left unread, to reach the next request.
+                } catch (RequestParser.BadRequestException e) {
+                    log.debug("Closing connection after a malformed body. " + e.getMessage());
+                    out.flush();
+                    return;
+                }
+                if (http.getInputStream().available() == 0) {
+                    out.flush();
+                }
             }
         } catch (RuntimeException | IOException e) {
             throw new RuntimeException(e);
@@ -43,8 +139,409 @@ public class Templates {
         }
     }
 
+    /**
+     * The same request handling as handlerTemplate, for connections served by NioServer.
+     * Handlers run on the shared scheduler's workers, reading the body as it arrives, so never block the loop.
+     */
+    public static NioServer.NioServable nioHandlerTemplate(Handlers.Http11Handler handler) {
+        return nioHandlerTemplate(handler, KeepAlive.DEFAULT);
+    }
+
+    public static NioServer.NioServable nioHandlerTemplate(Handlers.Http11Handler handler, KeepAlive keepAlive) {
+        return connection -> new Http11NioHandler(connection, handler, keepAlive);
+    }
+
+    /**
+     * @param channel The connection's channel, if it has one and it blocks, so that files can be sent with sendfile.
+     * @param persists Whether the connection may be kept open after this response.
+     * @return Whether the connection may be kept open, which it may not if the response can only end with it.
+     */
+    private static boolean respond(HttpIOStream http, Request request, InputStream body, OutputStream out,
+                                   WritableByteChannel channel, Handlers.Http11Handler handler, boolean persists) throws IOException {
+        HttpComponents.Response response;
+
+        Handlers.ResponseBodyCallback responseBodyCallback;
+        if (!validateRequest(request)) {
+            response = new HttpComponents.Response(400, "Bad Request"); // TODO: Configure default response mesasges.
+            responseBodyCallback = null;
+            persists = false;
+        } else {
+            response = HttpComponents.Response.ok();
+            responseBodyCallback = handler.handle(request, response, body);
+        }
+
+        boolean head = "HEAD".equals(request.method);
+        boolean chunked = false;
+        if (response.header("Content-Length") == null) {
+            if (responseBodyCallback == null) {
+                response.headers.put("Content-Length", "0");
+            } else if (!head) {
+                if (HttpComponents.Message.HTTP_11.equals(request.version) && response.header("Transfer-Encoding") == null) {
+                    chunked = true;
+                    response.headers.put("Transfer-Encoding", "chunked");
+                    if (!response.trailers.isEmpty()) {
+                        response.headers.put("Trailer", String.join(", ", response.trailers.keySet()));
+                    }
+                } else {
+                    persists = false; // Only closing the connection will mark the end of the body.
+                }
+            }
+        }
+        if (!persists) {
+            response.headers.put("Connection", "close");
+        } else if ("HTTP/1.0".equals(request.version)) {
+            response.headers.put("Connection", "keep-alive");
+        }
+
+        http.writeHttpResponse(response);
+        if (responseBodyCallback == null || head) {
+            return persists;
+        }
+        log.debug("Writing response body.");
+        if (channel != null && responseBodyCallback instanceof Handlers.FileBody) {
+            out.flush();
+            ((Handlers.FileBody) responseBodyCallback).transferTo(channel);
+        } else if (chunked) {
+            ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out, response.trailers, ChunkedOutputStream.DEFAULT_CHUNK_SIZE);
+            responseBodyCallback.handleResponseBody(chunkedOut);
+            chunkedOut.close();
+        } else {
+            responseBodyCallback.handleResponseBody(out);
+        }
+        return persists;
+    }
+
+    /**
+     * Answer a request which could not be parsed. The connection is closed after, since where the next request
+     * starts cannot be known.
+     */
+    private static void rejectRequest(HttpIOStream http, RequestParser.BadRequestException e) throws IOException {
+        log.debug("Bad request. " + e.getMessage());
+        HttpComponents.Response response = new HttpComponents.Response(e.status, HttpComponents.statusReason.get(e.status));
+        response.headers.put("Content-Length", "0");
+        response.headers.put("Connection", "close");
+        http.writeHttpResponse(response);
+    }
+
+    /**
+     * The client's settings, if the request asks to be upgraded to h2c, and can be. RFC 7540 Section 3.2.
+     * A request with a body is served over HTTP/1.1 instead, since all of it would have to be read first.
+     *
+     * @return The settings from the HTTP2-Settings header, or null if the connection stays HTTP/1.1.
+     */
+    private static Map<Frames.SettingsFrame.Setting, Integer> h2cUpgrade(Request request) {
+        if (!HttpComponents.Message.HTTP_11.equals(request.version)
+                || !request.headerContains("Upgrade", "h2c")
+                || !request.headerContains("Connection", "Upgrade")
+                || !request.headerContains("Connection", "HTTP2-Settings")
+                || request.header("Transfer-Encoding") != null
+                || !validateRequest(request)) {
+            return null;
+        }
+        String contentLength = request.header("Content-Length");
+        if (contentLength != null && Long.parseLong(contentLength) != 0) {
+            return null;
+        }
+        // Exactly one HTTP2-Settings header. Repeated ones are joined with a comma, which base64url does not use.
+        String settings = request.header("HTTP2-Settings");
+        return settings == null ? null : Session.decodeSettings(settings);
+    }
+
     public static boolean validateRequest(Request header) {
         List<String> validMethods = Arrays.asList("HEAD", "GET", "POST");
         return validMethods.contains(header.method);
     }
+
+    /**
+     * Parses each request head as it arrives, on the loop, then hands the request to a worker to be answered, with
+     * a body which is passed on as it arrives. A chunked body is decoded as it arrives, so only its data is passed on.
+     * Reading stops while the handler is behind with the body, and while its response is being written, so that a
+     * large body, or pipelined requests, wait in the socket's buffer rather than in memory.
+     */
+    private static class Http11NioHandler implements NioConnection.Handler {
+
+        // The most of a request body held for the handler before reading stops.
+        private static final int MAX_BUFFERED_BODY = 256 * 1024;
+        private static final int MAX_DECODED_PIECE = 16 * 1024;
+
+        private final NioConnection connection;
+        private final Handlers.Http11Handler handler;
+        private final KeepAlive keepAlive;
+        private final Executor workers = SessionScheduler.shared().workers();
+        private final RequestParser parser = new RequestParser();
+        // Shared by the connection's responses, which are written one at a time, so that each reuses what the
+        // encoder has kept from the last.
+        private final OutputStream out;
+        private final HttpIOStream http;
+        // Bytes read but not yet parsed.
+        private byte[] received = new byte[1024];
+        private int receivedLength;
+        // The request whose body is still arriving, if any, and what is left of it.
+        private Request request;
+        private RequestBodyStream body;
+        private long bodyRemaining;
+        private ChunkedDecoder chunks;
+        // Whether a worker is answering a request.
+        private boolean responding;
+        private boolean reading = true;
+        private int served;
+        private boolean closing;
+        // Whether the client has shut down its output, so that nothing follows what has been received.
+        private boolean inputEnded;
+        // The HTTP/2 session which took over the connection, once upgraded.
+        private NioConnection.Handler upgraded;
+        private long lastRead = System.nanoTime();
+
+        Http11NioHandler(NioConnection connection, Handlers.Http11Handler handler, KeepAlive keepAlive) {
+            this.connection = connection;
+            this.handler = handler;
+            this.keepAlive = keepAlive;
+            this.out = new BufferedOutputStream(connection.getOutputStream());
+            this.http = new HttpIOStream(InputStream.nullInputStream(), out);
+            scheduleIdleCheck(keepAlive.idleTimeout.toNanos());
+        }
+
+        @Override
+        public void onRead(NioConnection connection, ByteBuffer input) throws IOException {
+            if (closing) {
+                return;
+            }
+            lastRead = System.nanoTime();
+
+            int count = input.remaining();
+            if (received.length < receivedLength + count) {
+                received = Arrays.copyOf(received, Math.max(2 * received.length, receivedLength + count));
+            }
+            input.get(received, receivedLength, count);
+            receivedLength += count;
+            process();
+        }
+
+        /**
+         * Answer whatever complete requests have been received, then close. A body cut short fails its reads.
+         */
+        @Override
+        public void onEndOfInput(NioConnection connection) {
+            inputEnded = true;
+            if (request != null) {
+                body.abandon(new IOException("Connection closed before the request body ended."));
+                request = null;
+                closing = true;
+            }
+            if (!responding) {
+                closing = true;
+                connection.closeAfterWrite();
+            }
+        }
+
+        @Override
+        public void onClose(NioConnection connection) {
+            if (body != null) {
+                body.abandon(new IOException("Connection closed before the request body ended."));
+            }
+        }
+
+        /**
+         * Pass on what has been received of a body, then parse and dispatch the next request, unless one is still
+         * being answered.
+         */
+        private void process() throws IOException {
+            ByteBuffer unparsed = ByteBuffer.wrap(received, 0, receivedLength);
+            try {
+                while (!closing && upgraded == null) {
+                    if (request != null) {
+                        if (!passBody(unparsed)) {
+                            break;
+                        }
+                    } else if (responding || !parser.parse(unparsed)) {
+                        break;
+                    } else {
+                        Request parsed = parser.request();
+                        Map<Frames.SettingsFrame.Setting, Integer> upgradeSettings = h2cUpgrade(parsed);
+                        if (upgradeSettings != null) {
+                            connection.write(ByteBuffer.wrap(HttpIOStream.SWITCHING_PROTOCOLS));
+                            upgraded = Session.upgradeNioSession(connection, handler, upgradeSettings, parsed);
+                            break;
+                        }
+                        dispatch(parsed, unparsed);
+                    }
+                }
+            } catch (RequestParser.BadRequestException e) {
+                closing = true;
+                if (request == null) {
+                    rejectRequest(http, e);
+                    out.flush();
+                } else {
+                    body.abandon(new IOException("Malformed request body. " + e.getMessage()));
+                    request = null;
+                }
+                if (!responding) {
+                    connection.closeAfterWrite();
+                }
+            }
+
+            if (upgraded != null) {
+                // Whatever followed the upgrade request, such as the client preface, belongs to the session.
+                connection.setHandler(upgraded);
+                if (unparsed.hasRemaining()) {
+                    upgraded.onRead(connection, unparsed);
+                }
+                return;
+            }
+
+            // Only what is unparsed need be kept, since the parser has copied any partial head.
+            receivedLength = unparsed.remaining();
+            System.arraycopy(received, unparsed.position(), received, 0, receivedLength);
+            updateReading();
+        }
+
+        /**
+         * Hand a request to a worker, with its body, which is passed on as it arrives.
+         */
+        private void dispatch(Request parsed, ByteBuffer unparsed) {
+            boolean persists = keepAlive.persists(parsed, ++served);
+            InputStream requestBody;
+            if (parser.isChunked() || parser.contentLength() > 0) {
+                request = parsed;
+                chunks = parser.isChunked() ? new ChunkedDecoder() : null;
+                bodyRemaining = parser.contentLength();
+                body = new RequestBodyStream(() -> connection.getEventLoop().execute(this::onBodyRead));
+                requestBody = body;
+                if (!unparsed.hasRemaining() && HttpComponents.Message.HTTP_11.equals(parsed.version)
+                        && parsed.headerContains("Expect", "100-continue")) {
+                    connection.write(ByteBuffer.wrap(HttpIOStream.CONTINUE));
+                }
+            } else {
+                requestBody = InputStream.nullInputStream();
+            }
+            parser.reset();
+            responding = true;
+            workers.execute(() -> respondOnWorker(parsed, requestBody, persists));
+        }
+
+        /**
+         * Answer a request, writing the response to the connection as it is produced, then tell the loop.
+         * Runs on a worker.
+         */
+        private void respondOnWorker(Request request, InputStream body, boolean persists) {
+            try {
+                persists = respond(http, request, body, out, null, handler, persists);
+                out.flush();
+            } catch (IOException | RuntimeException e) {
+                log.error("Failure while responding! Closing connection.", e);
+                persists = false;
+            } finally {
+                closeQuietly(body); // Drop whatever the handler left unread, to reach the next request.
+            }
+            boolean kept = persists;
+            connection.getEventLoop().execute(() -> onResponded(kept));
+        }
+
+        /**
+         * Carry on with the next request, if the connection persists. Runs on the loop.
+         */
+        private void onResponded(boolean persists) {
+            responding = false;
+            lastRead = System.nanoTime();
+            if (request == null) {
+                body = null;
+            }
+            if (closing || !persists) {
+                closing = true;
+                connection.closeAfterWrite();
+                return;
+            }
+            try {
+                process();
+            } catch (IOException e) {
+                log.debug("Closing connection. " + e.getMessage());
+                connection.close();
+                return;
+            }
+            if (inputEnded && !responding) {
+                closing = true;
+                connection.closeAfterWrite();
+            }
+        }
+
+        /**
+         * Pass on as much of the body as has been received.
+         *
+         * @return True once all of the body has been passed on.
+         */
+        private boolean passBody(ByteBuffer unparsed) throws RequestParser.BadRequestException {
+            if (chunks == null) {
+                int count = (int) Math.min(unparsed.remaining(), bodyRemaining);
+                if (count > 0) {
+                    body.offer(Arrays.copyOfRange(received, unparsed.position(), unparsed.position() + count));
+                    unparsed.position(unparsed.position() + count);
+                    bodyRemaining -= count;
+                }
+                if (bodyRemaining > 0) {
+                    return false;
+                }
+            } else {
+                while (!chunks.isDone() && unparsed.hasRemaining()) {
+                    byte[] piece = new byte[Math.min(unparsed.remaining(), MAX_DECODED_PIECE)];
+                    int count = chunks.decode(unparsed, piece, 0, piece.length);
+                    if (count > 0) {
+                        body.offer(count == piece.length ? piece : Arrays.copyOf(piece, count));
+                    }
+                }
+                if (!chunks.isDone()) {
+                    return false;
+                }
+                // Added before the body ends, so the handler sees them once it has read the body to its end.
+                request.trailers.putAll(chunks.getTrailers());
+                chunks = null;
+            }
+            body.end();
+            request = null;
+            return true;
+        }
+
+        /**
+         * Credit what the handler has read of the body, reading more once it has caught up. Runs on the loop.
+         */
+        private void onBodyRead() {
+            if (body != null) {
+                body.takeRead();
+                updateReading();
+            }
+        }
+
+        /**
+         * Read while a body is arriving that the handler is keeping up with, or while no request is being answered.
+         */
+        private void updateReading() {
+            boolean wanted = request != null ? body.available() < MAX_BUFFERED_BODY : !responding;
+            if (wanted != reading && !connection.isClosed()) {
+                reading = wanted;
+                connection.setReading(wanted);
+            }
+        }
+
+        /**
+         * Close the connection once nothing has been read for the idle timeout.
+         */
+        private void scheduleIdleCheck(long delayNanos) {
+            connection.getEventLoop().schedule(() -> {
+                if (connection.isClosed() || closing || upgraded != null) {
+                    return;
+                }
+                if (responding) {
+                    scheduleIdleCheck(keepAlive.idleTimeout.toNanos()); // Not idle while the handler is busy.
+                    return;
+                }
+                long idleNanos = System.nanoTime() - lastRead;
+                long timeoutNanos = keepAlive.idleTimeout.toNanos();
+                if (idleNanos >= timeoutNanos) {
+                    log.debug("Closing idle connection. " + connection);
+                    connection.close();
+                } else {
+                    scheduleIdleCheck(timeoutNanos - idleNanos);
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
 }
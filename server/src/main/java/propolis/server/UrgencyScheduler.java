@@ -0,0 +1,320 @@
+package propolis.server;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Writes DATA in the order of the extensible priorities of RFC 9218: an urgency from 0, the most urgent, to 7, and
+ * whether a response is useful incrementally, as it arrives, or only once whole.
+ *
+ * Streams with data ready wait in one of eight buckets, one per urgency, and the most urgent bucket with any goes
+ * first. Within a bucket, incremental streams take turns a frame at a time, round-robin. Non-incremental streams are
+ * sent one at a time, in stream order, and together take one turn in the round-robin, so that neither kind holds up
+ * the other. RFC 9218 Section 10.
+ *
+ * Choosing each frame is constant time: the buckets are intrusive linked lists, and a bitmask tells which have
+ * streams. Non-incremental streams are kept in stream order, so adding one is constant time only at either end of
+ * its list, as for a newly opened stream, or for the stream being sent once it has more data. Otherwise it takes
+ * time linear in the number of streams it is added behind, as when a stream opened earlier becomes ready late.
+ *
+ * Priorities sent for streams not yet open, in PRIORITY_UPDATE frames, are kept for when they open, but only the
+ * latest MAX_RETAINED of them. RFC 9218 Section 7.1.
+ */
+public final class UrgencyScheduler extends WriteScheduler {
+
+    public static final int DEFAULT_URGENCY = 3;
+    public static final int URGENCIES = 8;
+
+    // Priorities kept for streams which are not open.
+    public static final int MAX_RETAINED = 100;
+
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final Bucket[] buckets = new Bucket[URGENCIES];
+    // Bit u is set while bucket u has streams with data ready.
+    private int readyBuckets;
+    // In the order they were retained, oldest first.
+    private final LinkedHashSet<Entry> retained = new LinkedHashSet<>();
+
+    private static final class Entry extends StreamQueue {
+
+        int urgency = DEFAULT_URGENCY;
+        boolean incremental;
+        // Set by a PRIORITY_UPDATE frame, after which the request's header is ignored.
+        boolean updated;
+        // The bucket list the entry is in, while it has data ready.
+        EntryList list;
+        Entry previous;
+        Entry next;
+
+        Entry(int streamId) {
+            super(streamId);
+        }
+    }
+
+    /**
+     * A doubly linked list of entries.
+     */
+    private static final class EntryList {
+
+        Entry head;
+        Entry tail;
+
+        boolean isEmpty() {
+            return head == null;
+        }
+
+        void addLast(Entry entry) {
+            entry.list = this;
+            entry.previous = tail;
+            entry.next = null;
+            if (tail == null) {
+                head = entry;
+            } else {
+                tail.next = entry;
+            }
+            tail = entry;
+        }
+
+        /**
+         * Add in order of stream identifier. Searches from the back, since streams mostly open in order, unless the
+         * entry goes first, as the stream being sent does when it has more data after draining.
+         */
+        void addInOrder(Entry entry) {
+            if (head != null && entry.streamId < head.streamId) {
+                entry.list = this;
+                entry.previous = null;
+                entry.next = head;
+                head.previous = entry;
+                head = entry;
+                return;
+            }
+            Entry after = tail;
+            while (after != null && after.streamId > entry.streamId) {
+                after = after.previous;
+            }
+            if (after == tail) {
+                addLast(entry);
+                return;
+            }
+            entry.list = this;
+            entry.previous = after;
+            entry.next = after == null ? head : after.next;
+            entry.next.previous = entry;
+            if (after == null) {
+                head = entry;
+            } else {
+                after.next = entry;
+            }
+        }
+
+        void remove(Entry entry) {
+            if (entry.previous == null) {
+                head = entry.next;
+            } else {
+                entry.previous.next = entry.next;
+            }
+            if (entry.next == null) {
+                tail = entry.previous;
+            } else {
+                entry.next.previous = entry.previous;
+            }
+            entry.list = null;
+            entry.previous = null;
+            entry.next = null;
+        }
+    }
+
+    private static final class Bucket {
+
+        final EntryList incremental = new EntryList();
+        final EntryList sequential = new EntryList();
+        // Whether the non-incremental streams have the next turn, when there are both kinds.
+        boolean sequentialTurn;
+
+        boolean isEmpty() {
+            return incremental.isEmpty() && sequential.isEmpty();
+        }
+    }
+
+    public UrgencyScheduler() {
+        for (int urgency = 0; urgency < URGENCIES; urgency++) {
+            buckets[urgency] = new Bucket();
+        }
+    }
+
+    @Override
+    public synchronized void open(int streamId) {
+        Entry entry = entries.get(streamId);
+        if (entry == null) {
+            entry = new Entry(streamId);
+            entries.put(streamId, entry);
+        }
+        entry.open = true;
+        retained.remove(entry);
+    }
+
+    /**
+     * Forget the stream, once its frames have been written.
+     */
+    @Override
+    public synchronized void close(int streamId) {
+        Entry entry = entries.get(streamId);
+        if (entry != null && entry.open) {
+            entry.open = false;
+            removeIfDone(entry);
+        }
+    }
+
+    @Override
+    public synchronized void prioritize(int streamId, String priority) {
+        Entry entry = entries.get(streamId);
+        if (entry != null && !entry.updated && priority != null) {
+            reprioritize(entry, priority);
+        }
+    }
+
+    @Override
+    public synchronized void updatePriority(int streamId, String priority) {
+        Entry entry = entries.get(streamId);
+        if (entry == null) {
+            entry = new Entry(streamId);
+            entries.put(streamId, entry);
+            retain(entry);
+        }
+        entry.updated = true;
+        reprioritize(entry, priority);
+    }
+
+    /**
+     * @return The urgency of the stream, as last prioritized, or -1 if it is not kept.
+     */
+    public synchronized int urgency(int streamId) {
+        Entry entry = entries.get(streamId);
+        return entry == null ? -1 : entry.urgency;
+    }
+
+    /**
+     * @return The number of streams kept, which bounds the scheduler's memory.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    StreamQueue queue(int streamId) {
+        return entries.get(streamId);
+    }
+
+    @Override
+    Iterable<? extends StreamQueue> queues() {
+        return entries.values();
+    }
+
+    @Override
+    void onReady(StreamQueue queue) {
+        schedule((Entry) queue);
+    }
+
+    @Override
+    void onDrained(StreamQueue queue) {
+        Entry entry = (Entry) queue;
+        unschedule(entry);
+        removeIfDone(entry);
+    }
+
+    @Override
+    Frames.HttpFrame pollData() {
+        if (readyBuckets == 0) {
+            return null;
+        }
+        Bucket bucket = buckets[Integer.numberOfTrailingZeros(readyBuckets)];
+        boolean sequential = bucket.incremental.isEmpty()
+                || !bucket.sequential.isEmpty() && bucket.sequentialTurn;
+        bucket.sequentialTurn = !sequential;
+        Entry entry = sequential ? bucket.sequential.head : bucket.incremental.head;
+        Frames.HttpFrame frame = take(entry);
+        if (!entry.hasFrames()) {
+            unschedule(entry);
+            removeIfDone(entry);
+        } else if (!sequential) {
+            // To the back of the round-robin.
+            bucket.incremental.remove(entry);
+            bucket.incremental.addLast(entry);
+        }
+        return frame;
+    }
+
+    /**
+     * Parse a priority, a Structured Fields Dictionary such as "u=1, i". Members not understood are ignored, and
+     * the defaults apply to what is missing. RFC 9218 Section 4.
+     */
+    private void reprioritize(Entry entry, String priority) {
+        int urgency = DEFAULT_URGENCY;
+        boolean incremental = false;
+        for (String member : priority.split(",")) {
+            int parameters = member.indexOf(';');
+            if (parameters >= 0) {
+                member = member.substring(0, parameters);
+            }
+            member = member.trim();
+            int equals = member.indexOf('=');
+            String key = equals < 0 ? member : member.substring(0, equals);
+            String value = equals < 0 ? "?1" : member.substring(equals + 1);
+            if (key.equals("u") && value.length() == 1 && value.charAt(0) >= '0' && value.charAt(0) < '0' + URGENCIES) {
+                urgency = value.charAt(0) - '0';
+            } else if (key.equals("i") && (value.equals("?1") || value.equals("?0"))) {
+                incremental = value.equals("?1");
+            }
+        }
+        boolean scheduled = entry.list != null;
+        if (scheduled) {
+            unschedule(entry);
+        }
+        entry.urgency = urgency;
+        entry.incremental = incremental;
+        if (scheduled) {
+            schedule(entry);
+        }
+    }
+
+    private void schedule(Entry entry) {
+        Bucket bucket = buckets[entry.urgency];
+        if (entry.incremental) {
+            bucket.incremental.addLast(entry);
+        } else {
+            bucket.sequential.addInOrder(entry);
+        }
+        readyBuckets |= 1 << entry.urgency;
+    }
+
+    private void unschedule(Entry entry) {
+        if (entry.list == null) {
+            return;
+        }
+        entry.list.remove(entry);
+        if (buckets[entry.urgency].isEmpty()) {
+            readyBuckets &= ~(1 << entry.urgency);
+        }
+    }
+
+    private void removeIfDone(Entry entry) {
+        if (!entry.open && !entry.hasFrames() && entries.get(entry.streamId) == entry) {
+            entries.remove(entry.streamId);
+            retained.remove(entry);
+            forget(entry);
+        }
+    }
+
+    /**
+     * Keep the priority of a stream which is not open, forgetting the oldest kept if there are too many.
+     */
+    private void retain(Entry entry) {
+        retained.add(entry);
+        while (retained.size() > MAX_RETAINED) {
+            Entry oldest = retained.iterator().next();
+            retained.remove(oldest);
+            entries.remove(oldest.streamId);
+        }
+    }
+}
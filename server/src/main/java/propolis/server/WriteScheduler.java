@@ -0,0 +1,182 @@
+package propolis.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * The frames a session has yet to write, and the order to write them in.
+ *
+ * Frames other than DATA are written first, in the order sent, since they are small and mostly urgent: SETTINGS,
+ * PING acknowledgements, the HEADERS which start responses. DATA waits in a queue for its stream, and subclasses
+ * choose whose goes next, by the streams' priorities.
+ *
+ * A stream's frames stay in order: once it has DATA waiting, whatever else it sends queues behind it. A header block
+ * is written whole, without other frames between its HEADERS and CONTINUATIONs. RFC 7540 Section 6.10.
+ *
+ * Frames are added by workers and taken by the session, so every method holds this object's lock.
+ */
+public abstract class WriteScheduler {
+
+    private final ArrayDeque<Frames.HttpFrame> control = new ArrayDeque<>();
+    // The stream whose header block is part written, which nothing else may interrupt, or null.
+    private StreamQueue continued;
+
+    /**
+     * The frames of a stream, waiting their turn.
+     */
+    static class StreamQueue {
+
+        final int streamId;
+        boolean open;
+        // Created when first needed.
+        private ArrayDeque<Frames.HttpFrame> frames;
+
+        StreamQueue(int streamId) {
+            this.streamId = streamId;
+        }
+
+        boolean hasFrames() {
+            return frames != null && !frames.isEmpty();
+        }
+    }
+
+    /**
+     * Add a frame to be written.
+     */
+    public synchronized void add(Frames.HttpFrame frame) {
+        StreamQueue queue = frame.streamId == 0 ? null : queue(frame.streamId);
+        boolean headerBlockPart = (frame.type == Frames.Type.HEADERS.ordinal()
+                || frame.type == Frames.Type.CONTINUATION.ordinal()) && (frame.flags & 0x4) == 0;
+        if (queue == null || !(frame.type == Frames.Type.DATA.ordinal() || queue.hasFrames() || headerBlockPart
+                || continued == queue)) {
+            control.add(frame);
+            return;
+        }
+        if (queue.frames == null) {
+            queue.frames = new ArrayDeque<>();
+        }
+        queue.frames.add(frame);
+        if (queue.frames.size() == 1) {
+            onReady(queue);
+        }
+    }
+
+    /**
+     * @return The next frame to write, or null if there is none, or the next is part of a header block not yet sent.
+     */
+    public synchronized Frames.HttpFrame poll() {
+        if (continued != null) {
+            StreamQueue queue = continued;
+            Frames.HttpFrame frame = take(queue);
+            if (frame != null && !queue.hasFrames()) {
+                onDrained(queue);
+            }
+            return frame;
+        }
+        if (!control.isEmpty()) {
+            return control.poll();
+        }
+        return pollData();
+    }
+
+    /**
+     * Release every frame not yet written.
+     */
+    public synchronized void clear() {
+        continued = null;
+        releaseAll(control);
+        for (StreamQueue queue : queues()) {
+            releaseAll(queue.frames);
+        }
+    }
+
+    /**
+     * Move the frames not yet written to another scheduler, as when changing how streams are prioritized before any
+     * have opened. Only frames outside any stream's queue are moved.
+     */
+    synchronized void moveTo(WriteScheduler other) {
+        Frames.HttpFrame frame;
+        while ((frame = control.poll()) != null) {
+            other.add(frame);
+        }
+    }
+
+    /**
+     * Add a stream which has opened, with the default priority unless it already has one.
+     */
+    public abstract void open(int streamId);
+
+    /**
+     * Note that a stream has closed, though its frames may still be waiting.
+     */
+    public abstract void close(int streamId);
+
+    /**
+     * Apply a priority from a PRIORITY frame or a HEADERS frame. RFC 7540 Section 5.3. Ignored unless overridden.
+     *
+     * @param weight Between 1 and 256, one more than as sent.
+     */
+    public void prioritize(int streamId, int dependency, int weight, boolean exclusive) {
+    }
+
+    /**
+     * Apply the priority header of a request. RFC 9218 Section 5. Ignored unless overridden.
+     *
+     * @param priority The header's value, or null if the request has none.
+     */
+    public void prioritize(int streamId, String priority) {
+    }
+
+    /**
+     * Apply a PRIORITY_UPDATE frame, which takes precedence over the request's header. RFC 9218 Section 7.
+     * Ignored unless overridden.
+     */
+    public void updatePriority(int streamId, String priority) {
+    }
+
+    /**
+     * @return The queue for the stream, or null if it has none.
+     */
+    abstract StreamQueue queue(int streamId);
+
+    abstract Iterable<? extends StreamQueue> queues();
+
+    /**
+     * Called when a queue gains frames, having had none.
+     */
+    abstract void onReady(StreamQueue queue);
+
+    /**
+     * Called when the rest of a header block empties a queue, outside of pollData.
+     */
+    abstract void onDrained(StreamQueue queue);
+
+    /**
+     * @return The next frame from the queue whose turn it is, using take, or null if none has frames.
+     */
+    abstract Frames.HttpFrame pollData();
+
+    final Frames.HttpFrame take(StreamQueue queue) {
+        Frames.HttpFrame frame = queue.frames == null ? null : queue.frames.poll();
+        if (frame != null && (frame.type == Frames.Type.HEADERS.ordinal()
+                || frame.type == Frames.Type.CONTINUATION.ordinal())) {
+            continued = (frame.flags & 0x4) == 0 ? queue : null;
+        }
+        return frame;
+    }
+
+    /**
+     * Forget a queue which is being removed.
+     */
+    final void forget(StreamQueue queue) {
+        if (continued == queue) {
+            continued = null;
+        }
+    }
+
+    private static void releaseAll(ArrayDeque<Frames.HttpFrame> frames) {
+        Frames.HttpFrame frame;
+        while (frames != null && (frame = frames.poll()) != null) {
+            frame.release();
+        }
+    }
+}
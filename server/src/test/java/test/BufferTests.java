@@ -0,0 +1,104 @@
+package test;
+
+import org.junit.Test;
+import propolis.server.BufferPool;
+import propolis.server.FrameCodec;
+import propolis.server.Frames;
+import propolis.server.HttpIOStream;
+import propolis.server.PooledBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferTests {
+
+    @Test
+    public void shouldRecycleReleasedBuffers() {
+        BufferPool pool = new BufferPool(false);
+        PooledBuffer first = pool.acquire(100);
+        first.nioBuffer().put(0, (byte) 42);
+        assertTrue(first.release());
+
+        PooledBuffer second = pool.acquire(120);
+        assertEquals(120, second.length());
+        assertEquals("Expected the released buffer to be reused!", 42, second.nioBuffer().get(0));
+        second.release();
+    }
+
+    @Test
+    public void shouldAllocateDirectBuffersFromADirectPool() {
+        PooledBuffer buffer = new BufferPool(true).acquire(10);
+        assertTrue(buffer.isDirect());
+        buffer.release();
+    }
+
+    @Test
+    public void shouldOnlyRecycleOnceEveryReferenceIsReleased() {
+        BufferPool pool = new BufferPool(false);
+        PooledBuffer buffer = pool.acquire(10);
+        buffer.retain();
+
+        assertFalse(buffer.release());
+        assertEquals(1, pool.getOutstanding());
+        buffer.nioBuffer(); // Still usable by the other holder.
+        assertTrue(buffer.release());
+        assertEquals(0, pool.getOutstanding());
+
+        try {
+            buffer.nioBuffer();
+            fail("Expected use after release to fail!");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            buffer.release();
+            fail("Expected a second release to fail!");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void shouldDetectFramesLeakedBetweenReadAndWrite() throws IOException {
+        BufferPool pool = new BufferPool(false);
+        pool.setLeakDetection(true);
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        HttpIOStream writer = new HttpIOStream(new ByteArrayInputStream(new byte[0]), wire);
+        for (int i = 0; i < 3; i++) {
+            writer.writeFrame(new Frames.HttpFrame(i + 1, Frames.Type.DATA, 0, new byte[2000]));
+        }
+
+        FrameCodec codec = new FrameCodec(pool);
+        ByteBuffer input = ByteBuffer.wrap(wire.toByteArray());
+        Frames.HttpFrame kept = null;
+        HttpIOStream echo = new HttpIOStream(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+        Frames.HttpFrame frame;
+        while ((frame = codec.decode(input)) != null) {
+            if (kept == null) {
+                kept = frame;
+            } else {
+                echo.writeFrame(frame);
+            }
+        }
+
+        assertEquals(1, pool.getOutstanding());
+        try {
+            pool.checkLeaks();
+            fail("Expected the kept frame to be reported!");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getCause().getStackTrace().length > 0);
+        }
+
+        assertArrayEquals(new byte[2000], kept.payloadBytes());
+        kept.release();
+        pool.checkLeaks();
+        assertEquals(0, pool.getOutstanding());
+    }
+}
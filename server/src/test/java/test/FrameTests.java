@@ -4,8 +4,19 @@ import org.junit.Assert;
 import org.junit.Test;
 import propolis.server.FrameFactory;
 import propolis.server.Frames;
-
+import propolis.server.HttpIOStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.EnumMap;
 import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class FrameTests {
 
@@ -20,7 +31,7 @@ public class FrameTests {
         Assert.assertEquals(expectedDataFrame.flagPadded, actualDataFrame.flagPadded);
 
         Assert.assertArrayEquals(expectedDataFrame.data, actualDataFrame.data);
-        Assert.assertArrayEquals(expectedDataFrame.asHttpFrame().payload, actualDataFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedDataFrame.asHttpFrame().payloadBytes(), actualDataFrame.asHttpFrame().payloadBytes());
     }
 
     @Test
@@ -40,7 +51,7 @@ public class FrameTests {
         Assert.assertEquals(expectedHeadersFrame.flagPriority, actualHeadersFrame.flagPriority);
 
         Assert.assertEquals(expectedHeadersFrame.headers, actualHeadersFrame.headers);
-        Assert.assertArrayEquals(expectedHeadersFrame.asHttpFrame().payload, actualHeadersFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedHeadersFrame.asHttpFrame().payloadBytes(), actualHeadersFrame.asHttpFrame().payloadBytes());
     }
 
     @Test
@@ -53,7 +64,7 @@ public class FrameTests {
         Assert.assertEquals(expectedPriorityFrame.weight, actualPriorityFrame.weight);
 
         Assert.assertEquals(0, actualPriorityFrame.asHttpFrame().flags);
-        Assert.assertArrayEquals(expectedPriorityFrame.asHttpFrame().payload, actualPriorityFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedPriorityFrame.asHttpFrame().payloadBytes(), actualPriorityFrame.asHttpFrame().payloadBytes());
     }
 
     @Test
@@ -63,7 +74,7 @@ public class FrameTests {
         Frames.ResetFrame actualResetFrame = frameFactory.createResetStreamFrame(expectedResetFrame.asHttpFrame());
 
         Assert.assertEquals(expectedResetFrame.error, actualResetFrame.error);
-        Assert.assertArrayEquals(expectedResetFrame.asHttpFrame().payload, actualResetFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedResetFrame.asHttpFrame().payloadBytes(), actualResetFrame.asHttpFrame().payloadBytes());
     }
 
     @Test
@@ -74,7 +85,27 @@ public class FrameTests {
         Assert.assertEquals(expectedSettingsFrame.ack, actualSettingsFrame.ack);
         Assert.assertEquals(expectedSettingsFrame.settings, actualSettingsFrame.settings);
 
-        Assert.assertArrayEquals(expectedSettingsFrame.asHttpFrame().payload, actualSettingsFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedSettingsFrame.asHttpFrame().payloadBytes(), actualSettingsFrame.asHttpFrame().payloadBytes());
+    }
+
+    @Test
+    public void shouldEncodeSettingsWithTheirIdentifiers() {
+        Map<Frames.SettingsFrame.Setting, Integer> settings = new EnumMap<>(Frames.SettingsFrame.Setting.class);
+        settings.put(Frames.SettingsFrame.Setting.SETTINGS_MAX_CONCURRENT_STREAMS, 100);
+        settings.put(Frames.SettingsFrame.Setting.SETTINGS_INITIAL_WINDOW_SIZE, 0x12345678);
+        Frames.HttpFrame httpFrame = new Frames.SettingsFrame(false, settings).asHttpFrame();
+
+        Assert.assertArrayEquals(new byte[]{0, 3, 0, 0, 0, 100, 0, 4, 0x12, 0x34, 0x56, 0x78}, httpFrame.payloadBytes());
+        Assert.assertEquals(settings, frameFactory.createSettingsFrame(httpFrame).settings);
+    }
+
+    @Test
+    public void shouldIgnoreUnknownSettings() {
+        byte[] payload = {0, 5, 0, 0, 0x40, 0, 0, 0x7f, 0, 0, 0, 1};
+        Frames.SettingsFrame settingsFrame = frameFactory.createSettingsFrame(new Frames.HttpFrame(0, Frames.Type.SETTINGS, 0, payload));
+
+        Assert.assertEquals(1, settingsFrame.settings.size());
+        Assert.assertEquals(Integer.valueOf(0x4000), settingsFrame.settings.get(Frames.SettingsFrame.Setting.SETTINGS_MAX_FRAME_SIZE));
     }
 
     @Test
@@ -90,16 +121,16 @@ public class FrameTests {
         Assert.assertEquals(expectedPushPromiseFrame.flagEndHeaders, actualPushPromiseFrame.flagEndHeaders);
         Assert.assertEquals(expectedPushPromiseFrame.flagPadded, actualPushPromiseFrame.flagPadded);
 
-        Assert.assertArrayEquals(expectedPushPromiseFrame.asHttpFrame().payload, actualPushPromiseFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedPushPromiseFrame.asHttpFrame().payloadBytes(), actualPushPromiseFrame.asHttpFrame().payloadBytes());
     }
 
     @Test
     public void shouldEncodeDecodePingFrame() {
         Frames.PingFrame expectedPingFrame = new Frames.PingFrame();
         Frames.PingFrame actualPingFrame = frameFactory.createPingFrame(expectedPingFrame.asHttpFrame());
-        Assert.assertEquals(expectedPingFrame.data, actualPingFrame.data);
+        Assert.assertArrayEquals(expectedPingFrame.data, actualPingFrame.data);
         Assert.assertEquals(expectedPingFrame.ack, actualPingFrame.ack);
-        Assert.assertArrayEquals(expectedPingFrame.asHttpFrame().payload, actualPingFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedPingFrame.asHttpFrame().payloadBytes(), actualPingFrame.asHttpFrame().payloadBytes());
     }
 
     @Test
@@ -114,7 +145,7 @@ public class FrameTests {
         Assert.assertEquals(expectedGoAwayFrame.error, actualGoAwayFrame.error);
         Assert.assertArrayEquals(expectedGoAwayFrame.data, actualGoAwayFrame.data);
 
-        Assert.assertArrayEquals(expectedGoAwayFrame.asHttpFrame().payload, actualGoAwayFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedGoAwayFrame.asHttpFrame().payloadBytes(), actualGoAwayFrame.asHttpFrame().payloadBytes());
     }
 
     @Test
@@ -124,7 +155,7 @@ public class FrameTests {
 
         Assert.assertEquals(expectedWindowUpdateFrame.canTransmit, actualWindowUpdateFrame.canTransmit);
 
-        Assert.assertArrayEquals(expectedWindowUpdateFrame.asHttpFrame().payload, actualWindowUpdateFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedWindowUpdateFrame.asHttpFrame().payloadBytes(), actualWindowUpdateFrame.asHttpFrame().payloadBytes());
     }
 
     @Test
@@ -136,6 +167,93 @@ public class FrameTests {
         Assert.assertEquals(expectedContinuationFrame.flagEndHeaders, actualContinuationFrame.flagEndHeaders);
         Assert.assertEquals(expectedContinuationFrame.headers, actualContinuationFrame.headers);
 
-        Assert.assertArrayEquals(expectedContinuationFrame.asHttpFrame().payload, actualContinuationFrame.asHttpFrame().payload);
+        Assert.assertArrayEquals(expectedContinuationFrame.asHttpFrame().payloadBytes(), actualContinuationFrame.asHttpFrame().payloadBytes());
+    }
+
+    @Test
+    public void shouldReadManySmallFramesFromOneRead() throws IOException {
+        byte[] wire = writeFrames(100, 10);
+        CountingInputStream input = new CountingInputStream(new ByteArrayInputStream(wire), wire.length);
+        HttpIOStream httpIOStream = new HttpIOStream(input, new ByteArrayOutputStream());
+
+        for (int i = 0; i < 100; i++) {
+            Frames.HttpFrame frame = httpIOStream.readFrame();
+            Assert.assertEquals(i + 1, frame.streamId);
+            Assert.assertArrayEquals(payload(i, 10), frame.payloadBytes());
+        }
+        Assert.assertEquals(1, input.reads);
+    }
+
+    @Test
+    public void shouldReadFramesStraddlingShortReads() throws IOException {
+        byte[] wire = writeFrames(20, 1000);
+        CountingInputStream input = new CountingInputStream(new ByteArrayInputStream(wire), 7);
+        HttpIOStream httpIOStream = new HttpIOStream(input, new ByteArrayOutputStream());
+
+        for (int i = 0; i < 20; i++) {
+            Frames.HttpFrame frame = httpIOStream.readFrame();
+            Assert.assertEquals(i + 1, frame.streamId);
+            Assert.assertEquals(Frames.Type.DATA.ordinal(), frame.type);
+            Assert.assertArrayEquals(payload(i, 1000), frame.payloadBytes());
+        }
+    }
+
+    @Test(timeout = 3000)
+    public void shouldGatherSmallAndLargeFramesIntoOneWrite() throws IOException {
+        int[] lengths = {10, Frames.SETTINGS_MAX_FRAME_LENGTH, 0, 5000, 10};
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+             Socket client = new Socket("localhost", serverChannel.socket().getLocalPort());
+             HttpIOStream writer = new HttpIOStream(serverChannel.accept().socket())) {
+
+            for (int i = 0; i < lengths.length; i++) {
+                writer.bufferFrame(new Frames.HttpFrame(i + 1, Frames.Type.DATA, 0, payload(i, lengths[i])));
+            }
+            writer.flush();
+            Assert.assertEquals(0, writer.getBufferedBytes());
+
+            HttpIOStream reader = new HttpIOStream(client);
+            for (int i = 0; i < lengths.length; i++) {
+                Frames.HttpFrame frame = reader.readFrame();
+                Assert.assertEquals(i + 1, frame.streamId);
+                Assert.assertArrayEquals(payload(i, lengths[i]), frame.payloadBytes());
+            }
+        }
+    }
+
+    private static byte[] writeFrames(int count, int payloadLength) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        HttpIOStream writer = new HttpIOStream(new ByteArrayInputStream(new byte[0]), wire);
+        for (int i = 0; i < count; i++) {
+            writer.writeFrame(new Frames.HttpFrame(i + 1, Frames.Type.DATA, 0, payload(i, payloadLength)));
+        }
+        return wire.toByteArray();
+    }
+
+    private static byte[] payload(int seed, int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    /**
+     * Counts reads, and returns no more than maxRead bytes from each.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final int maxRead;
+        int reads;
+
+        CountingInputStream(InputStream in, int maxRead) {
+            super(in);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            reads++;
+            return super.read(b, off, Math.min(len, maxRead));
+        }
     }
 }
@@ -0,0 +1,85 @@
+package test;
+
+import org.junit.Test;
+import propolis.server.HeaderIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeaderIndexTests {
+
+    @Test
+    public void shouldFindStaticEntries() {
+        HeaderIndex index = new HeaderIndex();
+        assertEquals(13, index.getIndex(":status", "404"));
+        assertEquals(8, index.getIndex(":status"));
+        assertEquals(0, index.getIndex(":status", "201"));
+        assertEquals(61, index.getIndex("www-authenticate"));
+        assertEquals(0, index.getIndex("x-custom"));
+        assertEquals(1, index.getIndex(":authority"));
+        assertEquals(new HeaderIndex.HeaderEntry(":authority").hashCode(), index.get(1).hashCode());
+    }
+
+    @Test
+    public void shouldFindTheNewestDynamicEntry() {
+        HeaderIndex index = new HeaderIndex(3 * (HeaderIndex.ENTRY_OVERHEAD + 2));
+        index.store("a", "1");
+        index.store("b", "2");
+        index.store("a", "1");
+        assertEquals(62, index.getIndex("a", "1"));
+        assertEquals(63, index.getIndex("b", "2"));
+        assertEquals(62, index.getIndex("a"));
+
+        index.store("c", "3");
+        index.store("d", "4");
+        assertEquals("Expected the oldest evicted.", 0, index.getIndex("b"));
+        assertEquals(64, index.getIndex("a", "1"));
+        assertEquals("d", index.get(62).name);
+    }
+
+    /**
+     * Compare with a list of the entries, newest first, through the ring wrapping, growing, and shrinking.
+     */
+    @Test
+    public void shouldAgreeWithAListAsEntriesComeAndGo() {
+        Random random = new Random(7541);
+        HeaderIndex index = new HeaderIndex();
+        List<HeaderIndex.HeaderEntry> expected = new ArrayList<>();
+        int maximumSize = HeaderIndex.DEFAULT_DYNAMIC_SIZE;
+        for (int i = 0; i < 20_000; i++) {
+            if (random.nextInt(500) == 0) {
+                maximumSize = random.nextInt(2 * HeaderIndex.DEFAULT_DYNAMIC_SIZE);
+                index.updateMaximumDynamicSize(maximumSize);
+            } else {
+                HeaderIndex.HeaderEntry entry = new HeaderIndex.HeaderEntry("x-" + random.nextInt(50), Integer.toString(random.nextInt(5)));
+                index.store(entry);
+                expected.add(0, entry);
+            }
+            int size = 0;
+            for (int n = 0; n < expected.size(); n++) {
+                size += HeaderIndex.size(expected.get(n));
+                if (size > maximumSize) {
+                    expected.subList(n, expected.size()).clear();
+                }
+            }
+            assertEquals(expected.size(), index.getDynamicCount());
+
+            String name = "x-" + random.nextInt(50);
+            String value = Integer.toString(random.nextInt(5));
+            assertEquals(indexOf(expected, name, value), index.getIndex(name, value));
+            assertEquals(indexOf(expected, name, null), index.getIndex(name));
+        }
+    }
+
+    private static int indexOf(List<HeaderIndex.HeaderEntry> entries, String name, String value) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).name.equals(name) && (value == null || entries.get(i).value.equals(value))) {
+                return HeaderIndex.STATIC_TABLE_SIZE + 1 + i;
+            }
+        }
+        return 0;
+    }
+}
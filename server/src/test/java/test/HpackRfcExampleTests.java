@@ -3,7 +3,9 @@ package test;
 import org.junit.Assert;
 import org.junit.Test;
 import propolis.server.Hpack;
+import propolis.server.HuffmanEncoder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
@@ -201,6 +203,10 @@ public class HpackRfcExampleTests {
     @Test
     public void shouldEncodeResponseHeaders() {
 
+        // The examples are of a 256 byte table, which the responses overflow. RFC 7541 Appendix C.5.
+        encodingContext = new Hpack(false, 256);
+        decodingContext = new Hpack(false, 256);
+
         /**
          * C.5.1.  First Response
          */
@@ -217,6 +223,7 @@ public class HpackRfcExampleTests {
                 0x74,0x74 ,0x70,0x73 ,0x3a,0x2f ,0x2f,0x77  ,0x77,0x77 ,0x2e,0x65 ,0x78,0x61 ,0x6d,0x70, // ttps://www.examp
                 0x6c,0x65 ,0x2e,0x63 ,0x6f,0x6d                                                          // le.com
         }, firstHeaders, encodingContext, decodingContext);
+        assertTableSize(222);
 
         /**
          * C.5.2.  Second Response
@@ -230,6 +237,7 @@ public class HpackRfcExampleTests {
         assertHpackEncodingEquals(new int[] {
                 0x48,0x03 ,0x33,0x30 ,0x37,0xc1 ,0xc0,0xbf                     // H.307...
         }, secondHeaders, encodingContext, decodingContext);
+        assertTableSize(222);
 
         /**
          * C.5.3.  Third Response
@@ -251,6 +259,7 @@ public class HpackRfcExampleTests {
                 0x67,0x65 ,0x3d,0x33 ,0x36,0x30 ,0x30,0x3b ,0x20,0x76 ,0x65,0x72 ,0x73,0x69 ,0x6f,0x6e, // ge=3600; version
                 0x3d,0x31                                                                               // =1
         }, thirdHeaders, encodingContext, decodingContext);
+        assertTableSize(215);
     }
 
 
@@ -260,7 +269,8 @@ public class HpackRfcExampleTests {
     @Test
     public void shouldEncodeResponseHeadersWithHuffmanEncoding() {
 
-        encodingContext.setHuffmanEncoding(true);
+        encodingContext = new Hpack(true, 256);
+        decodingContext = new Hpack(false, 256);
 
         /**
          * C.6.1.  First Response
@@ -277,6 +287,7 @@ public class HpackRfcExampleTests {
                 0x2d,0x1b ,0xff,0x6e ,0x91,0x9d ,0x29,0xad ,0x17,0x18 ,0x63,0xc7 ,0x8f,0x0b ,0x97,0xc8, // -..n..)...c.....
                 0xe9,0xae ,0x82,0xae ,0x43,0xd3                                                         // ....C.
         }, firstHeaders, encodingContext, decodingContext);
+        assertTableSize(222);
 
         /**
          * C.6.2.  Second Response
@@ -290,6 +301,7 @@ public class HpackRfcExampleTests {
         assertHpackEncodingEquals(new int[]{
                 0x48, 0x83, 0x64, 0x0e, 0xff, 0xc1, 0xc0, 0xbf                     // H.d.....
         }, secondHeaders, encodingContext, decodingContext);
+        assertTableSize(222);
 
         /**
          * C.6.3.  Third Response
@@ -309,6 +321,62 @@ public class HpackRfcExampleTests {
                 0x39,0x60 ,0xd5,0xaf ,0x27,0x08 ,0x7f,0x36 ,0x72,0xc1 ,0xab,0x27 ,0x0f,0xb5 ,0x29,0x1f, // 9`..'..6r..'..).
                 0x95,0x87 ,0x31,0x60 ,0x65,0xc0 ,0x03,0xed ,0x4e,0xe5 ,0xb1,0x06 ,0x3d,0x50 ,0x07       // ..1`e...N...=P.
         }, thirdHeaders, encodingContext, decodingContext);
+        assertTableSize(215);
+    }
+
+    /**
+     * 4.3.  Entry Eviction When Dynamic Table Size Changes
+     * 4.4.  Entry Eviction When Adding New Entries
+     */
+    @Test
+    public void shouldEvictTheOldestEntriesToStayWithinTheTableSize() throws IOException {
+        LinkedHashMap<String, String> repeated = new LinkedHashMap<>();
+        repeated.put("x-repeated", "same");
+        for (int i = 0; i < 10_000; i++) {
+            LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+            headers.put("x-request", Integer.toString(i));
+            headers.putAll(repeated);
+            Assert.assertEquals(headers, decodingContext.decodeHeaderList(encodingContext.encodeHeaderList(headers)));
+            Assert.assertTrue(encodingContext.getTableSize() <= 4096);
+        }
+        assertTableSize(encodingContext.getTableSize());
+        Assert.assertTrue("Expected an index, not a literal.", encodingContext.encodeHeaderList(repeated).length <= 2);
+
+        encodingContext.resizeTable(0);
+        byte[] block = encodingContext.encodeHeaderList(repeated);
+        Assert.assertEquals("Expected a table size update first.", 0x20, block[0]);
+        Assert.assertEquals(repeated, decodingContext.decodeHeaderList(block));
+        assertTableSize(0);
+    }
+
+    /**
+     * 5.2.  String Literal Representation. Octets outside US-ASCII decode the same on every platform.
+     */
+    @Test
+    public void shouldDecodeStringOctetsIndependentlyOfThePlatform() throws IOException {
+        byte[] value = {'c', 'a', 'f', (byte) 0xe9};
+        byte[] huffman = HuffmanEncoder.encode(value);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(new byte[]{0x00, 0x01, 'p', (byte) value.length});
+        block.write(value);
+        block.write(new byte[]{0x00, 0x01, 'h', (byte) (0x80 | huffman.length)});
+        block.write(huffman);
+
+        LinkedHashMap<String, String> headers = decodingContext.decodeHeaderList(block.toByteArray());
+        Assert.assertEquals("caf\u00e9", headers.get("p"));
+        Assert.assertEquals("caf\u00e9", headers.get("h"));
+
+        LinkedHashMap<String, String> encoded = new LinkedHashMap<>();
+        encoded.put("x-value", "caf\u00e9");
+        Assert.assertEquals(encoded, decodingContext.decodeHeaderList(encodingContext.encodeHeaderList(encoded)));
+    }
+
+    /**
+     * Assert the size of both contexts' dynamic tables, which should stay the same.
+     */
+    private void assertTableSize(int expected) {
+        Assert.assertEquals("Encoder's table size.", expected, encodingContext.getTableSize());
+        Assert.assertEquals("Decoder's table size.", expected, decodingContext.getTableSize());
     }
 
     /**
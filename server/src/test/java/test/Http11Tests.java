@@ -1,30 +1,50 @@
 package test;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import propolis.server.ChunkedOutputStream;
+import propolis.server.Handlers;
 import propolis.server.HttpComponents;
 import propolis.server.HttpIOStream;
 import propolis.server.TcpServer;
+import propolis.server.Templates;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(MockitoJUnitRunner.class)
 public class Http11Tests {
 
     private static final Logger log = LoggerFactory.getLogger(SocketTests.class);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test(timeout = 3000)
     public void shouldMakeHttpRequest() throws IOException, InterruptedException {
         final Object mutex = new Object();
@@ -70,4 +90,363 @@ public class Http11Tests {
         assertNotNull(clientResponse);
         assertEquals(200, clientResponse.status);
     }
+
+    @Test(timeout = 5000)
+    public void shouldServeStaticFiles() throws IOException, InterruptedException {
+        byte[] content = new byte[300_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Files.write(folder.newFile("secret").toPath(), "secret".getBytes());
+        Path root = folder.newFolder("public").toPath();
+        Files.write(root.resolve("artifact.bin"), content);
+
+        TcpServer server = TcpServer.newTcpServer(0, client ->
+                Templates.handlerTemplate(client, Handlers.staticFiles(root)));
+        int port = server.waitForPort();
+        try {
+            String[] get = exchange(port, "GET /artifact.bin HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertTrue(get[0], get[0].startsWith("HTTP/1.1 200"));
+            assertTrue(get[0], get[0].contains("Content-Length: 300000"));
+            assertArrayEquals(content, get[1].getBytes(StandardCharsets.ISO_8859_1));
+
+            String[] head = exchange(port, "HEAD /artifact.bin HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertTrue(head[0], head[0].contains("Content-Length: 300000"));
+            assertEquals("", head[1]);
+
+            assertTrue(exchange(port, "GET /missing HTTP/1.1\r\nConnection: close\r\n\r\n")[0].startsWith("HTTP/1.1 404"));
+            assertTrue(exchange(port, "GET /../secret HTTP/1.1\r\nConnection: close\r\n\r\n")[0].startsWith("HTTP/1.1 404"));
+        } finally {
+            server.stop();
+            server.waitForStop();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldServePipelinedRequestsInOrderOnOneConnection() throws IOException, InterruptedException {
+        TcpServer server = TcpServer.newTcpServer(0, client -> Templates.handlerTemplate(client, Http11Tests::echoTarget));
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            client.getRawSocket().getOutputStream().write((
+                    "GET /1 HTTP/1.1\r\n\r\n" +
+                    "POST /2 HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello" +
+                    "GET /3 HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+            for (int i = 1; i <= 3; i++) {
+                assertEquals("/" + i, readResponseBody(client));
+            }
+
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/4"));
+            assertEquals("/4", readResponseBody(client));
+        } finally {
+            server.stop();
+            server.waitForStop();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldCloseConnectionAfterMaxRequests() throws IOException, InterruptedException {
+        Templates.KeepAlive keepAlive = new Templates.KeepAlive(Duration.ofSeconds(5), 2);
+        TcpServer server = TcpServer.newTcpServer(0, client -> Templates.handlerTemplate(client, Http11Tests::echoTarget, keepAlive));
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/1"));
+            HttpComponents.Response first = client.readHttpResponse();
+            assertEquals(null, first.header("Connection"));
+            client.getInputStream().skip(2);
+
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/2"));
+            HttpComponents.Response second = client.readHttpResponse();
+            assertEquals("close", second.header("Connection"));
+            client.getInputStream().skip(2);
+            assertEquals(-1, client.getInputStream().read());
+        } finally {
+            server.stop();
+            server.waitForStop();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldCloseIdleConnections() throws IOException, InterruptedException {
+        Templates.KeepAlive keepAlive = new Templates.KeepAlive(Duration.ofMillis(200), 100);
+        TcpServer server = TcpServer.newTcpServer(0, client -> Templates.handlerTemplate(client, Http11Tests::echoTarget, keepAlive));
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/1"));
+            assertEquals("/1", readResponseBody(client));
+            assertEquals("Expected the server to close the idle connection!", -1, client.getInputStream().read());
+        } finally {
+            server.stop();
+            server.waitForStop();
+        }
+    }
+
+    @Test
+    public void shouldSendFilesOnlyToTheLengthAdvertised() throws IOException {
+        Path file = folder.newFile("changing").toPath();
+        Files.write(file, "0123456789".getBytes(StandardCharsets.US_ASCII));
+        Handlers.FileBody body = new Handlers.FileBody(file, 10);
+
+        Files.write(file, "0123456789 and then some".getBytes(StandardCharsets.US_ASCII));
+        ByteArrayOutputStream grown = new ByteArrayOutputStream();
+        body.handleResponseBody(grown);
+        assertEquals("0123456789", new String(grown.toByteArray(), StandardCharsets.US_ASCII));
+
+        Files.write(file, "01234".getBytes(StandardCharsets.US_ASCII));
+        try {
+            body.handleResponseBody(new ByteArrayOutputStream());
+            fail("Expected a truncated file to fail.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("truncated"));
+        }
+    }
+
+    @Test
+    public void shouldGatherSmallWritesIntoChunks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String, String> trailers = new HashMap<>();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out, trailers, 16);
+        for (int i = 0; i < 10; i++) {
+            chunked.write('a');
+        }
+        chunked.write("0123456789".getBytes(StandardCharsets.US_ASCII));
+        chunked.write("a whole chunk or more".getBytes(StandardCharsets.US_ASCII));
+        trailers.put("X-Count", "3");
+        chunked.close();
+
+        assertEquals("a\r\naaaaaaaaaa\r\n" +
+                        "a\r\n0123456789\r\n" +
+                        "15\r\na whole chunk or more\r\n" +
+                        "0\r\nX-Count: 3\r\n\r\n",
+                new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test(timeout = 5000)
+    public void shouldKeepConnectionsAliveAfterChunkedResponses() throws IOException, InterruptedException {
+        byte[] large = new byte[20000];
+        Arrays.fill(large, (byte) 'z');
+        TcpServer server = TcpServer.newTcpServer(0, client -> Templates.handlerTemplate(client, (request, response, body) ->
+                outputStream -> {
+                    for (int i = 0; i < 100; i++) {
+                        outputStream.write('x');
+                    }
+                    outputStream.write(large);
+                    response.trailers.put("X-Target", request.target);
+                }));
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            for (int i = 1; i <= 2; i++) {
+                client.writeHttpRequest(new HttpComponents.Request("GET", "/" + i));
+                HttpComponents.Response response = client.readHttpResponse();
+                assertEquals("chunked", response.header("Transfer-Encoding"));
+                assertEquals(null, response.header("Connection"));
+
+                Map<String, String> trailers = new HashMap<>();
+                byte[] received = readChunkedBody(client.getInputStream(), trailers);
+                assertEquals(100 + large.length, received.length);
+                assertEquals('x', received[99]);
+                assertEquals('z', received[100]);
+                assertEquals("/" + i, trailers.get("X-Target"));
+            }
+        } finally {
+            server.stop();
+            server.waitForStop();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldStreamChunkedRequestBodiesOnAKeptAliveConnection() throws IOException, InterruptedException {
+        TcpServer server = TcpServer.newTcpServer(0, client -> Templates.handlerTemplate(client, Http11Tests::countBody));
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            assertChunkedRequestsCounted(client);
+        } finally {
+            server.stop();
+            server.waitForStop();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldSendContinueBeforeReadingTheBody() throws IOException, InterruptedException {
+        TcpServer server = TcpServer.newTcpServer(0, client -> Templates.handlerTemplate(client, Http11Tests::countBody));
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            assertContinueSent(client);
+        } finally {
+            server.stop();
+            server.waitForStop();
+        }
+    }
+
+    /**
+     * Upload a chunked body, followed by a body which the handler leaves unread, followed by a request without one.
+     */
+    static void assertChunkedRequestsCounted(HttpIOStream client) throws IOException {
+        OutputStream out = client.getRawSocket().getOutputStream();
+        out.write(("POST /count HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "5\r\nhello\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        byte[] large = new byte[100000];
+        out.write(String.format("%x\r\n", large.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(large);
+        out.write(("\r\n0\r\nX-Note: done\r\n\r\n" +
+                "POST /ignore HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n" +
+                "GET /count HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        assertEquals((5 + large.length) + " done", readResponseBody(client));
+        assertEquals("ignored", readResponseBody(client));
+        assertEquals("0 null", readResponseBody(client));
+    }
+
+    static void assertContinueSent(HttpIOStream client) throws IOException {
+        OutputStream out = client.getRawSocket().getOutputStream();
+        out.write("POST /count HTTP/1.1\r\nContent-Length: 5\r\nExpect: 100-continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        HttpComponents.Response interim = client.readHttpResponse();
+        assertEquals(100, interim.status);
+
+        out.write("hello".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("5 null", readResponseBody(client));
+    }
+
+    /**
+     * Respond with the length of the body, and its X-Note trailer, unless the target says to ignore it.
+     */
+    static Handlers.ResponseBodyCallback countBody(HttpComponents.Request request, HttpComponents.Response response, InputStream body) {
+        byte[] result;
+        if (request.target.equals("/ignore")) {
+            result = "ignored".getBytes(StandardCharsets.US_ASCII);
+        } else {
+            long count = 0;
+            byte[] buffer = new byte[4096];
+            int read;
+            try {
+                while ((read = body.read(buffer)) >= 0) {
+                    count += read;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unhandled failure!", e);
+            }
+            result = (count + " " + request.trailers.get("X-Note")).getBytes(StandardCharsets.US_ASCII);
+        }
+        response.headers.put("Content-Length", Integer.toString(result.length));
+        return outputStream -> outputStream.write(result);
+    }
+
+    /**
+     * Decode a chunked body, collecting its trailers.
+     */
+    private static byte[] readChunkedBody(InputStream input, Map<String, String> trailers) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int size;
+        while ((size = Integer.parseInt(readLine(input), 16)) > 0) {
+            for (int i = 0; i < size; i++) {
+                body.write(input.read());
+            }
+            assertEquals("", readLine(input));
+        }
+        String trailer;
+        while (!(trailer = readLine(input)).isEmpty()) {
+            int split = trailer.indexOf(':');
+            trailers.put(trailer.substring(0, split), trailer.substring(split + 1).trim());
+        }
+        return body.toByteArray();
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) != '\n') {
+            assertTrue("Unexpected end of stream!", b >= 0);
+            line.append((char) b);
+        }
+        return line.toString().trim();
+    }
+
+    @Test
+    public void shouldEncodeResponseHeads() throws IOException {
+        HttpComponents.Response notFound = HttpComponents.Response.ok();
+        notFound.setStatus(404);
+        notFound.headers.put("Content-Length", "0");
+        notFound.headers.put("X-Custom", "value");
+        String head = encode(notFound);
+        assertTrue(head, head.startsWith("HTTP/1.1 404 Not Found\r\n"));
+        assertTrue(head, head.contains("\r\nContent-Length: 0\r\n"));
+        assertTrue(head, head.contains("\r\nX-Custom: value\r\n"));
+        assertTrue(head, head.matches("(?s).*\r\nDate: \\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT\r\n.*"));
+        assertTrue(head, head.endsWith("\r\n\r\n"));
+
+        HttpComponents.Response custom = new HttpComponents.Response(418, "I'm a teapot");
+        custom.headers.put("Date", "Sun, 06 Nov 1994 08:49:37 GMT");
+        assertEquals("HTTP/1.1 418 I'm a teapot\r\nDate: Sun, 06 Nov 1994 08:49:37 GMT\r\n\r\n", encode(custom));
+    }
+
+    private static String encode(HttpComponents.Response response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new HttpIOStream(InputStream.nullInputStream(), out).writeHttpResponse(response);
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test(timeout = 5000)
+    public void shouldRejectMalformedRequestsAndClose() throws IOException, InterruptedException {
+        TcpServer server = TcpServer.newTcpServer(0, client -> Templates.handlerTemplate(client, Http11Tests::echoTarget));
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            assertMalformedRequestRejected(client);
+        } finally {
+            server.stop();
+            server.waitForStop();
+        }
+    }
+
+    /**
+     * Pipeline a good request and a malformed one, and expect the first answered and the second refused.
+     */
+    static void assertMalformedRequestRejected(HttpIOStream client) throws IOException {
+        client.getRawSocket().getOutputStream().write((
+                "GET /1 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                "GET /2 HTTP/1.1\r\nHost : localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        assertEquals("/1", readResponseBody(client));
+
+        HttpComponents.Response response = client.readHttpResponse();
+        assertEquals(400, response.status);
+        assertEquals("close", response.header("Connection"));
+        assertEquals(-1, client.getInputStream().read());
+    }
+
+    static Handlers.ResponseBodyCallback echoTarget(HttpComponents.Request request, HttpComponents.Response response, InputStream body) {
+        byte[] target = request.target.getBytes(StandardCharsets.US_ASCII);
+        response.headers.put("Content-Length", Integer.toString(target.length));
+        return outputStream -> outputStream.write(target);
+    }
+
+    /**
+     * Read a response, and return its body, as delimited by its Content-Length.
+     */
+    static String readResponseBody(HttpIOStream client) throws IOException {
+        HttpComponents.Response response = client.readHttpResponse();
+        assertEquals(200, response.status);
+        byte[] body = new byte[Integer.parseInt(response.header("Content-Length"))];
+        int read = 0;
+        while (read < body.length) {
+            int count = client.getInputStream().read(body, read, body.length - read);
+            assertTrue("Unexpected end of stream!", count >= 0);
+            read += count;
+        }
+        return new String(body, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Send a raw request, and read until the server closes the connection.
+     *
+     * @return The response head, and the body as ISO-8859-1, so that each byte is one character.
+     */
+    private static String[] exchange(int port, String request) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            InputStream input = socket.getInputStream();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                received.write(buffer, 0, count);
+            }
+            String response = new String(received.toByteArray(), StandardCharsets.ISO_8859_1);
+            int split = response.indexOf("\r\n\r\n");
+            return new String[]{response.substring(0, split), response.substring(split + 4)};
+        }
+    }
 }
@@ -6,6 +6,8 @@ import propolis.server.HuffmanEncoder;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class HuffmanTests {
 
@@ -36,4 +38,41 @@ public class HuffmanTests {
         byte[] decoded = huffmanEncoder.decode(encoding);
         Assert.assertArrayEquals(testBytes, decoded);
     }
+
+    /**
+     * RFC 7541 Appendix C.4.1, into a buffer which already has something in it.
+     */
+    @Test
+    public void shouldDecodeIntoTheGivenBuffer() throws IOException {
+        byte[] encoded = new byte[]{
+                0, (byte) 0xf1, (byte) 0xe3, (byte) 0xc2, (byte) 0xe5, (byte) 0xf2, (byte) 0x3a,
+                (byte) 0x6b, (byte) 0xa0, (byte) 0xab, (byte) 0x90, (byte) 0xf4, (byte) 0xff, 0
+        };
+        byte[] output = new byte[HuffmanEncoder.maxDecodedLength(12)];
+        Arrays.fill(output, (byte) '?');
+
+        int length = HuffmanEncoder.decode(encoded, 1, 12, output);
+        Assert.assertEquals("www.example.com", new String(output, 0, length, StandardCharsets.US_ASCII));
+        Assert.assertEquals(0, HuffmanEncoder.decode(new byte[0], 0, 0, output));
+    }
+
+    /**
+     * RFC 7541 Section 5.2.
+     */
+    @Test
+    public void shouldRejectInvalidPaddingAndEos() throws IOException {
+        Assert.assertArrayEquals("a".getBytes(), HuffmanEncoder.decode(new byte[]{0x1f}));
+        assertInvalid("Expected padding of ones.", new byte[]{0x18});
+        assertInvalid("Expected under eight bits of padding.", new byte[]{0x1f, (byte) 0xff});
+        assertInvalid("Expected EOS to be refused.", new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfc});
+    }
+
+    private static void assertInvalid(String message, byte[] encoded) {
+        try {
+            HuffmanEncoder.decode(encoded);
+            Assert.fail(message);
+        } catch (IOException e) {
+            // As expected.
+        }
+    }
 }
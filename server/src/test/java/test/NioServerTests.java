@@ -0,0 +1,346 @@
+package test;
+
+import org.junit.After;
+import org.junit.Test;
+import propolis.server.Frames;
+import propolis.server.Handlers;
+import propolis.server.Hpack;
+import propolis.server.HttpComponents;
+import propolis.server.HttpIOStream;
+import propolis.server.NioServer;
+import propolis.server.Session;
+import propolis.server.Templates;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioServerTests {
+
+    private NioServer server;
+
+    @After
+    public void stopServer() throws InterruptedException {
+        if (server != null) {
+            server.stop();
+            server.waitForStop();
+        }
+    }
+
+    private static ServerSocketChannel anyPort() throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.socket().bind(new InetSocketAddress(0));
+        return serverSocketChannel;
+    }
+
+    @Test(timeout = 3000)
+    public void shouldServeHttp11Request() throws IOException, InterruptedException {
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate((request, response, body) ->
+                outputStream -> outputStream.write(request.target.getBytes())));
+
+        HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()));
+        client.writeHttpRequest(new HttpComponents.Request("GET", "/hello"));
+        HttpComponents.Response response = client.readHttpResponse();
+
+        assertEquals(200, response.status);
+        client.close();
+    }
+
+    @Test(timeout = 5000)
+    public void shouldServeWhileHoldingManyIdleConnections() throws IOException, InterruptedException {
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate((request, response, body) -> null));
+        int port = server.waitForPort();
+
+        List<Socket> idleConnections = new ArrayList<>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                idleConnections.add(new Socket("localhost", port));
+            }
+
+            HttpIOStream client = new HttpIOStream(new Socket("localhost", port));
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/"));
+            assertEquals(200, client.readHttpResponse().status);
+            client.close();
+        } finally {
+            for (Socket socket : idleConnections) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldServeConnectionsSpreadAcrossEventLoops() throws IOException, InterruptedException {
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate((request, response, body) -> null), 4);
+        int port = server.waitForPort();
+
+        List<HttpIOStream> clients = new ArrayList<>();
+        for (int i = 0; i < 4 * server.getEventLoopCount(); i++) {
+            HttpIOStream client = new HttpIOStream(new Socket("localhost", port));
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/" + i));
+            clients.add(client);
+        }
+
+        for (HttpIOStream client : clients) {
+            assertEquals(200, client.readHttpResponse().status);
+            client.close();
+        }
+    }
+
+    @Test(timeout = 3000)
+    public void shouldServePipelinedRequestsInOrderOnOneConnection() throws IOException, InterruptedException {
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate(Http11Tests::echoTarget));
+
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            client.getRawSocket().getOutputStream().write((
+                    "GET /1 HTTP/1.1\r\n\r\n" +
+                    "POST /2 HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello" +
+                    "GET /3 HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (int i = 1; i <= 3; i++) {
+                assertEquals("/" + i, Http11Tests.readResponseBody(client));
+            }
+
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/4"));
+            assertEquals("/4", Http11Tests.readResponseBody(client));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldNotHoldUpTheLoopWhileAHandlerIsBusy() throws IOException, InterruptedException {
+        CountDownLatch slowReleased = new CountDownLatch(1);
+        Handlers.Http11Handler handler = (request, response, body) -> {
+            if ("/slow".equals(request.target)) {
+                try {
+                    slowReleased.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return Http11Tests.echoTarget(request, response, body);
+        };
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate(handler), 1);
+        int port = server.waitForPort();
+
+        try (HttpIOStream slow = new HttpIOStream(new Socket("localhost", port));
+             HttpIOStream fast = new HttpIOStream(new Socket("localhost", port))) {
+            slow.writeHttpRequest(new HttpComponents.Request("GET", "/slow"));
+            fast.writeHttpRequest(new HttpComponents.Request("GET", "/fast"));
+            assertEquals("/fast", Http11Tests.readResponseBody(fast));
+            slowReleased.countDown();
+            assertEquals("/slow", Http11Tests.readResponseBody(slow));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldAnswerClientsWhichHalfCloseAfterTheirRequest() throws IOException, InterruptedException {
+        // Large enough to be still queued once the end of input is read.
+        byte[] content = new byte[4 * 1024 * 1024];
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate((request, response, body) -> {
+            response.headers.put("Content-Length", Integer.toString(content.length));
+            return outputStream -> outputStream.write(content);
+        }));
+
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/"));
+            client.getRawSocket().shutdownOutput();
+            Thread.sleep(200);
+
+            assertEquals(200, client.readHttpResponse().status);
+            long count = 0;
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = client.getInputStream().read(buffer)) >= 0) {
+                count += read;
+            }
+            assertEquals("Expected the whole response, then the connection closed.", content.length, count);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldHandOverRequestsBeforeTheirBodiesArrive() throws IOException, InterruptedException {
+        CountDownLatch handed = new CountDownLatch(1);
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate((request, response, body) -> {
+            handed.countDown();
+            return Http11Tests.countBody(request, response, body);
+        }));
+
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            OutputStream out = client.getRawSocket().getOutputStream();
+            out.write("POST /count HTTP/1.1\r\nContent-Length: 1000000\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertTrue("Expected the handler called without the body.", handed.await(3, TimeUnit.SECONDS));
+
+            out.write(new byte[1_000_000]);
+            assertEquals("1000000 null", Http11Tests.readResponseBody(client));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldQueueFilesOnlyAsFastAsTheClientReads() throws IOException, InterruptedException {
+        Path file = Files.createTempFile("propolis", ".bin");
+        long length = 64 * 1024 * 1024;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw")) {
+            randomAccessFile.setLength(length);
+        }
+        AtomicLong queued = new AtomicLong();
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate((request, response, body) -> {
+            response.headers.put("Content-Length", Long.toString(length));
+            return new Handlers.FileBody(file, length) {
+                @Override
+                public void handleResponseBody(OutputStream outputStream) throws IOException {
+                    super.handleResponseBody(new FilterOutputStream(outputStream) {
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            queued.addAndGet(len);
+                        }
+                    });
+                }
+            };
+        }));
+
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/file"));
+            Thread.sleep(500);
+            assertTrue("Expected the file held back for the client, not " + queued.get() + " bytes queued.",
+                    queued.get() < length / 2);
+
+            HttpComponents.Response response = client.readHttpResponse();
+            assertEquals(length, Long.parseLong(response.header("Content-Length")));
+            byte[] buffer = new byte[64 * 1024];
+            long read = 0;
+            int count;
+            while (read < length && (count = client.getInputStream().read(buffer)) >= 0) {
+                read += count;
+            }
+            assertEquals(length, read);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldDecodeChunkedRequestBodies() throws IOException, InterruptedException {
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate(Http11Tests::countBody));
+
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            Http11Tests.assertChunkedRequestsCounted(client);
+            Http11Tests.assertContinueSent(client);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldRejectMalformedRequestsAndClose() throws IOException, InterruptedException {
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate(Http11Tests::echoTarget));
+
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            Http11Tests.assertMalformedRequestRejected(client);
+        }
+    }
+
+    @Test(timeout = 3000)
+    public void shouldCloseIdleConnections() throws IOException, InterruptedException {
+        Templates.KeepAlive keepAlive = new Templates.KeepAlive(Duration.ofMillis(200), 100);
+        server = new NioServer(anyPort(), Templates.nioHandlerTemplate(Http11Tests::echoTarget, keepAlive));
+
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", server.waitForPort()))) {
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/1"));
+            assertEquals("/1", Http11Tests.readResponseBody(client));
+            assertEquals("Expected the server to close the idle connection!", -1, client.getInputStream().read());
+        }
+    }
+
+    @Test(timeout = 3000)
+    public void shouldAcceptHttp2PrefaceSplitAcrossReads() throws IOException, InterruptedException {
+        server = new NioServer(anyPort(), Session::createNioSession);
+
+        Socket socket = new Socket("localhost", server.waitForPort());
+        socket.setTcpNoDelay(true);
+        byte[] preface = HttpComponents.PREFACE;
+        socket.getOutputStream().write(preface, 0, 5);
+        socket.getOutputStream().flush();
+        Thread.sleep(50);
+        socket.getOutputStream().write(preface, 5, preface.length - 5);
+
+        InputStream input = socket.getInputStream();
+        byte[] reply = new byte[Frames.HEADER_SIZE];
+        int read = 0;
+        while (read < reply.length) {
+            read += input.read(reply, read, reply.length - read);
+        }
+        assertEquals("Expected the server preface, a SETTINGS frame!", Frames.Type.SETTINGS.ordinal(), reply[3]);
+        socket.close();
+    }
+
+    @Test(timeout = 5000)
+    public void shouldServeHttp2StreamsConcurrently() throws IOException, InterruptedException {
+        CountDownLatch slowReleased = new CountDownLatch(1);
+        Handlers.Http11Handler handler = (request, response, body) -> {
+            if ("/slow".equals(request.target)) {
+                try {
+                    slowReleased.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return Http11Tests.echoTarget(request, response, body);
+        };
+        server = new NioServer(anyPort(), Session.nioServable(handler));
+
+        Hpack decoder = new Hpack();
+        try (HttpIOStream client = SessionTests.openHttp2(server.waitForPort())) {
+            SessionTests.sendRequest(client, 1, "GET", "/slow", null);
+            SessionTests.sendRequest(client, 3, "POST", "/fast", new byte[10]);
+
+            assertEquals("3 200 /fast", SessionTests.readResponse(client, decoder));
+            slowReleased.countDown();
+            assertEquals("1 200 /slow", SessionTests.readResponse(client, decoder));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldWriteHttp2ResponsesToSlowReaders() throws IOException, InterruptedException {
+        byte[] content = new byte[4 * 1024 * 1024];
+        server = new NioServer(anyPort(), Session.nioServable((request, response, body) -> out -> out.write(content)));
+
+        try (HttpIOStream client = SessionTests.openHttp2(server.waitForPort())) {
+            Map<Frames.SettingsFrame.Setting, Integer> settings = new EnumMap<>(Frames.SettingsFrame.Setting.class);
+            settings.put(Frames.SettingsFrame.Setting.SETTINGS_INITIAL_WINDOW_SIZE, content.length);
+            client.writeFrame(new Frames.SettingsFrame(false, settings).asHttpFrame());
+            Frames.WindowUpdateFrame windowUpdateFrame = new Frames.WindowUpdateFrame();
+            windowUpdateFrame.canTransmit = content.length;
+            client.writeFrame(windowUpdateFrame.asHttpFrame());
+            SessionTests.sendRequest(client, 1, "GET", "/", null);
+            Thread.sleep(500); // For the server to fill the socket's buffers, and have to wait for it to drain.
+
+            long received = 0;
+            Frames.HttpFrame frame;
+            do {
+                frame = client.readFrame();
+                if (frame.type == Frames.Type.DATA.ordinal()) {
+                    received += frame.length();
+                }
+                frame.release();
+            } while (frame.type != Frames.Type.DATA.ordinal() || (frame.flags & 0x1) == 0);
+            assertEquals(content.length, received);
+        }
+    }
+}
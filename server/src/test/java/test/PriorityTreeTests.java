@@ -0,0 +1,124 @@
+package test;
+
+import org.junit.Test;
+import propolis.server.Frames;
+import propolis.server.PriorityTree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityTreeTests {
+
+    @Test
+    public void shouldShareBetweenSiblingsByWeight() {
+        PriorityTree tree = new PriorityTree();
+        tree.open(1);
+        tree.open(3);
+        tree.prioritize(1, 0, 192, false);
+        tree.prioritize(3, 0, 64, false);
+        for (int i = 0; i < 40; i++) {
+            tree.add(data(1, 1000));
+            tree.add(data(3, 1000));
+        }
+
+        int first = 0;
+        for (int i = 0; i < 40; i++) {
+            if (tree.poll().streamId == 1) {
+                first++;
+            }
+        }
+        assertEquals("Expected three frames of stream 1 for each of stream 3.", 30, first);
+    }
+
+    @Test
+    public void shouldSendForParentsBeforeTheirDependents() {
+        PriorityTree tree = new PriorityTree();
+        tree.open(1);
+        tree.open(3);
+        tree.prioritize(3, 1, PriorityTree.DEFAULT_WEIGHT, false);
+        tree.add(data(3, 100));
+        tree.add(data(3, 100));
+        tree.add(data(1, 100));
+        tree.add(headers(5, true));
+
+        assertEquals("Expected frames other than DATA first.", "5 1 3 3", pollAll(tree));
+    }
+
+    @Test
+    public void shouldAdoptSiblingsOnAnExclusiveDependency() {
+        PriorityTree tree = new PriorityTree();
+        for (int streamId = 1; streamId <= 5; streamId += 2) {
+            tree.open(streamId);
+            tree.add(data(streamId, 100));
+        }
+        tree.prioritize(5, 0, PriorityTree.DEFAULT_WEIGHT, true);
+        assertEquals("5 1 3", pollAll(tree));
+
+        // Stream 5 now depending on its own dependent, stream 1, moves stream 1 up first. RFC 7540 Section 5.3.3.
+        tree.prioritize(5, 1, PriorityTree.DEFAULT_WEIGHT, false);
+        tree.add(data(5, 100));
+        tree.add(data(3, 100));
+        tree.add(data(1, 100));
+        assertEquals("1 5 3", pollAll(tree));
+    }
+
+    @Test
+    public void shouldWriteHeaderBlocksWhole() {
+        PriorityTree tree = new PriorityTree();
+        tree.open(1);
+        tree.open(3);
+        tree.add(data(3, 100));
+        tree.add(new Frames.HttpFrame(1, Frames.Type.HEADERS, 0x1, new byte[10]));
+
+        assertEquals(3, tree.poll().streamId);
+        assertEquals(Frames.Type.HEADERS.ordinal(), tree.poll().type);
+        tree.add(headers(5, true));
+        tree.add(data(3, 100));
+        assertNull("Expected nothing to come between a HEADERS frame and its CONTINUATION.", tree.poll());
+
+        tree.add(new Frames.HttpFrame(1, Frames.Type.CONTINUATION, 0x4, new byte[10]));
+        assertEquals(Frames.Type.CONTINUATION.ordinal(), tree.poll().type);
+        assertEquals("5 3", pollAll(tree));
+    }
+
+    @Test
+    public void shouldForgetOldIdleAndClosedStreams() {
+        PriorityTree tree = new PriorityTree();
+        tree.open(1);
+        for (int streamId = 3; streamId < 100_000; streamId += 2) {
+            tree.prioritize(streamId, streamId - 2, PriorityTree.DEFAULT_WEIGHT, false);
+        }
+        for (int streamId = 100_001; streamId < 200_000; streamId += 2) {
+            tree.open(streamId);
+            tree.add(data(streamId, 10));
+            tree.close(streamId);
+            tree.poll();
+        }
+
+        assertTrue("Expected a bounded tree, not " + tree.size(), tree.size() <= PriorityTree.MAX_RETAINED + 1);
+        tree.add(data(1, 10));
+        assertEquals("Expected the open stream to be kept.", "1", pollAll(tree));
+    }
+
+    private static Frames.HttpFrame data(int streamId, int length) {
+        return new Frames.HttpFrame(streamId, Frames.Type.DATA, 0, new byte[length]);
+    }
+
+    private static Frames.HttpFrame headers(int streamId, boolean endHeaders) {
+        return new Frames.HttpFrame(streamId, Frames.Type.HEADERS, endHeaders ? 0x4 : 0, new byte[10]);
+    }
+
+    private static String pollAll(PriorityTree tree) {
+        List<String> streamIds = new ArrayList<>();
+        Frames.HttpFrame frame;
+        while ((frame = tree.poll()) != null) {
+            streamIds.add(String.valueOf(frame.streamId));
+            frame.release();
+        }
+        return String.join(" ", streamIds);
+    }
+}
@@ -0,0 +1,147 @@
+package test;
+
+import org.junit.After;
+import org.junit.Test;
+import propolis.server.Frames;
+import propolis.server.Hpack;
+import propolis.server.HttpComponents;
+import propolis.server.HttpIOStream;
+import propolis.server.NioServer;
+import propolis.server.ProtocolDispatcher;
+import propolis.server.TcpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProtocolDispatcherTests {
+
+    private TcpServer tcpServer;
+    private NioServer nioServer;
+
+    @After
+    public void stopServers() throws InterruptedException {
+        if (tcpServer != null) {
+            tcpServer.stop();
+            tcpServer.waitForStop();
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer.waitForStop();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldServeBothProtocolsOnOnePort() throws IOException, InterruptedException {
+        tcpServer = TcpServer.newTcpServer(0, ProtocolDispatcher.tcpServable(Http11Tests::echoTarget));
+        assertBothProtocolsServed(tcpServer.waitForPort());
+    }
+
+    @Test(timeout = 5000)
+    public void shouldServeBothProtocolsOnOneNioPort() throws IOException, InterruptedException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(0));
+        nioServer = new NioServer(channel, ProtocolDispatcher.nioServable(Http11Tests::echoTarget));
+        assertBothProtocolsServed(nioServer.waitForPort());
+    }
+
+    @Test(timeout = 5000)
+    public void shouldUpgradeToH2c() throws IOException, InterruptedException {
+        tcpServer = TcpServer.newTcpServer(0, ProtocolDispatcher.tcpServable(Http11Tests::echoTarget));
+        assertUpgradedToH2c(tcpServer.waitForPort());
+    }
+
+    @Test(timeout = 5000)
+    public void shouldUpgradeNioConnectionToH2c() throws IOException, InterruptedException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(0));
+        nioServer = new NioServer(channel, ProtocolDispatcher.nioServable(Http11Tests::echoTarget));
+        assertUpgradedToH2c(nioServer.waitForPort());
+    }
+
+    /**
+     * Upgrade with the handshake of RFC 7540 Section 3.2, and expect the upgrade request to be answered on stream 1.
+     */
+    private static void assertUpgradedToH2c(int port) throws IOException {
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", port))) {
+            Map<Frames.SettingsFrame.Setting, Integer> settings = new EnumMap<>(Frames.SettingsFrame.Setting.class);
+            settings.put(Frames.SettingsFrame.Setting.SETTINGS_MAX_CONCURRENT_STREAMS, 10);
+            ByteArrayOutputStream settingsFrame = new ByteArrayOutputStream();
+            new HttpIOStream(null, settingsFrame).writeFrame(new Frames.SettingsFrame(false, settings).asHttpFrame());
+            byte[] payload = Arrays.copyOfRange(settingsFrame.toByteArray(), Frames.HEADER_SIZE, settingsFrame.size());
+
+            HttpComponents.Request request = new HttpComponents.Request("GET", "/upgraded");
+            request.headers.put("Connection", "Upgrade, HTTP2-Settings");
+            request.headers.put("Upgrade", "h2c");
+            request.headers.put("HTTP2-Settings", Base64.getUrlEncoder().withoutPadding().encodeToString(payload));
+            client.writeHttpRequest(request);
+
+            HttpComponents.Response switching = client.readHttpResponse();
+            assertEquals(101, switching.status);
+            assertEquals("h2c", switching.header("Upgrade"));
+
+            client.writeConnectionPreface();
+            client.writeFrame(new Frames.SettingsFrame(false, new EnumMap<>(Frames.SettingsFrame.Setting.class)).asHttpFrame());
+
+            Frames.HttpFrame serverPreface = client.readFrame();
+            assertEquals(Frames.Type.SETTINGS.ordinal(), serverPreface.type);
+            assertEquals(0, serverPreface.flags);
+            serverPreface.release();
+
+            String status = null;
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            boolean ended = false;
+            while (!ended) {
+                Frames.HttpFrame frame = client.readFrame();
+                if (frame.type == Frames.Type.HEADERS.ordinal()) {
+                    assertEquals(1, frame.streamId);
+                    status = new Hpack().decodeHeaderList(frame.payloadBytes()).get(":status");
+                } else if (frame.type == Frames.Type.DATA.ordinal()) {
+                    assertEquals(1, frame.streamId);
+                    body.write(frame.payloadBytes());
+                    ended = (frame.flags & 0x1) != 0;
+                }
+                frame.release();
+            }
+            assertEquals("200", status);
+            assertEquals("/upgraded", body.toString(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void assertBothProtocolsServed(int port) throws IOException {
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", port))) {
+            client.writeHttpRequest(new HttpComponents.Request("GET", "/http11"));
+            assertEquals("/http11", Http11Tests.readResponseBody(client));
+        }
+
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", port))) {
+            // The preface and the client's SETTINGS in one write, as a client would send them.
+            Map<Frames.SettingsFrame.Setting, Integer> settings = new EnumMap<>(Frames.SettingsFrame.Setting.class);
+            settings.put(Frames.SettingsFrame.Setting.SETTINGS_MAX_CONCURRENT_STREAMS, 10);
+            ByteArrayOutputStream opening = new ByteArrayOutputStream();
+            opening.write(HttpComponents.PREFACE);
+            new HttpIOStream(null, opening).writeFrame(new Frames.SettingsFrame(false, settings).asHttpFrame());
+            client.getRawSocket().getOutputStream().write(opening.toByteArray());
+
+            Frames.HttpFrame serverPreface = client.readFrame();
+            assertEquals(Frames.Type.SETTINGS.ordinal(), serverPreface.type);
+            assertEquals(0, serverPreface.flags);
+            serverPreface.release();
+
+            Frames.HttpFrame ack = client.readFrame();
+            assertEquals(Frames.Type.SETTINGS.ordinal(), ack.type);
+            assertEquals(1, ack.flags);
+            assertEquals(0, ack.length());
+            ack.release();
+        }
+    }
+}
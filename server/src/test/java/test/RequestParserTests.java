@@ -0,0 +1,172 @@
+package test;
+
+import org.junit.Test;
+import propolis.server.ChunkedDecoder;
+import propolis.server.HttpComponents;
+import propolis.server.RequestParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestParserTests {
+
+    private static final String REQUEST = "POST /upload?name=a%20b HTTP/1.1\r\n" +
+            "Host: example.com\r\n" +
+            "Accept:text/html \t\r\n" +
+            "Content-Length: 5\r\n" +
+            "Accept: text/plain\r\n" +
+            "\r\n" +
+            "hello";
+
+    @Test
+    public void shouldParseARequestHead() throws RequestParser.BadRequestException {
+        RequestParser parser = new RequestParser();
+        ByteBuffer input = bytes(REQUEST);
+        assertTrue(parser.parse(input));
+
+        assertEquals("Expected the body to be left unread.", "hello", remaining(input));
+        assertEquals(5, parser.contentLength());
+        HttpComponents.Request request = parser.request();
+        assertSame("POST", request.method);
+        assertEquals("/upload?name=a%20b", request.target);
+        assertEquals("HTTP/1.1", request.version);
+        assertEquals("example.com", request.header("host"));
+        assertEquals("text/html, text/plain", request.header("Accept"));
+    }
+
+    @Test
+    public void shouldParseARequestHeadDeliveredOneByteAtATime() throws RequestParser.BadRequestException {
+        RequestParser parser = new RequestParser();
+        byte[] bytes = REQUEST.getBytes(StandardCharsets.US_ASCII);
+        int headLength = REQUEST.indexOf("hello");
+        for (int i = 0; i < headLength; i++) {
+            assertFalse(parser.isComplete());
+            ByteBuffer input = ByteBuffer.wrap(bytes, i, 1);
+            parser.parse(input);
+            assertFalse(input.hasRemaining());
+        }
+
+        assertTrue(parser.isComplete());
+        assertEquals("text/html, text/plain", parser.request().header("Accept"));
+    }
+
+    @Test
+    public void shouldParsePipelinedRequestsAfterReset() throws RequestParser.BadRequestException {
+        RequestParser parser = new RequestParser();
+        ByteBuffer input = bytes("GET /1 HTTP/1.1\r\n\r\nHEAD /2 HTTP/1.0\nConnection: keep-alive\n\n");
+
+        assertTrue(parser.parse(input));
+        assertEquals("/1", parser.request().target);
+        assertEquals(-1, parser.contentLength());
+
+        parser.reset();
+        assertTrue(parser.parse(input));
+        HttpComponents.Request second = parser.request();
+        assertEquals("HEAD", second.method);
+        assertEquals("HTTP/1.0", second.version);
+        assertEquals("keep-alive", second.header("Connection"));
+        assertFalse(input.hasRemaining());
+    }
+
+    @Test
+    public void shouldRejectMalformedRequests() {
+        assertRejected("GET /\r\n\r\n");
+        assertRejected("GET  / HTTP/1.1\r\n\r\n");
+        assertRejected("GET / HTTP/1.1 \r\n\r\n");
+        assertRejected("GET / HTTP/11\r\n\r\n");
+        assertRejected("G(T / HTTP/1.1\r\n\r\n");
+        assertRejected("GET /\u007f HTTP/1.1\r\n\r\n");
+        assertRejected("GET / HTTP/1.1\rHost: a\r\n\r\n");
+        assertRejected("GET / HTTP/1.1\r\nHost : a\r\n\r\n");
+        assertRejected("GET / HTTP/1.1\r\nHost: a\r\n folded\r\n\r\n");
+        assertRejected("GET / HTTP/1.1\r\nHost: a\u0000b\r\n\r\n");
+        assertRejected("GET / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+        assertRejected("GET / HTTP/1.1\r\nContent-Length: 1\r\ncontent-length: 2\r\n\r\n");
+    }
+
+    @Test
+    public void shouldRejectOversizedHeads() {
+        StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (request.length() <= RequestParser.MAX_HEAD_LENGTH) {
+            request.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+        }
+        assertRejected(request.append("\r\n").toString());
+    }
+
+    @Test
+    public void shouldRejectAmbiguousOrUnsupportedFraming() {
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n");
+        try {
+            new RequestParser().parse(bytes("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"));
+            fail("Expected the transfer coding to be refused!");
+        } catch (RequestParser.BadRequestException expected) {
+            assertEquals(501, expected.status);
+        }
+    }
+
+    @Test
+    public void shouldDecodeChunkedBodiesDeliveredOneByteAtATime() throws RequestParser.BadRequestException {
+        String body = "5;name=value\r\nhello\r\n" +
+                "7\r\n, world\r\n" +
+                "0\r\n" +
+                "X-Sum: 12\r\n" +
+                "\r\n";
+        byte[] bytes = (body + "GET /next HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        byte[] decoded = new byte[64];
+        int decodedLength = 0;
+        for (int i = 0; i < body.length(); i++) {
+            assertFalse(decoder.isDone());
+            int count = decoder.decode(ByteBuffer.wrap(bytes, i, 1), decoded, decodedLength, decoded.length - decodedLength);
+            decodedLength += Math.max(0, count);
+        }
+
+        assertTrue(decoder.isDone());
+        assertEquals("hello, world", new String(decoded, 0, decodedLength, StandardCharsets.US_ASCII));
+        assertEquals("12", decoder.getTrailers().get("X-Sum"));
+        ByteBuffer next = ByteBuffer.wrap(bytes, body.length(), bytes.length - body.length());
+        assertEquals(-1, decoder.decode(next, decoded, 0, decoded.length));
+        assertEquals("Expected the next request to be left unread.", body.length(), next.position());
+    }
+
+    @Test
+    public void shouldRejectMalformedChunks() {
+        assertRejectedChunks("x\r\nhello\r\n0\r\n\r\n");
+        assertRejectedChunks("5\r\nhello0\r\n\r\n");
+        assertRejectedChunks("5\rhello\r\n0\r\n\r\n");
+        assertRejectedChunks("10000000000000000\r\n");
+        assertRejectedChunks("0\r\nX-Sum : 12\r\n\r\n");
+    }
+
+    private static void assertRejectedChunks(String body) {
+        try {
+            new ChunkedDecoder().decode(bytes(body), new byte[64], 0, 64);
+            fail("Expected the body to be rejected! " + body);
+        } catch (RequestParser.BadRequestException expected) {
+        }
+    }
+
+    private static void assertRejected(String request) {
+        try {
+            new RequestParser().parse(bytes(request));
+            fail("Expected the request to be rejected! " + request);
+        } catch (RequestParser.BadRequestException expected) {
+        }
+    }
+
+    private static ByteBuffer bytes(String string) {
+        return ByteBuffer.wrap(string.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String remaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,605 @@
+package test;
+
+import org.junit.After;
+import org.junit.Test;
+import propolis.server.Frames;
+import propolis.server.Handlers;
+import propolis.server.Hpack;
+import propolis.server.HttpComponents;
+import propolis.server.HttpIOStream;
+import propolis.server.Session;
+import propolis.server.SessionScheduler;
+import propolis.server.TcpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTests {
+
+    // The initial flow control window. RFC 7540 Section 6.9.2.
+    private static final int DEFAULT_WINDOW = 65535;
+
+    private SessionScheduler scheduler;
+    private TcpServer server;
+    // The decoding context of the client connection, which the header blocks of its responses share.
+    private final Hpack decoder = new Hpack();
+
+    @After
+    public void stopServer() throws InterruptedException {
+        if (server != null) {
+            server.stop();
+            server.waitForStop();
+        }
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    /**
+     * Serve HTTP/2 sessions on any port, with a single scheduler thread.
+     *
+     * @return The port.
+     */
+    private int startServer(Handlers.Http11Handler handler) throws IOException, InterruptedException {
+        scheduler = new SessionScheduler(1);
+        server = TcpServer.newTcpServer(0, client -> Session.createSession(client, scheduler, handler).run());
+        return server.waitForPort();
+    }
+
+    @Test(timeout = 5000)
+    public void shouldServeManySessionsOnABoundedScheduler() throws IOException, InterruptedException {
+        int sessionCount = 20;
+        CountDownLatch sessionsEnded = new CountDownLatch(sessionCount);
+        scheduler = new SessionScheduler(2);
+        server = new TcpServer(new ServerSocket(0, sessionCount), client -> {
+            Session.createSession(client, scheduler).run();
+            sessionsEnded.countDown();
+        }, TcpServer.ExecutionMode.VIRTUAL_THREADS);
+
+        int port = server.waitForPort();
+        List<Socket> clients = new ArrayList<>();
+        for (int i = 0; i < sessionCount; i++) {
+            Socket client = new Socket("localhost", port);
+            client.getOutputStream().write(HttpComponents.PREFACE);
+            byte[] serverPreface = readFully(client.getInputStream(), Frames.HEADER_SIZE);
+            assertEquals("Expected an empty SETTINGS frame!", Frames.Type.SETTINGS.ordinal(), serverPreface[3]);
+            clients.add(client);
+        }
+
+        long schedulerThreads = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("session-scheduler-"))
+                .count();
+        assertTrue("Expected no more scheduler threads than configured, not " + schedulerThreads, schedulerThreads <= 2);
+
+        for (Socket client : clients) {
+            client.close();
+        }
+        assertTrue("Expected every session to end with its connection!", sessionsEnded.await(3, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 3000)
+    public void shouldWriteCorkedFramesInOneWrite() throws IOException, InterruptedException {
+        RecordingOutputStream wire = new RecordingOutputStream();
+        scheduler = new SessionScheduler(1);
+        Session session = new Session(new HttpIOStream(new ByteArrayInputStream(new byte[0]), wire), scheduler);
+
+        session.cork();
+        session.sendFrame(new Frames.HttpFrame(1, 0x1, 0x4, new byte[]{1, 2, 3}));
+        session.sendFrame(new Frames.HttpFrame(1, 0x0, 0x0, new byte[100]));
+        session.sendFrame(new Frames.HttpFrame(1, 0x0, 0x1, new byte[100]));
+        assertNull("Expected nothing to be written while corked!", wire.writes.poll(100, TimeUnit.MILLISECONDS));
+        session.uncork();
+
+        byte[] written = wire.writes.poll(1, TimeUnit.SECONDS);
+        assertEquals(3 * Frames.HEADER_SIZE + 203, written.length);
+        assertEquals(0x1, written[3]);
+        assertNull("Expected a single write!", wire.writes.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 3000)
+    public void shouldHoldSmallBatchesForTheFlushLatencyBudget() throws IOException, InterruptedException {
+        RecordingOutputStream wire = new RecordingOutputStream();
+        scheduler = new SessionScheduler(1);
+        Session session = new Session(new HttpIOStream(new ByteArrayInputStream(new byte[0]), wire), scheduler);
+        session.setFlushLatencyBudget(200, TimeUnit.MILLISECONDS);
+
+        session.sendFrame(new Frames.HttpFrame(0, 0x6, 0x0, new byte[8]));
+        session.sendFrame(new Frames.HttpFrame(0, 0x6, 0x0, new byte[8]));
+
+        byte[] written = wire.writes.poll(1, TimeUnit.SECONDS);
+        assertEquals(2 * (Frames.HEADER_SIZE + 8), written.length);
+    }
+
+    @Test(timeout = 5000)
+    public void shouldNotHoldUpStreamsBehindASlowOne() throws IOException, InterruptedException {
+        CountDownLatch slowReleased = new CountDownLatch(1);
+        Handlers.Http11Handler handler = (request, response, body) -> {
+            if ("/slow".equals(request.target)) {
+                try {
+                    slowReleased.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return Http11Tests.echoTarget(request, response, body);
+        };
+        try (HttpIOStream client = openHttp2(startServer(handler))) {
+            sendRequest(client, 1, "GET", "/slow", null);
+            sendRequest(client, 3, "GET", "/fast", null);
+
+            assertEquals("3 200 /fast", readResponse(client));
+            slowReleased.countDown();
+            assertEquals("1 200 /slow", readResponse(client));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldServeRequestsWithContinuationsAndBodies() throws IOException, InterruptedException {
+        try (HttpIOStream client = openHttp2(startServer(Http11Tests::countBody))) {
+            LinkedHashMap<String, String> headers = requestHeaders("POST", "/upload");
+            for (int i = 0; i < 20; i++) {
+                headers.put("x-padding-" + i, "0123456789012345678901234567890123456789");
+            }
+            byte[] block = headersFrame(1, headers, false).payloadBytes();
+            int split = block.length / 2;
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.HEADERS, 0, Arrays.copyOfRange(block, 0, split)));
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.CONTINUATION, 0x4, Arrays.copyOfRange(block, split, block.length)));
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.DATA, 0, new byte[1000]));
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.DATA, 0x1, new byte[234]));
+
+            assertEquals("1 200 1234 null", readResponse(client));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldJoinCookiesSplitAcrossFields() throws IOException, InterruptedException {
+        Handlers.Http11Handler handler = (request, response, body) -> {
+            byte[] cookie = request.header("cookie").getBytes(StandardCharsets.US_ASCII);
+            return out -> out.write(cookie);
+        };
+        try (HttpIOStream client = openHttp2(startServer(handler))) {
+            Hpack encoder = new Hpack();
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            for (Map.Entry<String, String> field : requestHeaders("GET", "/").entrySet()) {
+                block.write(encoder.encodeHeader(field.getKey(), field.getValue()));
+            }
+            block.write(encoder.encodeHeader("cookie", "a=b"));
+            block.write(encoder.encodeHeader("cookie", "c=d"));
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.HEADERS, 0x5, block.toByteArray()));
+
+            assertEquals("1 200 a=b; c=d", readResponse(client));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldHandOverRequestsBeforeTheirBodiesArrive() throws IOException, InterruptedException {
+        CountDownLatch handed = new CountDownLatch(1);
+        Handlers.Http11Handler handler = (request, response, body) -> {
+            handed.countDown();
+            return Http11Tests.countBody(request, response, body);
+        };
+        try (HttpIOStream client = openHttp2(startServer(handler))) {
+            client.writeFrame(headersFrame(1, requestHeaders("POST", "/upload"), false));
+            assertTrue("Expected the handler called without the body.", handed.await(3, TimeUnit.SECONDS));
+
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.DATA, 0, new byte[100]));
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.DATA, 0x1, new byte[20]));
+            assertEquals("1 200 120 null", readResponse(client));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldFailBodyReadsOnceTheStreamIsReset() throws IOException, InterruptedException {
+        CountDownLatch failed = new CountDownLatch(1);
+        Handlers.Http11Handler handler = (request, response, body) -> {
+            try {
+                body.readAllBytes();
+            } catch (IOException e) {
+                failed.countDown();
+            }
+            return null;
+        };
+        try (HttpIOStream client = openHttp2(startServer(handler))) {
+            client.writeFrame(headersFrame(1, requestHeaders("POST", "/upload"), false));
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.DATA, 0, new byte[100]));
+            Frames.ResetFrame resetFrame = new Frames.ResetFrame();
+            resetFrame.streamId = 1;
+            resetFrame.error = Frames.Error.CANCEL;
+            client.writeFrame(resetFrame.asHttpFrame());
+
+            assertTrue("Expected the read to fail.", failed.await(3, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldRefuseInterruptedHeaderBlocks()throws IOException, InterruptedException {
+        try (HttpIOStream client = openHttp2(startServer(Http11Tests::echoTarget))) {
+            byte[] block = headersFrame(1, requestHeaders("GET", "/"), true).payloadBytes();
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.HEADERS, 0x1, block));
+            sendRequest(client, 3, "GET", "/", null);
+
+            Frames.HttpFrame frame;
+            while ((frame = client.readFrame()).type != Frames.Type.GO_AWAY.ordinal()) {
+                frame.release();
+            }
+            assertEquals(Frames.Error.PROTOCOL_ERROR.ordinal(), frame.payload.nioBuffer().getInt(4));
+            frame.release();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldRejectFramesOnIdleStreamsOtherThanHeaders() throws IOException, InterruptedException {
+        try (HttpIOStream client = openHttp2(startServer(Http11Tests::echoTarget))) {
+            client.writeFrame(windowUpdate(1, 1000));
+            assertEquals(Frames.Error.PROTOCOL_ERROR.ordinal(), readGoAwayError(client));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldRejectStreamsWithEvenIdentifiers() throws IOException, InterruptedException {
+        try (HttpIOStream client = openHttp2(startServer(Http11Tests::echoTarget))) {
+            sendRequest(client, 2, "GET", "/", null);
+            assertEquals(Frames.Error.PROTOCOL_ERROR.ordinal(), readGoAwayError(client));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldStallResponsesUntilTheWindowIsUpdated()throws IOException, InterruptedException {
+        byte[] content = new byte[100_000];
+        Handlers.Http11Handler handler = (request, response, body) -> out -> out.write(content);
+        try (HttpIOStream client = openHttp2(startServer(handler))) {
+            sendRequest(client, 1, "GET", "/", null);
+            int received = 0;
+            while (received < DEFAULT_WINDOW) {
+                received += readDataLength(client);
+            }
+            assertEquals(DEFAULT_WINDOW, received);
+
+            // Anything more sent without a window would arrive ahead of the PING's acknowledgement.
+            client.writeFrame(new Frames.PingFrame("stalled?").asHttpFrame());
+            assertEquals(-1, readDataLength(client));
+
+            client.writeFrame(windowUpdate(0, content.length));
+            client.writeFrame(windowUpdate(1, content.length));
+            while (received < content.length) {
+                received += readDataLength(client);
+            }
+            assertEquals(content.length, received);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldCreditReadDataInBatchesAndGrowTheWindow() throws IOException, InterruptedException {
+        CountDownLatch reading = new CountDownLatch(1);
+        Handlers.Http11Handler handler = (request, response, body) -> {
+            try {
+                reading.await();
+                int count = body.read(new byte[48_000]);
+                while (body.read() >= 0) {
+                    count++;
+                }
+                byte[] result = Integer.toString(count).getBytes(StandardCharsets.US_ASCII);
+                return out -> out.write(result);
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        try (HttpIOStream client = openHttp2(startServer(handler))) {
+            client.writeFrame(headersFrame(1, requestHeaders("POST", "/upload"), false));
+            for (int i = 0; i < 3; i++) {
+                client.writeFrame(new Frames.HttpFrame(1, Frames.Type.DATA, 0, new byte[16_000]));
+            }
+
+            // Nothing is credited while the handler has read nothing.
+            client.writeFrame(new Frames.PingFrame("unread?!").asHttpFrame());
+            List<String> updates = new ArrayList<>();
+            byte[] ping = null;
+            Frames.HttpFrame frame;
+            while (!((frame = client.readFrame()).type == Frames.Type.PING.ordinal() && (frame.flags & 0x1) != 0)) {
+                if (frame.type == Frames.Type.WINDOW_UPDATE.ordinal()) {
+                    updates.add(frame.streamId + ":" + frame.payload.nioBuffer().getInt());
+                } else if (frame.type == Frames.Type.PING.ordinal()) {
+                    ping = frame.payloadBytes();
+                }
+                frame.release();
+            }
+            frame.release();
+            assertEquals(Collections.emptyList(), updates);
+
+            reading.countDown();
+            while (updates.size() < 2) {
+                frame = client.readFrame();
+                if (frame.type == Frames.Type.WINDOW_UPDATE.ordinal()) {
+                    updates.add(frame.streamId + ":" + frame.payload.nioBuffer().getInt());
+                } else if (frame.type == Frames.Type.PING.ordinal()) {
+                    ping = frame.payloadBytes();
+                }
+                frame.release();
+            }
+            assertEquals(Arrays.asList("0:48000", "1:48000"), updates);
+            assertTrue("Expected a PING to measure the round trip.", ping != null);
+
+            // All the window was used within the round trip, so it grows to twice that.
+            client.writeFrame(new Frames.PingFrame(true, ping).asHttpFrame());
+            while ((frame = client.readFrame()).type != Frames.Type.WINDOW_UPDATE.ordinal()) {
+                frame.release();
+            }
+            assertEquals(0, frame.streamId);
+            assertEquals(96_000 - DEFAULT_WINDOW, frame.payload.nioBuffer().getInt());
+            frame.release();
+
+            client.writeFrame(new Frames.HttpFrame(1, Frames.Type.DATA, 0x1, new byte[0]));
+            assertEquals("1 200 48000", readResponse(client));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldPrioritizeIdleStreamsWithoutOpeningThem() throws IOException, InterruptedException {
+        try (HttpIOStream client = openHttp2(startServer(Http11Tests::echoTarget))) {
+            client.writeFrame(priority(7, 0, true));
+            client.writeFrame(priority(3, 3, false));
+            sendRequest(client, 5, "GET", "/five", null);
+
+            Frames.HttpFrame frame;
+            while ((frame = client.readFrame()).type != Frames.Type.RST_STREAM.ordinal()) {
+                frame.release();
+            }
+            assertEquals("Expected a stream depending on itself to be reset.", 3, frame.streamId);
+            assertEquals(Frames.Error.PROTOCOL_ERROR.ordinal(), frame.payload.nioBuffer().getInt());
+            frame.release();
+            assertEquals("5 200 /five", readResponse(client));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldServeClientsWhichPrioritizeByUrgency() throws IOException, InterruptedException {
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", startServer(Http11Tests::echoTarget)))) {
+            client.writeConnectionPreface();
+            Map<Frames.SettingsFrame.Setting, Integer> settings = new EnumMap<>(Frames.SettingsFrame.Setting.class);
+            settings.put(Frames.SettingsFrame.Setting.SETTINGS_NO_RFC7540_PRIORITIES, 1);
+            client.writeFrame(new Frames.SettingsFrame(false, settings).asHttpFrame());
+            client.writeFrame(priorityUpdate(0, 1, "u=0"));
+            LinkedHashMap<String, String> headers = requestHeaders("GET", "/urgent");
+            headers.put("priority", "u=7, i");
+            client.writeFrame(headersFrame(1, headers, true));
+
+            assertEquals("1 200 /urgent", readResponse(client));
+
+            client.writeFrame(priorityUpdate(1, 1, "u=1"));
+            Frames.HttpFrame frame;
+            while ((frame = client.readFrame()).type != Frames.Type.GO_AWAY.ordinal()) {
+                frame.release();
+            }
+            assertEquals("Expected PRIORITY_UPDATE only on stream 0.",
+                    Frames.Error.PROTOCOL_ERROR.ordinal(), frame.payload.nioBuffer().getInt(4));
+            frame.release();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldIndexHeadersRepeatedAcrossResponses() throws IOException, InterruptedException {
+        try (HttpIOStream client = openHttp2(startServer(Http11Tests::echoTarget))) {
+            sendRequest(client, 1, "GET", "/same", null);
+            byte[] first = readHeaderBlock(client);
+            sendRequest(client, 3, "GET", "/same", null);
+            byte[] second = readHeaderBlock(client);
+
+            assertEquals("Expected a byte for each field the first response indexed.", 2, second.length);
+            assertTrue(first.length > second.length);
+            assertEquals(decoder.decodeHeaderList(first), decoder.decodeHeaderList(second));
+            assertEquals("5", decoder.decodeHeaderList(second).get("content-length"));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void shouldSizeTheHeaderTableByTheClientsSetting() throws IOException, InterruptedException {
+        try (HttpIOStream client = new HttpIOStream(new Socket("localhost", startServer(Http11Tests::echoTarget)))) {
+            client.writeConnectionPreface();
+            Map<Frames.SettingsFrame.Setting, Integer> settings = new EnumMap<>(Frames.SettingsFrame.Setting.class);
+            settings.put(Frames.SettingsFrame.Setting.SETTINGS_HEADER_TABLE_SIZE, 0);
+            client.writeFrame(new Frames.SettingsFrame(false, settings).asHttpFrame());
+            sendRequest(client, 1, "GET", "/same", null);
+            byte[] first = readHeaderBlock(client);
+            sendRequest(client, 3, "GET", "/same", null);
+            byte[] second = readHeaderBlock(client);
+
+            assertEquals("Expected the first block to start by shrinking the table.", 0x20, first[0]);
+            assertArrayEquals("Expected nothing indexed.", Arrays.copyOfRange(first, 1, first.length), second);
+        }
+    }
+
+    /**
+     * Read frames until a HEADERS frame, skipping the rest.
+     *
+     * @return Its header block, encoded.
+     */
+    private static byte[] readHeaderBlock(HttpIOStream client) throws IOException {
+        Frames.HttpFrame frame;
+        while ((frame = client.readFrame()).type != Frames.Type.HEADERS.ordinal()) {
+            frame.release();
+        }
+        byte[] block = frame.payloadBytes();
+        frame.release();
+        return block;
+    }
+
+    /**
+     * Read frames until a GOAWAY, skipping the rest.
+     *
+     * @return Its error code.
+     */
+    private static int readGoAwayError(HttpIOStream client) throws IOException {
+        Frames.HttpFrame frame;
+        while ((frame = client.readFrame()).type != Frames.Type.GO_AWAY.ordinal()) {
+            frame.release();
+        }
+        int error = frame.payload.nioBuffer().getInt(4);
+        frame.release();
+        return error;
+    }
+
+    private static Frames.HttpFrame priorityUpdate(int streamId, int prioritizedStreamId, String priority) {
+        byte[] value = priority.getBytes(StandardCharsets.US_ASCII);
+        byte[] payload = new byte[4 + value.length];
+        payload[3] = (byte) prioritizedStreamId;
+        System.arraycopy(value, 0, payload, 4, value.length);
+        return new Frames.HttpFrame(streamId, Frames.PRIORITY_UPDATE, 0, payload);
+    }
+
+    private static Frames.HttpFrame priority(int streamId, int dependency, boolean exclusive) {
+        Frames.PriorityFrame priorityFrame = new Frames.PriorityFrame();
+        priorityFrame.streamId = streamId;
+        priorityFrame.streamDependency = dependency;
+        priorityFrame.exclusive = exclusive;
+        priorityFrame.weight = 255;
+        return priorityFrame.asHttpFrame();
+    }
+
+    /**
+     * @return The length of the next DATA frame, or -1 for a PING acknowledgement.
+     */
+    private static int readDataLength(HttpIOStream client) throws IOException {
+        while (true) {
+            Frames.HttpFrame frame = client.readFrame();
+            try {
+                if (frame.type == Frames.Type.PING.ordinal() && (frame.flags & 0x1) != 0) {
+                    return -1;
+                } else if (frame.type == Frames.Type.DATA.ordinal()) {
+                    return frame.length();
+                }
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    private static Frames.HttpFrame windowUpdate(int streamId, int increment) {
+        Frames.WindowUpdateFrame windowUpdateFrame = new Frames.WindowUpdateFrame();
+        windowUpdateFrame.streamId = streamId;
+        windowUpdateFrame.canTransmit = increment;
+        return windowUpdateFrame.asHttpFrame();
+    }
+
+    /**
+     * Connect, and send the client preface, with empty SETTINGS. RFC 7540 Section 3.5.
+     */
+    static HttpIOStream openHttp2(int port) throws IOException {
+        HttpIOStream client = new HttpIOStream(new Socket("localhost", port));
+        client.writeConnectionPreface();
+        client.writeFrame(new Frames.SettingsFrame(false, new EnumMap<>(Frames.SettingsFrame.Setting.class)).asHttpFrame());
+        return client;
+    }
+
+    static LinkedHashMap<String, String> requestHeaders(String method, String path) {
+        LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+        headers.put(":method", method);
+        headers.put(":scheme", "http");
+        headers.put(":path", path);
+        headers.put(":authority", "localhost");
+        return headers;
+    }
+
+    static Frames.HttpFrame headersFrame(int streamId, LinkedHashMap<String, String> headers, boolean endStream) {
+        Frames.HeadersFrame headersFrame = new Frames.HeadersFrame();
+        headersFrame.streamId = streamId;
+        headersFrame.headers = headers;
+        headersFrame.flagEndHeaders = true;
+        headersFrame.flagEndStream = endStream;
+        return headersFrame.asHttpFrame();
+    }
+
+    static void sendRequest(HttpIOStream client, int streamId, String method, String path, byte[] body) throws IOException {
+        client.writeFrame(headersFrame(streamId, requestHeaders(method, path), body == null));
+        if (body != null) {
+            client.writeFrame(new Frames.HttpFrame(streamId, Frames.Type.DATA, 0x1, body));
+        }
+    }
+
+    private String readResponse(HttpIOStream client) throws IOException {
+        return readResponse(client, decoder);
+    }
+
+    /**
+     * Read frames until a stream ends, skipping any which are not responses.
+     *
+     * @param decoder The decoding context of the connection.
+     * @return The stream identifier, status and body of the first response to end, separated by spaces.
+     */
+    static String readResponse(HttpIOStream client, Hpack decoder) throws IOException {
+        Map<Integer, String> statuses = new HashMap<>();
+        Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+        while (true) {
+            Frames.HttpFrame frame = client.readFrame();
+            try {
+                boolean endStream = (frame.flags & 0x1) != 0;
+                if (frame.type == Frames.Type.HEADERS.ordinal()) {
+                    statuses.put(frame.streamId, decoder.decodeHeaderList(frame.payloadBytes()).get(":status"));
+                } else if (frame.type == Frames.Type.DATA.ordinal()) {
+                    bodies.computeIfAbsent(frame.streamId, id -> new ByteArrayOutputStream()).write(frame.payloadBytes());
+                } else {
+                    continue;
+                }
+                if (endStream) {
+                    ByteArrayOutputStream body = bodies.getOrDefault(frame.streamId, new ByteArrayOutputStream());
+                    return frame.streamId + " " + statuses.get(frame.streamId) + " " + body.toString(StandardCharsets.US_ASCII);
+                }
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Records each write separately, so that tests can tell how frames were batched.
+     */
+    private static class RecordingOutputStream extends OutputStream {
+
+        final BlockingQueue<byte[]> writes = new LinkedBlockingQueue<>();
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            writes.add(Arrays.copyOfRange(bytes, offset, offset + length));
+        }
+    }
+
+    private static byte[] readFully(InputStream input, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = input.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new IOException("Unexpected end of stream.");
+            }
+            read += count;
+        }
+        return bytes;
+    }
+}
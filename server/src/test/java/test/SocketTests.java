@@ -11,10 +11,15 @@ import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class SocketTests {
 
@@ -52,4 +57,31 @@ public class SocketTests {
         server.stop();
         server.waitForStop();
     }
+
+    @Test(timeout=5000)
+    public void virtualThreadsShouldHandleManyBlockedConnectionsAtOnce() throws InterruptedException, IOException {
+        int connectionCount = 50; // Far more than the platform thread pool allows.
+        CountDownLatch allConnected = new CountDownLatch(connectionCount);
+        TcpServer server = new TcpServer(new ServerSocket(0, connectionCount), client -> {
+            allConnected.countDown();
+            try {
+                allConnected.await(); // Every handler blocks until all connections are being handled.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, TcpServer.ExecutionMode.VIRTUAL_THREADS);
+
+        int port = server.waitForPort();
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < connectionCount; i++) {
+            sockets.add(new Socket("localhost", port));
+        }
+
+        assertTrue("Expected every connection to be handled concurrently!", allConnected.await(3, TimeUnit.SECONDS));
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+        server.waitForStop();
+    }
 }
@@ -0,0 +1,88 @@
+package test;
+
+import org.junit.Test;
+import propolis.server.Stream;
+import propolis.server.StreamTable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StreamTableTests {
+
+    @Test
+    public void shouldAgreeWithAHashMap() {
+        StreamTable table = new StreamTable();
+        Map<Integer, Stream> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            int streamId = 1 + random.nextInt(2000);
+            if (random.nextBoolean()) {
+                Stream stream = new Stream(frame -> {});
+                table.put(streamId, stream);
+                expected.put(streamId, stream);
+            } else {
+                assertSame(expected.remove(streamId), table.remove(streamId));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (int streamId = 1; streamId <= 2000; streamId++) {
+            assertSame(expected.get(streamId), table.get(streamId));
+        }
+    }
+
+    @Test
+    public void shouldStayTheSameSizeOverMillionsOfStreams() {
+        StreamTable table = new StreamTable();
+        int concurrent = 100;
+        for (int streamId = 1; streamId < 2 * concurrent; streamId += 2) {
+            table.put(streamId, new Stream(frame -> {}));
+        }
+        int capacity = table.capacity();
+        for (int streamId = 2 * concurrent + 1; streamId < 4_000_000; streamId += 2) {
+            table.put(streamId, new Stream(frame -> {}));
+            assertTrue(table.remove(streamId - 2 * concurrent) != null);
+        }
+
+        assertEquals(concurrent, table.size());
+        assertEquals(capacity, table.capacity());
+    }
+
+    @Test
+    public void shouldTellIdleFromClosedStreams() {
+        StreamTable table = new StreamTable();
+        table.put(5, new Stream(frame -> {}));
+
+        assertTrue(table.isIdle(7));
+        assertTrue("Expected stream 3 to be closed implicitly by stream 5.", table.isClosed(3));
+        assertFalse(table.isRecentlyClosed(3));
+        assertFalse(table.isClosed(5));
+        assertTrue("Expected server streams to be counted apart.", table.isIdle(2));
+
+        table.remove(5);
+        assertTrue(table.isClosed(5));
+        assertTrue(table.isRecentlyClosed(5));
+        assertNull(table.get(5));
+    }
+
+    @Test
+    public void shouldForgetStreamsClosedLongAgo() {
+        StreamTable table = new StreamTable();
+        table.put(1, new Stream(frame -> {}));
+        table.remove(1);
+        for (int streamId = 3; streamId < 100_000; streamId += 2) {
+            table.put(streamId, new Stream(frame -> {}));
+            table.remove(streamId);
+        }
+
+        assertTrue(table.isClosed(1));
+        assertFalse(table.isRecentlyClosed(1));
+        assertTrue(table.isRecentlyClosed(99_999));
+    }
+}
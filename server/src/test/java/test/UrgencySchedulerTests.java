@@ -0,0 +1,118 @@
+package test;
+
+import org.junit.Test;
+import propolis.server.Frames;
+import propolis.server.UrgencyScheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UrgencySchedulerTests {
+
+    @Test
+    public void shouldSendTheMostUrgentFirst() {
+        UrgencyScheduler scheduler = new UrgencyScheduler();
+        for (int streamId = 1; streamId <= 5; streamId += 2) {
+            scheduler.open(streamId);
+        }
+        scheduler.prioritize(1, "u=5");
+        scheduler.prioritize(3, "u=1");
+        for (int streamId = 1; streamId <= 5; streamId += 2) {
+            scheduler.add(data(streamId));
+            scheduler.add(data(streamId));
+        }
+        scheduler.add(new Frames.HttpFrame(7, Frames.Type.HEADERS, 0x4, new byte[10]));
+
+        assertEquals("7 3 3 5 5 1 1", pollAll(scheduler));
+    }
+
+    @Test
+    public void shouldTakeTurnsWithinAnUrgency() {
+        UrgencyScheduler scheduler = new UrgencyScheduler();
+        for (int streamId = 1; streamId <= 7; streamId += 2) {
+            scheduler.open(streamId);
+        }
+        scheduler.prioritize(1, "i");
+        scheduler.prioritize(3, "u=3, i=?1");
+        for (int streamId : new int[]{7, 5, 1, 3}) {
+            scheduler.add(data(streamId));
+            scheduler.add(data(streamId));
+        }
+
+        assertEquals("Expected incremental streams round-robin, the rest one at a time in stream order.",
+                "1 5 3 5 1 7 3 7", pollAll(scheduler));
+    }
+
+    @Test
+    public void shouldKeepSendingAStreamWhichDrainsBriefly() {
+        UrgencyScheduler scheduler = new UrgencyScheduler();
+        for (int streamId = 1; streamId <= 5; streamId += 2) {
+            scheduler.open(streamId);
+        }
+        scheduler.add(data(1));
+        scheduler.poll().release();
+        scheduler.add(data(5));
+        scheduler.add(data(3));
+        scheduler.add(data(1));
+
+        assertEquals("1 3 5", pollAll(scheduler));
+    }
+
+    @Test
+    public void shouldPreferPriorityUpdatesToTheRequestHeader() {
+        UrgencyScheduler scheduler = new UrgencyScheduler();
+        scheduler.updatePriority(9, "u=0");
+        scheduler.open(9);
+        scheduler.prioritize(9, "u=7");
+        assertEquals(0, scheduler.urgency(9));
+
+        scheduler.updatePriority(9, "u=6, i");
+        assertEquals(6, scheduler.urgency(9));
+    }
+
+    @Test
+    public void shouldIgnoreWhatItDoesNotUnderstand() {
+        UrgencyScheduler scheduler = new UrgencyScheduler();
+        scheduler.open(1);
+        scheduler.prioritize(1, "u=2;x=1, foo=bar, i=?2");
+        assertEquals(2, scheduler.urgency(1));
+
+        scheduler.prioritize(1, "u=8");
+        assertEquals(UrgencyScheduler.DEFAULT_URGENCY, scheduler.urgency(1));
+    }
+
+    @Test
+    public void shouldForgetOldPrioritiesForIdleStreams() {
+        UrgencyScheduler scheduler = new UrgencyScheduler();
+        scheduler.open(1);
+        for (int streamId = 3; streamId < 100_000; streamId += 2) {
+            scheduler.updatePriority(streamId, "u=1");
+        }
+        for (int streamId = 100_001; streamId < 200_000; streamId += 2) {
+            scheduler.open(streamId);
+            scheduler.add(data(streamId));
+            scheduler.close(streamId);
+            scheduler.poll().release();
+        }
+
+        assertTrue("Expected bounded memory, not " + scheduler.size(), scheduler.size() <= UrgencyScheduler.MAX_RETAINED + 1);
+        assertEquals(UrgencyScheduler.DEFAULT_URGENCY, scheduler.urgency(1));
+    }
+
+    private static Frames.HttpFrame data(int streamId) {
+        return new Frames.HttpFrame(streamId, Frames.Type.DATA, 0, new byte[100]);
+    }
+
+    private static String pollAll(UrgencyScheduler scheduler) {
+        List<String> streamIds = new ArrayList<>();
+        Frames.HttpFrame frame;
+        while ((frame = scheduler.poll()) != null) {
+            streamIds.add(String.valueOf(frame.streamId));
+            frame.release();
+        }
+        return String.join(" ", streamIds);
+    }
+}